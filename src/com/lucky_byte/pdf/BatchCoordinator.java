@@ -0,0 +1,444 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 在多个本机工作进程中批量生成文档
+ *
+ * 一个 JVM 的吞吐量受到 GC 及字体子集化的限制，协调者将批量文件分为
+ * 若干分片，交给多个工作进程(java ... TextPDF -batch-worker)生成。
+ * 工作进程通过回环地址连接协调者，口令通过工作进程的标准输入传递。
+ * 协议为按行的文本：
+ *
+ *   工作进程：口令
+ *   协调者：  SHARD 序号 开始位置 结束位置 开始行号，或者 EXIT
+ *   工作进程：每个记录一行 OK id<TAB>日志内容、SKIP id 或 FAIL id<TAB>原因，
+ *             然后 WARNED 有警告的记录数、每条警告一行 WARN 次数<TAB>信息，
+ *             最后 DONE 序号
+ *
+ * 工作进程在分片完成之前退出时，分片重新分配给其它工作进程，并启动新的
+ * 工作进程代替它(最多启动工作进程数的两倍)，所有工作进程都不可用时，
+ * 剩下的分片在当前进程中生成。分片完成后才合并它的结果，所以重新生成的
+ * 分片不会重复计数。不需要任何外部的消息队列。
+ *
+ * 工作进程只读取检查点日志，由协调者在分片完成后追加其中成功的记录，
+ * 所以工作进程中途退出时已经生成的记录不会被跳过或重复记录，参考
+ * BatchJournal。
+ */
+public class BatchCoordinator
+{
+	private BatchJob job;
+	private int workers;
+	private int shard_size = 1000;
+	private List<String> jvm_options = new ArrayList<String>();
+
+	private String token;
+	private ServerSocket server_socket;
+	private ArrayDeque<BatchShard> pending;
+	private int outstanding;
+	private int assigned = 0;
+	private List<Process> processes;
+	private int launched = 0;
+	private BatchReport report;
+
+	/**
+	 * @param job 批量任务
+	 * @param workers 工作进程数
+	 */
+	public BatchCoordinator(BatchJob job, int workers) {
+		this.job = job;
+		this.workers = Math.max(workers, 1);
+	}
+
+	/**
+	 * 设置每个分片的行数，默认为 1000
+	 * @param shard_size
+	 */
+	public void setShardSize(int shard_size) {
+		this.shard_size = Math.max(shard_size, 1);
+	}
+
+	/**
+	 * 设置工作进程的 JVM 参数，例如 -Xmx512m
+	 * @param options
+	 */
+	public void setJvmOptions(List<String> options) {
+		this.jvm_options.addAll(options);
+	}
+
+	/**
+	 * 生成所有分片，返回合并后的结果
+	 * @return
+	 * @throws IOException
+	 */
+	public BatchReport run() throws IOException {
+		long start = System.currentTimeMillis();
+		report = new BatchReport();
+		List<BatchShard> shards = job.split(shard_size);
+		pending = new ArrayDeque<BatchShard>(shards);
+		outstanding = shards.size();
+		processes = new ArrayList<Process>();
+		job.cleanTemp();
+
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		token = Util.toHexString(bytes);
+		server_socket = new ServerSocket(0, 50,
+				InetAddress.getLoopbackAddress());
+		try {
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					accept();
+				}
+			}, "textpdf-batch-accept");
+			acceptor.setDaemon(true);
+			acceptor.start();
+
+			for (int i = 0; i < Math.min(workers, outstanding); i++) {
+				launch();
+			}
+			waitShards();
+		} finally {
+			server_socket.close();
+			synchronized (this) {
+				for (Process process : processes) {
+					process.destroy();
+				}
+			}
+		}
+		// 所有工作进程都不可用时，在当前进程中生成剩下的分片
+		try {
+			BatchShard shard;
+			while ((shard = takeLocal()) != null) {
+				report.merge(job.render(shard, job.journalListener()));
+			}
+		} finally {
+			job.closeJournal();
+		}
+		report.setElapsed(System.currentTimeMillis() - start);
+		return report;
+	}
+
+	private synchronized BatchShard takeLocal() {
+		return pending.poll();
+	}
+
+	/**
+	 * 启动一个工作进程
+	 */
+	private synchronized void launch() {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "java");
+		command.addAll(jvm_options);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(TextPDF.class.getName());
+		command.add("-batch-worker");
+		command.add(String.valueOf(server_socket.getLocalPort()));
+		command.addAll(job.toArgs());
+
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		launched++;
+		try {
+			Process process = builder.start();
+			OutputStream stream = process.getOutputStream();
+			stream.write((token + "\n").getBytes("UTF-8"));
+			stream.close();
+			processes.add(process);
+		} catch (IOException e) {
+			System.err.println("Start batch worker failed: " + e);
+		}
+	}
+
+	/**
+	 * 等待所有分片完成，检查退出的工作进程，必要时启动新的工作进程
+	 */
+	private synchronized void waitShards() {
+		while (outstanding > 0) {
+			Iterator<Process> iterator = processes.iterator();
+			while (iterator.hasNext()) {
+				try {
+					iterator.next().exitValue();
+					iterator.remove();		// 已经退出
+				} catch (IllegalThreadStateException e) {
+				}
+			}
+			if (processes.size() < workers && !pending.isEmpty() &&
+					launched < workers * 3) {
+				launch();
+				continue;
+			}
+			// 分配给已退出的工作进程的分片，要等到重新排队后才能返回
+			if (processes.isEmpty() && assigned == 0) {
+				return;
+			}
+			try {
+				wait(500);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void accept() {
+		while (!server_socket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = server_socket.accept();
+			} catch (SocketException e) {
+				break;
+			} catch (IOException e) {
+				continue;
+			}
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			}, "textpdf-batch-worker");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * 取得下一个分片，没有等待中的分片时等待，所有分片都完成时返回 null
+	 */
+	private synchronized BatchShard takeShard() {
+		while (pending.isEmpty()) {
+			if (outstanding == 0 || server_socket.isClosed()) {
+				return null;
+			}
+			try {
+				wait(500);
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+		assigned++;
+		return pending.poll();
+	}
+
+	private synchronized void shardDone(BatchReport shard_report) {
+		report.merge(shard_report);
+		outstanding--;
+		assigned--;
+		notifyAll();
+	}
+
+	private synchronized void shardFailed(BatchShard shard) {
+		pending.addFirst(shard);
+		assigned--;
+		report.addRetriedShard();
+		report.addLostWorker();
+		notifyAll();
+	}
+
+	/**
+	 * 和一个工作进程通信
+	 */
+	private void serve(Socket socket) {
+		BatchShard shard = null;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), "UTF-8"));
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+					socket.getOutputStream(), "UTF-8"));
+			String line = reader.readLine();
+			if (line == null || !MessageDigest.isEqual(
+					token.getBytes("UTF-8"), line.getBytes("UTF-8"))) {
+				return;
+			}
+			while ((shard = takeShard()) != null) {
+				writer.print("SHARD " + shard.index + " " + shard.start + " "
+						+ shard.end + " " + shard.first_line + "\n");
+				writer.flush();
+				BatchReport shard_report = new BatchReport();
+				List<String[]> entries = new ArrayList<String[]>();
+				while (true) {
+					line = reader.readLine();
+					if (line == null) {
+						throw new IOException("Batch worker exited.");
+					}
+					if (line.startsWith("OK ")) {
+						String[] fields = line.substring(3).split("\t", 2);
+						shard_report.succeed(fields[0]);
+						if (fields.length > 1) {
+							entries.add(fields);
+						}
+					} else if (line.startsWith("SKIP ")) {
+						shard_report.skip(line.substring(5));
+					} else if (line.startsWith("FAIL ")) {
+						String[] fields = line.substring(5).split("\t", 2);
+						shard_report.fail(fields[0],
+								fields.length > 1 ? fields[1] : "");
+					} else if (line.startsWith("WARNED ")) {
+						shard_report.addWarned(
+								Integer.parseInt(line.substring(7)));
+					} else if (line.startsWith("WARN ")) {
+						String[] fields = line.substring(5).split("\t", 2);
+						if (fields.length > 1) {
+							shard_report.addWarning(fields[1],
+									Integer.parseInt(fields[0]));
+						}
+					} else if (line.startsWith("DONE ")) {
+						break;
+					}
+				}
+				if (job.journal != null) {
+					for (String[] fields : entries) {
+						job.journal.append(fields[0], fields[1]);
+					}
+				}
+				shard_report.addShard();
+				shardDone(shard_report);
+				shard = null;
+			}
+			writer.print("EXIT\n");
+			writer.flush();
+		} catch (IOException e) {
+			if (shard != null) {
+				shardFailed(shard);
+			}
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * 批量任务入口，参数为
+	 * [-w workers] [-s shard_size] [-f pdf|html] [-T template] [-j journal]
+	 * batchfile outdir
+	 * 工作进程数为 0 时在当前进程中生成，检查点日志默认为
+	 * outdir/.batchfile.journal，重新执行时跳过已经完成的记录
+	 * @param args
+	 * @return 退出码，有失败的记录时为 1
+	 */
+	static int main(String[] args) {
+		int workers = Runtime.getRuntime().availableProcessors();
+		int shard_size = 1000;
+		int doc_type = TextParser.DOC_TYPE_PDF;
+		File template = null;
+		File journal = null;
+		boolean validate = false;
+		boolean check_only = false;
+		List<String> files = new ArrayList<String>();
+
+		for (int i = 0; i < args.length; i++) {
+			if ((args[i].equals("-w") || args[i].equals("-s")) &&
+					i < args.length - 1) {
+				try {
+					int value = Integer.parseInt(args[++i]);
+					if (args[i - 1].equals("-w")) {
+						workers = Math.max(value, 0);
+					} else {
+						shard_size = value;
+					}
+				} catch (NumberFormatException e) {
+					System.err.println("'" + args[i - 1]
+							+ "' option require a integer value");
+					return 2;
+				}
+			} else if (args[i].equals("-f") && i < args.length - 1) {
+				if (args[++i].equalsIgnoreCase("html")) {
+					doc_type = TextParser.DOC_TYPE_HTML;
+				}
+			} else if (args[i].equals("-T") && i < args.length - 1) {
+				template = new File(args[++i]);
+			} else if (args[i].equals("-j") && i < args.length - 1) {
+				journal = new File(args[++i]);
+			} else if (args[i].equals("-c")) {
+				validate = true;
+			} else if (args[i].equals("-n")) {
+				check_only = true;
+			} else {
+				files.add(args[i]);
+			}
+		}
+		if (files.size() != 2) {
+			System.err.println("Usage: java -jar textpdf.jar -batch "
+					+ "[-w workers] [-s shard_size] [-f pdf|html] "
+					+ "[-T template] [-j journal] [-c] [-n] batchfile outdir");
+			return 2;
+		}
+		BatchJob job = new BatchJob(new File(files.get(0)),
+				new File(files.get(1)));
+		job.setDocType(doc_type);
+		if (template != null) {
+			job.setTemplate(template);
+		}
+		job.setValidate(validate);
+		try {
+			if (check_only) {
+				BatchReport report = job.validate();
+				System.err.print(report);
+				return report.getFailed() > 0 ? 1 : 0;
+			}
+			if (journal == null) {
+				journal = new File(job.getOutDir(),
+						"." + job.getBatchFile().getName() + ".journal");
+			}
+			job.setJournal(journal);
+			BatchReport report;
+			if (workers == 0) {
+				report = job.run();
+			} else {
+				BatchCoordinator coordinator =
+						new BatchCoordinator(job, workers);
+				coordinator.setShardSize(shard_size);
+				report = coordinator.run();
+			}
+			System.err.print(report);
+			return report.getFailed() > 0 ? 1 : 0;
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			return 2;
+		}
+	}
+
+}
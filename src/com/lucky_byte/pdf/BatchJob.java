@@ -0,0 +1,464 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * 批量生成文档
+ *
+ * 批量文件每一行是一个 JSON 对象(NDJSON)，格式和 TextParser 的 JSON
+ * 数据相同，另外可以包含：
+ *   "id"       输出文件名(不含扩展名)，默认为行号
+ *   "template" 模板文件，相对路径相对于模板目录(默认为批量文件所在目录)，
+ *              默认为 setTemplate() 设置的模板
+ * 模板中 include 引用的片段也相对于模板目录。
+ * 每个记录生成 outdir/id.pdf(或 .html)，先写入临时文件再改名。
+ *
+ * 批量文件可以按行分为若干分片(split())，每个分片独立生成，
+ * 参考 BatchCoordinator。设置检查点日志后(setJournal())，中断的批量任务
+ * 可以重新执行，已经完成的记录被跳过，参考 BatchJournal。
+ *
+ * validate() 在渲染之前按照模板清单检查整个批量文件，只解析 JSON，
+ * 不渲染；setValidate() 使渲染时先检查每个记录，不合格的记录直接失败，
+ * 不再渲染，参考 TemplateManifest。
+ */
+public class BatchJob
+{
+	private File batch_file;
+	private File out_dir;
+	private File template_dir;
+	private File template = null;
+	private int doc_type = TextParser.DOC_TYPE_PDF;
+	private ConcurrentHashMap<String, CompiledTemplate> templates;
+	private StaticBlockCache static_cache;
+	private FragmentCache fragment_cache;
+	private File journal_file = null;
+	BatchJournal journal = null;
+	private boolean validate = false;
+	private ConcurrentHashMap<String, TemplateManifest> manifests;
+
+	/**
+	 * @param batch_file 批量文件
+	 * @param out_dir 输出目录
+	 */
+	public BatchJob(File batch_file, File out_dir) {
+		this.batch_file = batch_file;
+		this.out_dir = out_dir;
+		this.template_dir = batch_file.getAbsoluteFile().getParentFile();
+		this.templates = new ConcurrentHashMap<String, CompiledTemplate>();
+		this.static_cache = new StaticBlockCache();
+		this.fragment_cache = new FragmentCache();
+		this.manifests = new ConcurrentHashMap<String, TemplateManifest>();
+	}
+
+	/**
+	 * 设置记录中 "template" 相对路径的基准目录
+	 * @param template_dir
+	 */
+	public void setTemplateDir(File template_dir) {
+		this.template_dir = template_dir;
+	}
+
+	/**
+	 * 设置没有 "template" 的记录使用的模板
+	 * @param template
+	 */
+	public void setTemplate(File template) {
+		this.template = template;
+	}
+
+	/**
+	 * 设置输出文档类型，默认为 PDF
+	 * @param doc_type
+	 */
+	public void setDocType(int doc_type) {
+		this.doc_type = doc_type;
+	}
+
+	/**
+	 * 设置检查点日志文件，记录已经完成的记录及输出文件的摘要，
+	 * 文件存在时读取其中的记录
+	 * @param journal_file
+	 * @throws IOException
+	 */
+	public void setJournal(File journal_file) throws IOException {
+		this.journal_file = journal_file;
+		this.journal = new BatchJournal(journal_file);
+	}
+
+	/**
+	 * 渲染 PDF 之前按照模板清单检查记录，不合格的记录不再渲染
+	 * @param validate
+	 */
+	public void setValidate(boolean validate) {
+		this.validate = validate;
+	}
+
+	public File getBatchFile() {
+		return batch_file;
+	}
+
+	public File getOutDir() {
+		return out_dir;
+	}
+
+	/**
+	 * 工作进程的命令行参数，参考 fromArgs()
+	 */
+	List<String> toArgs() {
+		List<String> args = new ArrayList<String>();
+		args.add(String.valueOf(doc_type));
+		args.add(batch_file.getAbsolutePath());
+		args.add(out_dir.getAbsolutePath());
+		args.add(template_dir.getAbsolutePath());
+		args.add(template == null ? "" : template.getAbsolutePath());
+		args.add(journal_file == null ? "" : journal_file.getAbsolutePath());
+		args.add(String.valueOf(validate));
+		return args;
+	}
+
+	/**
+	 * 工作进程只读取检查点日志，由协调者追加
+	 */
+	static BatchJob fromArgs(String[] args, int offset) throws IOException {
+		BatchJob job = new BatchJob(new File(args[offset + 1]),
+				new File(args[offset + 2]));
+		job.doc_type = Integer.parseInt(args[offset]);
+		job.template_dir = new File(args[offset + 3]);
+		if (args[offset + 4].length() > 0) {
+			job.template = new File(args[offset + 4]);
+		}
+		if (args[offset + 5].length() > 0) {
+			job.journal = new BatchJournal(new File(args[offset + 5]));
+		}
+		job.validate = Boolean.parseBoolean(args[offset + 6]);
+		return job;
+	}
+
+	/**
+	 * 按行将批量文件分为若干分片
+	 * @param shard_size 每个分片的行数
+	 * @return
+	 * @throws IOException
+	 */
+	public List<BatchShard> split(int shard_size) throws IOException {
+		List<BatchShard> shards = new ArrayList<BatchShard>();
+		InputStream stream = new BufferedInputStream(
+				new FileInputStream(batch_file), 65536);
+		try {
+			long position = 0;
+			long start = 0;
+			int line = 1;
+			int first_line = 1;
+			boolean empty = true;
+			int b;
+			while ((b = stream.read()) >= 0) {
+				position++;
+				empty = false;
+				if (b == '\n') {
+					line++;
+					if (line - first_line >= shard_size) {
+						shards.add(new BatchShard(shards.size(),
+								start, position, first_line));
+						start = position;
+						first_line = line;
+						empty = true;
+					}
+				}
+			}
+			if (!empty) {
+				shards.add(new BatchShard(shards.size(),
+						start, position, first_line));
+			}
+		} finally {
+			stream.close();
+		}
+		return shards;
+	}
+
+	/**
+	 * 在当前进程中生成所有的记录
+	 * @return
+	 * @throws IOException
+	 */
+	public BatchReport run() throws IOException {
+		long start = System.currentTimeMillis();
+		BatchReport report = new BatchReport();
+		cleanTemp();
+		try {
+			for (BatchShard shard : split(Integer.MAX_VALUE)) {
+				report.merge(render(shard, journalListener()));
+			}
+		} finally {
+			closeJournal();
+		}
+		report.setElapsed(System.currentTimeMillis() - start);
+		return report;
+	}
+
+	/**
+	 * 按照模板清单检查所有的记录，不渲染。合格的记录计为成功，
+	 * 不合格的记录计为失败，失败的原因和渲染时的警告相同
+	 * @return
+	 * @throws IOException 读取批量文件失败
+	 */
+	public BatchReport validate() throws IOException {
+		long start = System.currentTimeMillis();
+		BatchReport report = new BatchReport();
+		for (BatchShard shard : split(Integer.MAX_VALUE)) {
+			report.merge(scan(shard, null, true));
+		}
+		report.setElapsed(System.currentTimeMillis() - start);
+		return report;
+	}
+
+	/**
+	 * 将成功的记录追加到检查点日志，没有日志时返回 null
+	 */
+	BatchListener journalListener() {
+		if (journal == null) {
+			return null;
+		}
+		return new BatchListener() {
+			@Override
+			public void recordDone(String id, String entry, String error)
+					throws IOException {
+				if (error == null) {
+					journal.append(id, entry);
+				}
+			}
+
+			@Override
+			public void recordSkipped(String id) {
+			}
+		};
+	}
+
+	void closeJournal() throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	/**
+	 * 删除上次中断时留下的临时文件
+	 */
+	void cleanTemp() {
+		String[] names = out_dir.list();
+		if (names == null) {
+			return;
+		}
+		for (String name : names) {
+			if (name.matches("\\..+\\.(pdf|html)\\.\\d+\\.tmp")) {
+				new File(out_dir, name).delete();
+			}
+		}
+	}
+
+	/**
+	 * 生成一个分片中的记录
+	 * @param shard
+	 * @param listener 每个记录完成时回调，可以为 null
+	 * @return
+	 * @throws IOException 读取批量文件失败
+	 */
+	BatchReport render(BatchShard shard, BatchListener listener)
+			throws IOException {
+		return scan(shard, listener, false);
+	}
+
+	/**
+	 * 逐行处理分片中的记录，check_only 为 true 时只检查不渲染
+	 */
+	private BatchReport scan(BatchShard shard, BatchListener listener,
+			boolean check_only) throws IOException {
+		BatchReport report = new BatchReport();
+		FileInputStream file_stream = new FileInputStream(batch_file);
+		try {
+			file_stream.getChannel().position(shard.start);
+			InputStream stream = new BufferedInputStream(file_stream, 65536);
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			long position = shard.start;
+			int line_no = shard.first_line;
+			int b;
+			while (position < shard.end && (b = stream.read()) >= 0) {
+				position++;
+				if (b == '\n') {
+					renderRecord(line.toByteArray(), line_no++,
+							report, listener, check_only);
+					line.reset();
+				} else {
+					line.write(b);
+				}
+			}
+			if (line.size() > 0) {
+				renderRecord(line.toByteArray(), line_no, report, listener,
+						check_only);
+			}
+		} finally {
+			file_stream.close();
+		}
+		report.addShard();
+		return report;
+	}
+
+	private void renderRecord(byte[] bytes, int line_no, BatchReport report,
+			BatchListener listener, boolean check_only) throws IOException {
+		String text;
+		try {
+			text = new String(bytes, "UTF-8").trim();
+		} catch (IOException e) {
+			text = "";
+		}
+		if (text.length() == 0) {
+			return;
+		}
+		String id = String.valueOf(line_no);
+		String entry = null;
+		String error = null;
+		try {
+			Object object = new JSONParser().parse(text);
+			if (!(object instanceof JSONObject)) {
+				throw new IOException("Record is not a JSON object.");
+			}
+			JSONObject json_object = (JSONObject) object;
+			if (json_object.get("id") != null) {
+				id = String.valueOf(json_object.get("id"));
+			}
+			if (id.length() == 0 || id.startsWith(".") ||
+					!id.matches("[^/\\\\\\p{Cntrl}]+")) {
+				throw new IOException("Invalid record id '" + id + "'");
+			}
+			TextParser parser = new TextParser(null,
+					new ByteArrayInputStream(bytes), null);
+			parser.setCompiledTemplate(template(json_object));
+			parser.setStaticBlockCache(static_cache);
+			parser.setIncludeDir(template_dir);
+			parser.setFragmentCache(fragment_cache);
+			parser.setTraceIds(null, id);
+			// 模板(包括片段)被修改后，已经完成的记录也要重新生成
+			String template_key = parser.templateKey();
+			if (check_only) {
+				check(parser, template_key, json_object);
+				report.succeed(id);
+				return;
+			}
+			if (journal != null && journal.isDone(id, bytes,
+					template_key, doc_type, outputFile(id))) {
+				report.skip(id);
+				if (listener != null) {
+					listener.recordSkipped(id);
+				}
+				return;
+			}
+			// HTML 表单不需要数据，只检查 PDF
+			if (validate && doc_type == TextParser.DOC_TYPE_PDF) {
+				check(parser, template_key, json_object);
+			}
+			byte[] output = parser.renderToBytes(doc_type);
+			entry = BatchJournal.entry(bytes, template_key, doc_type, output);
+			Util.writeFileAtomic(outputFile(id), output);
+			if (!parser.getDiagnostics().isEmpty()) {
+				report.warn(id, parser.getDiagnostics());
+			}
+		} catch (Exception e) {
+			error = e.toString();
+		}
+		if (error == null) {
+			report.succeed(id);
+		} else {
+			report.fail(id, error);
+		}
+		if (listener != null) {
+			listener.recordDone(id, entry, error);
+		}
+	}
+
+	/**
+	 * 按照模板清单检查记录，不合格时抛出异常，信息为所有的警告
+	 */
+	private void check(TextParser parser, String key, JSONObject json_object)
+			throws Exception {
+		// 清单的缓存键包括片段，片段被修改后重新生成
+		TemplateManifest manifest = manifests.get(key);
+		if (manifest == null) {
+			manifest = parser.compileManifest();
+			manifests.put(key, manifest);
+		}
+		Diagnostics diagnostics = manifest.check(json_object);
+		if (!diagnostics.isEmpty()) {
+			StringBuilder builder = new StringBuilder("Rejected:");
+			for (String message : diagnostics.getMessages()) {
+				builder.append(" ").append(message);
+			}
+			throw new IOException(builder.toString());
+		}
+	}
+
+	/**
+	 * 取得记录使用的模板，缓存到文件被修改为止
+	 */
+	private CompiledTemplate template(JSONObject json_object)
+			throws Exception {
+		File file = template;
+		Object value = json_object.get("template");
+		if (value instanceof String) {
+			file = new File((String) value);
+			if (!file.isAbsolute()) {
+				file = new File(template_dir, (String) value);
+			}
+		}
+		if (file == null) {
+			throw new IOException("No template for record.");
+		}
+		String path = file.getCanonicalPath();
+		CompiledTemplate compiled = templates.get(path);
+		if (compiled == null || !compiled.isCurrent(file)) {
+			compiled = CompiledTemplate.load(file);
+			templates.put(path, compiled);
+		}
+		return compiled;
+	}
+
+	/**
+	 * 记录的输出文件，先写入临时文件再改名为这个文件
+	 */
+	private File outputFile(String id) {
+		String suffix = doc_type == TextParser.DOC_TYPE_HTML ? ".html" : ".pdf";
+		return new File(out_dir, id + suffix);
+	}
+
+}
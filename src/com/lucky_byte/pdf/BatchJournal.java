@@ -0,0 +1,177 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 批量任务的检查点日志
+ *
+ * 每个成功的记录追加一行：id、输入行的 CRC32、模板(包括片段)的摘要、
+ * 输出类型、输出文件的 SHA-1 及长度，以制表符分隔。重新执行同一个批量
+ * 任务时，输入行、模板及输出类型没有变化，并且输出文件和日志一致的
+ * 记录被跳过；修改模板后重新执行时所有的记录都重新生成。日志最后
+ * 不完整的行(写日志时进程退出)被忽略，输出文件不完整或被修改时重新
+ * 生成。日志不需要每行同步到磁盘，因为跳过之前总是校验输出文件。
+ */
+class BatchJournal
+{
+	private File file;
+	private Map<String, String> entries = new HashMap<String, String>();
+	private OutputStream out_stream = null;
+
+	public BatchJournal(File file) throws IOException {
+		this.file = file;
+		if (!file.isFile()) {
+			return;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length == 6 && fields[4].length() == 40) {
+					entries.put(fields[0], line.substring(
+							fields[0].length() + 1));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * 日志中一个记录的内容(不包括 id)
+	 * @param input 输入行
+	 * @param template_key 模板摘要，参考 TextParser.templateKey()
+	 * @param doc_type 输出类型
+	 * @param output 输出文件内容
+	 * @return
+	 */
+	static String entry(byte[] input, String template_key, int doc_type,
+			byte[] output) {
+		return crc(input) + "\t" + template_key + "\t" + doc_type + "\t" +
+				sha1(output) + "\t" + output.length;
+	}
+
+	private static String crc(byte[] input) {
+		CRC32 crc = new CRC32();
+		crc.update(input);
+		return Long.toHexString(crc.getValue());
+	}
+
+	private static String sha1(byte[] bytes) {
+		try {
+			return Util.toHexString(
+					MessageDigest.getInstance("SHA-1").digest(bytes));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 记录是否已经完成：输入行、模板及输出类型和日志相同，输出文件的
+	 * 长度及摘要也和日志相同
+	 * @param id
+	 * @param input 输入行
+	 * @param template_key 模板摘要
+	 * @param doc_type 输出类型
+	 * @param output 输出文件
+	 * @return
+	 */
+	public boolean isDone(String id, byte[] input, String template_key,
+			int doc_type, File output) {
+		String entry = entries.get(id);
+		if (entry == null) {
+			return false;
+		}
+		String[] fields = entry.split("\t");
+		if (!fields[0].equals(crc(input)) ||
+				!fields[1].equals(template_key) ||
+				!fields[2].equals(String.valueOf(doc_type)) ||
+				!fields[4].equals(String.valueOf(output.length()))) {
+			return false;
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			InputStream stream = new FileInputStream(output);
+			try {
+				byte[] buffer = new byte[65536];
+				int count;
+				while ((count = stream.read(buffer)) > 0) {
+					digest.update(buffer, 0, count);
+				}
+			} finally {
+				stream.close();
+			}
+			return fields[3].equals(Util.toHexString(digest.digest()));
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 追加一个成功的记录
+	 * @param id
+	 * @param entry 参考 entry()
+	 * @throws IOException
+	 */
+	public synchronized void append(String id, String entry)
+			throws IOException {
+		if (out_stream == null) {
+			out_stream = new FileOutputStream(file, true);
+			// 上次的最后一行可能不完整，先换行
+			if (file.length() > 0) {
+				out_stream.write('\n');
+			}
+		}
+		entries.put(id, entry);
+		out_stream.write((id + "\t" + entry + "\n").getBytes("UTF-8"));
+		out_stream.flush();
+	}
+
+	public synchronized void close() throws IOException {
+		if (out_stream != null) {
+			out_stream.close();
+			out_stream = null;
+		}
+	}
+
+}
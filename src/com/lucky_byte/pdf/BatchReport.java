@@ -0,0 +1,195 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 批量生成的结果，多个分片的结果可以合并
+ */
+public class BatchReport
+{
+	private int succeeded = 0;
+	private int skipped = 0;
+	private int shards = 0;
+	private int retried_shards = 0;
+	private int lost_workers = 0;
+	private long elapsed = 0;
+	private Map<String, String> failures = new LinkedHashMap<String, String>();
+	private int warned = 0;
+	private Diagnostics warnings = new Diagnostics();
+
+	synchronized void succeed(String id) {
+		succeeded++;
+	}
+
+	synchronized void skip(String id) {
+		skipped++;
+	}
+
+	synchronized void fail(String id, String error) {
+		failures.put(id, error);
+	}
+
+	/**
+	 * 记录渲染时的警告，所有记录的警告合并保存
+	 */
+	synchronized void warn(String id, Diagnostics diagnostics) {
+		warned++;
+		warnings.merge(diagnostics);
+	}
+
+	/**
+	 * 工作进程传回的警告
+	 */
+	synchronized void addWarned(int records) {
+		warned += records;
+	}
+
+	synchronized void addWarning(String message, int count) {
+		warnings.add(message, count);
+	}
+
+	synchronized void addShard() {
+		shards++;
+	}
+
+	synchronized void addRetriedShard() {
+		retried_shards++;
+	}
+
+	synchronized void addLostWorker() {
+		lost_workers++;
+	}
+
+	synchronized void setElapsed(long elapsed) {
+		this.elapsed = elapsed;
+	}
+
+	/**
+	 * 合并另一个(分片的)结果
+	 * @param report
+	 */
+	public synchronized void merge(BatchReport report) {
+		synchronized (report) {
+			succeeded += report.succeeded;
+			skipped += report.skipped;
+			shards += report.shards;
+			retried_shards += report.retried_shards;
+			lost_workers += report.lost_workers;
+			failures.putAll(report.failures);
+			warned += report.warned;
+			warnings.merge(report.warnings);
+		}
+	}
+
+	public synchronized int getRecords() {
+		return succeeded + skipped + failures.size();
+	}
+
+	public synchronized int getSucceeded() {
+		return succeeded;
+	}
+
+	/**
+	 * 检查点日志中已经完成而跳过的记录数
+	 * @return
+	 */
+	public synchronized int getSkipped() {
+		return skipped;
+	}
+
+	public synchronized int getFailed() {
+		return failures.size();
+	}
+
+	/**
+	 * 失败的记录 id 及原因
+	 * @return
+	 */
+	public synchronized Map<String, String> getFailures() {
+		return Collections.unmodifiableMap(
+				new LinkedHashMap<String, String>(failures));
+	}
+
+	/**
+	 * 渲染时有警告的记录数
+	 * @return
+	 */
+	public synchronized int getWarned() {
+		return warned;
+	}
+
+	/**
+	 * 所有记录的警告，相同的信息合并计数
+	 * @return
+	 */
+	public synchronized Diagnostics getWarnings() {
+		Diagnostics copy = new Diagnostics();
+		copy.merge(warnings);
+		return copy;
+	}
+
+	public synchronized int getShards() {
+		return shards;
+	}
+
+	/**
+	 * 因为工作进程退出而重新分配的分片数
+	 * @return
+	 */
+	public synchronized int getRetriedShards() {
+		return retried_shards;
+	}
+
+	public synchronized int getLostWorkers() {
+		return lost_workers;
+	}
+
+	public synchronized long getElapsed() {
+		return elapsed;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("records: ").append(getRecords())
+			.append(", succeeded: ").append(succeeded)
+			.append(", skipped: ").append(skipped)
+			.append(", failed: ").append(failures.size())
+			.append(", warned: ").append(warned)
+			.append(", shards: ").append(shards)
+			.append(", retried shards: ").append(retried_shards)
+			.append(", lost workers: ").append(lost_workers)
+			.append(", elapsed: ").append(elapsed).append("ms\n");
+		for (Map.Entry<String, String> entry : failures.entrySet()) {
+			builder.append(entry.getKey()).append(": ")
+				.append(entry.getValue()).append('\n');
+		}
+		builder.append(warnings);
+		return builder.toString();
+	}
+
+}
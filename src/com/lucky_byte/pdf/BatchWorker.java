@@ -0,0 +1,97 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * 工作进程，从协调者取得分片并生成
+ */
+class BatchWorker
+{
+	/**
+	 * 参数为协调者的端口及 BatchJob.toArgs()，口令从标准输入读取
+	 */
+	static void main(String[] args) throws IOException {
+		BufferedReader stdin = new BufferedReader(
+				new InputStreamReader(System.in, "UTF-8"));
+		String token = stdin.readLine();
+		if (token == null) {
+			return;
+		}
+		BatchJob job = BatchJob.fromArgs(args, 1);
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+				Integer.parseInt(args[0]));
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), "UTF-8"));
+			final PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+					socket.getOutputStream(), "UTF-8"));
+			writer.print(token + "\n");
+			writer.flush();
+
+			String line;
+			while ((line = reader.readLine()) != null &&
+					line.startsWith("SHARD ")) {
+				String[] fields = line.split(" ");
+				BatchShard shard = new BatchShard(Integer.parseInt(fields[1]),
+						Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+						Integer.parseInt(fields[4]));
+				BatchReport report = job.render(shard, new BatchListener() {
+					@Override
+					public void recordDone(String id, String entry,
+							String error) {
+						if (error == null) {
+							writer.print("OK " + id + "\t" + entry + "\n");
+						} else {
+							writer.print("FAIL " + id + "\t" +
+									error.replaceAll("[\r\n]+", " ") + "\n");
+						}
+					}
+
+					@Override
+					public void recordSkipped(String id) {
+						writer.print("SKIP " + id + "\n");
+					}
+				});
+				// 警告合并后传回，不在每个工作进程中输出到 stderr
+				Diagnostics warnings = report.getWarnings();
+				writer.print("WARNED " + report.getWarned() + "\n");
+				for (String message : warnings.getMessages()) {
+					writer.print("WARN " + warnings.getCount(message) + "\t" +
+							message.replaceAll("[\r\n\t]+", " ") + "\n");
+				}
+				writer.print("DONE " + shard.index + "\n");
+				writer.flush();
+			}
+		} finally {
+			socket.close();
+		}
+	}
+}
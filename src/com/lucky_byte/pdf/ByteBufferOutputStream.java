@@ -0,0 +1,148 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 输出到可增长的 ByteBuffer
+ *
+ * 和 ByteArrayOutputStream 不同，这个类可以通过 reset() 重复使用，
+ * 缓冲区在多次渲染之间保留(参考 ByteBufferPool)，并且可以不经复制
+ * 直接以 ByteBuffer 的形式取得内容，或写入 NIO 通道。
+ */
+public class ByteBufferOutputStream extends OutputStream
+{
+	private ByteBuffer buffer;
+
+	public ByteBufferOutputStream() {
+		this(64 * 1024);
+	}
+
+	public ByteBufferOutputStream(int capacity) {
+		buffer = ByteBuffer.allocate(Math.max(capacity, 16));
+	}
+
+	private void ensure(int length) {
+		if (buffer.remaining() >= length) {
+			return;
+		}
+		int capacity = Math.max(buffer.capacity() * 2,
+				buffer.position() + length);
+		if (capacity < 0) {	// 溢出
+			throw new OutOfMemoryError("Output buffer too large.");
+		}
+		ByteBuffer new_buffer = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		new_buffer.put(buffer);
+		buffer = new_buffer;
+	}
+
+	@Override
+	public void write(int b) {
+		ensure(1);
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) {
+		ensure(length);
+		buffer.put(bytes, offset, length);
+	}
+
+	/**
+	 * 清空内容，保留缓冲区以便重用
+	 */
+	public void reset() {
+		buffer.clear();
+	}
+
+	/**
+	 * 内容的长度
+	 * @return
+	 */
+	public int size() {
+		return buffer.position();
+	}
+
+	/**
+	 * 缓冲区的容量
+	 * @return
+	 */
+	public int capacity() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * 以只读 ByteBuffer 的形式返回内容，不复制数据，
+	 * 在下一次 reset() 或 write() 之前有效
+	 * @return
+	 */
+	public ByteBuffer toByteBuffer() {
+		ByteBuffer view = buffer.duplicate();
+		view.flip();
+		return view.asReadOnlyBuffer();
+	}
+
+	/**
+	 * 复制内容到一个新的数组
+	 * @return
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[buffer.position()];
+		System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * 将内容写入通道
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		ByteBuffer view = toByteBuffer();
+		while (view.hasRemaining()) {
+			channel.write(view);
+		}
+	}
+
+	/**
+	 * 将内容写入输出流
+	 * @param out_stream
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out_stream) throws IOException {
+		out_stream.write(buffer.array(), 0, buffer.position());
+	}
+
+	/**
+	 * PdfWriter 结束时会关闭输出流，这里什么也不做，内容仍然有效
+	 */
+	@Override
+	public void close() {
+	}
+
+}
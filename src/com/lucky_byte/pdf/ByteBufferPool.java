@@ -0,0 +1,103 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ByteBufferOutputStream 对象池
+ *
+ * 渲染到内存时，重复使用已经增长到合适大小的缓冲区，避免每次渲染都
+ * 重新分配并多次复制(ByteArrayOutputStream 增长时每次都要复制)。
+ * 过大的缓冲区不会放回池中，以免长期占用内存。
+ */
+public class ByteBufferPool
+{
+	private static ByteBufferPool default_pool =
+			new ByteBufferPool(32, 16 * 1024 * 1024);
+
+	private final int max_buffers;
+	private final int max_capacity;
+	private ConcurrentLinkedQueue<ByteBufferOutputStream> buffers;
+	private AtomicInteger count;
+
+	/**
+	 * @param max_buffers 池中最多保留的缓冲区数量
+	 * @param max_capacity 超过这个容量的缓冲区不放回池中
+	 */
+	public ByteBufferPool(int max_buffers, int max_capacity) {
+		this.max_buffers = max_buffers;
+		this.max_capacity = max_capacity;
+		this.buffers = new ConcurrentLinkedQueue<ByteBufferOutputStream>();
+		this.count = new AtomicInteger();
+	}
+
+	/**
+	 * TextParser.renderToBytes() 使用的默认对象池
+	 * @return
+	 */
+	public static ByteBufferPool getDefault() {
+		return default_pool;
+	}
+
+	/**
+	 * 取得一个空的缓冲区，用完后应该调用 release() 放回
+	 * @return
+	 */
+	public ByteBufferOutputStream acquire() {
+		ByteBufferOutputStream buffer = buffers.poll();
+		Metrics.cache("buffer_pool", buffer != null);
+		if (buffer == null) {
+			return new ByteBufferOutputStream();
+		}
+		count.decrementAndGet();
+		buffer.reset();
+		return buffer;
+	}
+
+	/**
+	 * 放回缓冲区，之后不能再使用它及其 toByteBuffer() 的结果
+	 * @param buffer
+	 */
+	public void release(ByteBufferOutputStream buffer) {
+		if (buffer == null || buffer.capacity() > max_capacity) {
+			return;
+		}
+		if (count.incrementAndGet() > max_buffers) {
+			count.decrementAndGet();
+			return;
+		}
+		buffer.reset();
+		buffers.offer(buffer);
+	}
+
+	/**
+	 * 池中空闲的缓冲区数量
+	 * @return
+	 */
+	public int size() {
+		return count.get();
+	}
+
+}
@@ -0,0 +1,533 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * 编译后的模板
+ *
+ * 保存解析 XML 模板得到的事件序列，可以直接重放给 TextParser，不需要再
+ * 经过 SAX 解析。字符串和属性集合(样式表)都只保存一份，同时保存模板中
+ * 所有值的 id。编译结果可以写入模板旁边的 .tpc 文件，下次启动时通过
+ * 一次内存映射读入，模板文件修改(长度或修改时间变化)后自动重新编译，
+ * 参考 load() 及 TextParser.setCompiledTemplate()。
+ *
+ * 文件格式(大端)：
+ *   "TPDC" 版本(int) 模板长度(long) 模板修改时间(long) 模板摘要(20 字节)
+ *   字符串表：数量(int)，每个为长度(int)及 UTF-8 字节
+ *   属性集合表：数量(int)，每个为属性数量(int)及名称、值的字符串序号
+ *   值 id 表：数量(int)，每个为字符串序号
+ *   片段表：数量(int)，每个为 include 元素 src 属性的字符串序号
+ *   事件：数量(int)，每个为类型(byte)及参数
+ *     START 元素名、属性集合序号；END 元素名、行、列；TEXT 字符串序号
+ */
+public class CompiledTemplate
+{
+	static final public String SUFFIX = ".tpc";
+
+	static final private int MAGIC = 0x54504443;	// "TPDC"
+	static final private int VERSION = 3;
+	static final byte EVENT_START = 1;
+	static final byte EVENT_END = 2;
+	static final byte EVENT_TEXT = 3;
+
+	private long source_length;
+	private long source_modified;
+	private byte[] digest;
+	private String[] strings;
+	private char[][] texts;
+	private Attributes[] attr_sets;
+	private List<String> value_ids;
+	private List<String> includes;
+	private int[] events;		// 每个事件 4 个整数：类型及参数
+
+	private CompiledTemplate() {
+	}
+
+	/**
+	 * 编译模板
+	 * @param xml_bytes 模板内容
+	 * @return
+	 * @throws Exception
+	 */
+	public static CompiledTemplate compile(byte[] xml_bytes) throws Exception {
+		TemplateRecorder recorder = new TemplateRecorder();
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(false);
+		SAXParser parser = factory.newSAXParser();
+		parser.parse(new java.io.ByteArrayInputStream(xml_bytes), recorder);
+
+		CompiledTemplate template = new CompiledTemplate();
+		template.source_length = xml_bytes.length;
+		template.digest = MessageDigest.getInstance("SHA-1").digest(xml_bytes);
+		template.strings = recorder.strings.toArray(new String[0]);
+		template.value_ids = new ArrayList<String>();
+		for (int index : recorder.value_ids) {
+			template.value_ids.add(template.strings[index]);
+		}
+		template.includes = new ArrayList<String>();
+		for (int index : recorder.includes) {
+			template.includes.add(template.strings[index]);
+		}
+		template.events = recorder.toEvents();
+		template.buildAttrSets(recorder.attr_sets);
+		template.buildTexts();
+		return template;
+	}
+
+	/**
+	 * 读取模板文件旁边的编译结果，不存在或已过期时重新编译并保存
+	 * (保存失败时忽略，例如目录没有写权限)
+	 * @param xml_file 模板文件
+	 * @return
+	 * @throws Exception
+	 */
+	public static CompiledTemplate load(File xml_file) throws Exception {
+		File tpc_file = new File(xml_file.getPath() + SUFFIX);
+		if (tpc_file.isFile()) {
+			try {
+				CompiledTemplate template = read(tpc_file);
+				if (template.isCurrent(xml_file)) {
+					return template;
+				}
+			} catch (IOException e) {
+				// 文件损坏或版本不同，重新编译
+			}
+		}
+		// 在读取之前取得长度及修改时间，读取时文件被修改的话，
+		// 下次检查时会发现不一致而重新编译
+		long length = xml_file.length();
+		long modified = xml_file.lastModified();
+		byte[] xml_bytes;
+		InputStream stream = new FileInputStream(xml_file);
+		try {
+			xml_bytes = Util.readStream(stream);
+		} finally {
+			stream.close();
+		}
+		CompiledTemplate template = compile(xml_bytes);
+		template.source_length = length;
+		template.source_modified = modified;
+		try {
+			template.write(tpc_file);
+		} catch (IOException e) {
+		}
+		return template;
+	}
+
+	/**
+	 * 编译结果是否和模板文件一致
+	 * @param xml_file
+	 * @return
+	 */
+	public boolean isCurrent(File xml_file) {
+		return xml_file.length() == source_length &&
+				xml_file.lastModified() == source_modified;
+	}
+
+	/**
+	 * 模板内容的 SHA-1 摘要
+	 * @return
+	 */
+	public byte[] getDigest() {
+		return digest;
+	}
+
+	/**
+	 * 模板中所有值的 id，按出现的次序，不重复
+	 * @return
+	 */
+	public List<String> getValueIds() {
+		return Collections.unmodifiableList(value_ids);
+	}
+
+	/**
+	 * 模板中 include 元素引用的片段，按出现的次序，不重复，
+	 * 不包括片段中引用的片段
+	 * @return
+	 */
+	public List<String> getIncludes() {
+		return Collections.unmodifiableList(includes);
+	}
+
+	private void buildAttrSets(List<int[]> sets) {
+		attr_sets = new Attributes[sets.size()];
+		for (int i = 0; i < attr_sets.length; i++) {
+			int[] set = sets.get(i);
+			AttributesImpl attrs = new AttributesImpl();
+			for (int j = 0; j < set.length; j += 2) {
+				String name = strings[set[j]];
+				attrs.addAttribute("", name, name, "CDATA",
+						strings[set[j + 1]]);
+			}
+			attr_sets[i] = attrs;
+		}
+	}
+
+	private void buildTexts() {
+		texts = new char[strings.length][];
+		for (int i = 0; i < events.length; i += 4) {
+			if (events[i] == EVENT_TEXT && texts[events[i + 1]] == null) {
+				texts[events[i + 1]] = strings[events[i + 1]].toCharArray();
+			}
+		}
+	}
+
+	/**
+	 * 将事件重放给 handler，和 SAX 解析模板的结果相同
+	 * @param handler
+	 * @throws SAXException
+	 */
+	public void replay(ContentHandler handler) throws SAXException {
+		TemplateLocator locator = new TemplateLocator();
+		handler.setDocumentLocator(locator);
+		handler.startDocument();
+		for (int i = 0; i < events.length; i += 4) {
+			switch (events[i]) {
+			case EVENT_START:
+				String name = strings[events[i + 1]];
+				handler.startElement("", name, name,
+						attr_sets[events[i + 2]]);
+				break;
+			case EVENT_END:
+				name = strings[events[i + 1]];
+				locator.line = events[i + 2];
+				locator.column = events[i + 3];
+				handler.endElement("", name, name);
+				break;
+			case EVENT_TEXT:
+				char[] chars = texts[events[i + 1]];
+				handler.characters(chars, 0, chars.length);
+				break;
+			}
+		}
+		handler.endDocument();
+	}
+
+	/**
+	 * 将根元素中的内容(不包括根元素)重放给 handler，用于 include 片段，
+	 * 不产生文档开始及结束事件
+	 * @param handler
+	 * @param locator 重放时更新的位置
+	 * @throws SAXException
+	 */
+	void replayContent(ContentHandler handler, TemplateLocator locator)
+			throws SAXException {
+		for (int i = 4; i < events.length - 4; i += 4) {
+			switch (events[i]) {
+			case EVENT_START:
+				String name = strings[events[i + 1]];
+				handler.startElement("", name, name,
+						attr_sets[events[i + 2]]);
+				break;
+			case EVENT_END:
+				name = strings[events[i + 1]];
+				locator.line = events[i + 2];
+				locator.column = events[i + 3];
+				handler.endElement("", name, name);
+				break;
+			case EVENT_TEXT:
+				char[] chars = texts[events[i + 1]];
+				handler.characters(chars, 0, chars.length);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * 保存编译结果，先写入临时文件再改名
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		ByteArrayOutputStream byte_stream = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(byte_stream);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(source_length);
+		out.writeLong(source_modified);
+		out.write(digest);
+
+		out.writeInt(strings.length);
+		for (String string : strings) {
+			byte[] bytes = string.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		// 属性集合按照名称、值的字符串序号保存
+		Map<String, Integer> string_index = new HashMap<String, Integer>();
+		for (int i = 0; i < strings.length; i++) {
+			string_index.put(strings[i], i);
+		}
+		out.writeInt(attr_sets.length);
+		for (Attributes attrs : attr_sets) {
+			out.writeInt(attrs.getLength());
+			for (int i = 0; i < attrs.getLength(); i++) {
+				out.writeInt(string_index.get(attrs.getQName(i)));
+				out.writeInt(string_index.get(attrs.getValue(i)));
+			}
+		}
+		out.writeInt(value_ids.size());
+		for (String id : value_ids) {
+			out.writeInt(string_index.get(id));
+		}
+		out.writeInt(includes.size());
+		for (String src : includes) {
+			out.writeInt(string_index.get(src));
+		}
+		out.writeInt(events.length / 4);
+		for (int i = 0; i < events.length; i += 4) {
+			out.writeByte(events[i]);
+			out.writeInt(events[i + 1]);
+			if (events[i] == EVENT_START) {
+				out.writeInt(events[i + 2]);
+			} else if (events[i] == EVENT_END) {
+				out.writeInt(events[i + 2]);
+				out.writeInt(events[i + 3]);
+			}
+		}
+		out.flush();
+
+		File tmp_file = new File(file.getPath() + "." +
+				Thread.currentThread().getId() + ".tmp");
+		Files.write(tmp_file.toPath(), byte_stream.toByteArray());
+		try {
+			Files.move(tmp_file.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp_file.delete();
+		}
+	}
+
+	/**
+	 * 通过内存映射读取编译结果
+	 * @param file
+	 * @return
+	 * @throws IOException 格式错误或版本不同
+	 */
+	public static CompiledTemplate read(File file) throws IOException {
+		RandomAccessFile random_file = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = random_file.getChannel();
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return read(buffer);
+		} catch (RuntimeException e) {
+			// 文件被截断等情况
+			throw new IOException("Invalid compiled template " + file, e);
+		} finally {
+			random_file.close();
+		}
+	}
+
+	private static CompiledTemplate read(ByteBuffer buffer)
+			throws IOException {
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+			throw new IOException("Compiled template version mismatch.");
+		}
+		CompiledTemplate template = new CompiledTemplate();
+		template.source_length = buffer.getLong();
+		template.source_modified = buffer.getLong();
+		template.digest = new byte[20];
+		buffer.get(template.digest);
+
+		template.strings = new String[buffer.getInt()];
+		for (int i = 0; i < template.strings.length; i++) {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			template.strings[i] = new String(bytes, "UTF-8");
+		}
+		List<int[]> attr_sets = new ArrayList<int[]>();
+		int count = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			int[] set = new int[buffer.getInt() * 2];
+			for (int j = 0; j < set.length; j++) {
+				set[j] = buffer.getInt();
+			}
+			attr_sets.add(set);
+		}
+		template.value_ids = new ArrayList<String>();
+		count = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			template.value_ids.add(template.strings[buffer.getInt()]);
+		}
+		template.includes = new ArrayList<String>();
+		count = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			template.includes.add(template.strings[buffer.getInt()]);
+		}
+		template.events = new int[buffer.getInt() * 4];
+		for (int i = 0; i < template.events.length; i += 4) {
+			byte type = buffer.get();
+			template.events[i] = type;
+			template.events[i + 1] = buffer.getInt();
+			if (type == EVENT_START) {
+				template.events[i + 2] = buffer.getInt();
+			} else if (type == EVENT_END) {
+				template.events[i + 2] = buffer.getInt();
+				template.events[i + 3] = buffer.getInt();
+			} else if (type != EVENT_TEXT) {
+				throw new IOException("Invalid compiled template event.");
+			}
+		}
+		template.buildAttrSets(attr_sets);
+		template.buildTexts();
+		return template;
+	}
+
+}
+
+
+/**
+ * 编译模板时记录 SAX 事件
+ */
+class TemplateRecorder extends DefaultHandler
+{
+	List<String> strings = new ArrayList<String>();
+	List<int[]> attr_sets = new ArrayList<int[]>();
+	List<Integer> value_ids = new ArrayList<Integer>();
+	List<Integer> includes = new ArrayList<Integer>();
+
+	private Set<Integer> value_id_set = new HashSet<Integer>();
+	private Set<Integer> include_set = new HashSet<Integer>();
+	private Map<String, Integer> string_index = new HashMap<String, Integer>();
+	private Map<List<Integer>, Integer> attr_index =
+			new HashMap<List<Integer>, Integer>();
+	private List<int[]> events = new ArrayList<int[]>();
+	private Locator locator;
+
+	private int intern(String string) {
+		Integer index = string_index.get(string);
+		if (index == null) {
+			index = strings.size();
+			strings.add(string);
+			string_index.put(string, index);
+		}
+		return index;
+	}
+
+	private int internAttrs(Attributes attrs) {
+		Integer[] set = new Integer[attrs.getLength() * 2];
+		for (int i = 0; i < attrs.getLength(); i++) {
+			set[i * 2] = intern(attrs.getQName(i));
+			set[i * 2 + 1] = intern(attrs.getValue(i));
+		}
+		List<Integer> key = Arrays.asList(set);
+		Integer index = attr_index.get(key);
+		if (index == null) {
+			index = attr_sets.size();
+			int[] values = new int[set.length];
+			for (int i = 0; i < set.length; i++) {
+				values[i] = set[i];
+			}
+			attr_sets.add(values);
+			attr_index.put(key, index);
+		}
+		return index;
+	}
+
+	int[] toEvents() {
+		int[] array = new int[events.size() * 4];
+		for (int i = 0; i < events.size(); i++) {
+			System.arraycopy(events.get(i), 0, array, i * 4, 4);
+		}
+		return array;
+	}
+
+	@Override
+	public void setDocumentLocator(Locator locator) {
+		this.locator = locator;
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName,
+			Attributes attrs) throws SAXException {
+		events.add(new int[] { CompiledTemplate.EVENT_START, intern(qName),
+				internAttrs(attrs), 0 });
+		if (qName.equalsIgnoreCase("value")) {
+			String id = attrs.getValue("id");
+			if (id != null && value_id_set.add(intern(id))) {
+				value_ids.add(intern(id));
+			}
+		} else if (qName.equalsIgnoreCase("include")) {
+			String src = attrs.getValue("src");
+			if (src != null && include_set.add(intern(src))) {
+				includes.add(intern(src));
+			}
+		}
+	}
+
+	@Override
+	public void endElement(String uri, String localName, String qName)
+			throws SAXException {
+		int line = locator == null ? 0 : locator.getLineNumber();
+		int column = locator == null ? 0 : locator.getColumnNumber();
+		events.add(new int[] { CompiledTemplate.EVENT_END, intern(qName),
+				line, column });
+	}
+
+	/**
+	 * 每次回调记录为一个事件，不合并相邻的字符事件。TextDocHandler 分别
+	 * 处理每一段(例如 "a &amp; b" 分为 "a "、"&amp;"、" b" 三段，各自去掉
+	 * 首尾的空白)，合并后的结果和解析 XML 不同
+	 */
+	@Override
+	public void characters(char[] ch, int start, int length)
+			throws SAXException {
+		if (length > 0) {
+			events.add(new int[] { CompiledTemplate.EVENT_TEXT,
+					intern(new String(ch, start, length)), 0, 0 });
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * 压缩输出流，输出 gzip 或 deflate(zlib) 格式
+ *
+ * 和 GZIPOutputStream 不同的是，这个类可以在动态内容中插入预先压缩好的
+ * 静态内容(例如 HTML 的文档头和文档尾)，输出仍然是一个完整的压缩流。
+ * 原理是：每段静态内容单独压缩并以 SYNC_FLUSH 结束(字节对齐，且没有
+ * 结束标志)，插入静态内容之前对动态内容做 SYNC_FLUSH，插入之后重置压缩器，
+ * 这样前后的数据之间没有相互引用，直接拼接即可，校验和仍然按原始数据计算。
+ */
+public class CompressOutputStream extends OutputStream
+{
+	public static final int GZIP = 1;
+	public static final int DEFLATE = 2;
+
+	// 静态内容只压缩一次，以内容和编码为键
+	private static final int MAX_SECTIONS = 1024;
+	private static Map<String, byte[]> sections =
+			new ConcurrentHashMap<String, byte[]>();
+
+	private OutputStream out_stream;
+	private int format;
+	private Deflater deflater;
+	private Checksum checksum;
+	private long total = 0;
+	private boolean dirty = false;
+	private boolean finished = false;
+	private byte[] buffer = new byte[8192];
+
+	public CompressOutputStream(OutputStream out_stream, int format)
+			throws IOException {
+		this.out_stream = out_stream;
+		this.format = format;
+		this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+		switch (format) {
+		case GZIP:
+			checksum = new CRC32();
+			out_stream.write(new byte[] {
+					0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff
+			});
+			break;
+		case DEFLATE:
+			checksum = new Adler32();
+			out_stream.write(new byte[] { 0x78, (byte) 0x9c });
+			break;
+		default:
+			throw new IllegalArgumentException(
+					"Compress format " + format + " unsupported.");
+		}
+	}
+
+	/**
+	 * 将一段静态内容压缩为以 SYNC_FLUSH 结束的 deflate 数据
+	 * @param raw 原始数据
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public static byte[] precompress(byte[] raw, int offset, int length) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		ByteArrayOutputStream stream =
+				new ByteArrayOutputStream(length / 2 + 64);
+		byte[] buffer = new byte[8192];
+		try {
+			deflater.setInput(raw, offset, length);
+			int n;
+			do {
+				n = deflater.deflate(buffer, 0, buffer.length,
+						Deflater.SYNC_FLUSH);
+				stream.write(buffer, 0, n);
+			} while (n == buffer.length);
+		} finally {
+			deflater.end();
+		}
+		return stream.toByteArray();
+	}
+
+	private void drain(int flush) throws IOException {
+		int n;
+		do {
+			n = deflater.deflate(buffer, 0, buffer.length, flush);
+			out_stream.write(buffer, 0, n);
+		} while (n == buffer.length);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length)
+			throws IOException {
+		if (finished) {
+			throw new IOException("Compress stream already finished.");
+		}
+		if (length == 0) {
+			return;
+		}
+		long start = Metrics.start();
+		checksum.update(bytes, offset, length);
+		total += length;
+		deflater.setInput(bytes, offset, length);
+		while (!deflater.needsInput()) {
+			drain(Deflater.NO_FLUSH);
+		}
+		dirty = true;
+		Metrics.end(RenderMetrics.PHASE_COMPRESS, start);
+	}
+
+	/**
+	 * 插入一段预先压缩的内容
+	 * @param raw 原始数据，用于计算校验和
+	 * @param offset
+	 * @param length
+	 * @param deflated precompress() 的结果
+	 * @throws IOException
+	 */
+	public void writeStatic(byte[] raw, int offset, int length,
+			byte[] deflated) throws IOException {
+		if (finished) {
+			throw new IOException("Compress stream already finished.");
+		}
+		long start = Metrics.start();
+		if (dirty) {
+			drain(Deflater.SYNC_FLUSH);
+			deflater.reset();
+			dirty = false;
+		}
+		out_stream.write(deflated);
+		checksum.update(raw, offset, length);
+		total += length;
+		Metrics.end(RenderMetrics.PHASE_COMPRESS, start);
+	}
+
+	/**
+	 * 插入一段静态文本，压缩结果会被缓存，下次直接使用
+	 * @param text
+	 * @param encoding
+	 * @throws IOException
+	 */
+	public void writeStatic(String text, String encoding)
+			throws IOException {
+		byte[] raw = text.getBytes(encoding);
+		String key = encoding + "\0" + text;
+		byte[] deflated = sections.get(key);
+		if (deflated == null) {
+			deflated = precompress(raw, 0, raw.length);
+			if (sections.size() >= MAX_SECTIONS) {
+				sections.clear();
+			}
+			sections.put(key, deflated);
+		}
+		writeStatic(raw, 0, raw.length, deflated);
+	}
+
+	/**
+	 * 结束压缩，写入校验和，但不关闭下层的输出流
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		long start = Metrics.start();
+		try {
+			deflater.finish();
+			while (!deflater.finished()) {
+				drain(Deflater.NO_FLUSH);
+			}
+		} finally {
+			deflater.end();
+		}
+		Metrics.end(RenderMetrics.PHASE_COMPRESS, start);
+		long sum = checksum.getValue();
+		if (format == GZIP) {
+			out_stream.write(new byte[] {
+					(byte) sum, (byte) (sum >> 8),
+					(byte) (sum >> 16), (byte) (sum >> 24),
+					(byte) total, (byte) (total >> 8),
+					(byte) (total >> 16), (byte) (total >> 24),
+			});
+		} else {
+			out_stream.write(new byte[] {
+					(byte) (sum >> 24), (byte) (sum >> 16),
+					(byte) (sum >> 8), (byte) sum,
+			});
+		}
+		out_stream.flush();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out_stream.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		out_stream.close();
+	}
+
+}
@@ -0,0 +1,175 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一次渲染的诊断报告
+ *
+ * 渲染过程中的警告不再输出到 System.err(多线程渲染时会在 stderr 上竞争)，
+ * 而是收集到这个对象中，相同的信息只保存一次并计数。
+ * 这个对象属于一次渲染，不是线程安全的。
+ */
+public class Diagnostics
+{
+	// 最多保存的不同信息数量，超过后只计数
+	public static final int MAX_MESSAGES = 256;
+
+	private Map<String, Integer> messages;
+	private DiagnosticListener listener;
+	private int total = 0;
+	private int dropped = 0;
+
+	public Diagnostics() {
+		this(null);
+	}
+
+	public Diagnostics(DiagnosticListener listener) {
+		this.messages = new LinkedHashMap<String, Integer>();
+		this.listener = listener;
+	}
+
+	public void setListener(DiagnosticListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * 增加一条警告
+	 * @param message
+	 */
+	public void warn(String message) {
+		total++;
+		Integer count = messages.get(message);
+		int n = count == null ? 1 : count + 1;
+		if (count != null || messages.size() < MAX_MESSAGES) {
+			messages.put(message, n);
+		} else {
+			dropped++;
+		}
+		if (listener != null) {
+			listener.onDiagnostic(message, n);
+		}
+	}
+
+	/**
+	 * 增加出现 count 次的信息(不会通知监听者)，用于从其它进程传回的报告
+	 * @param message
+	 * @param count
+	 */
+	void add(String message, int count) {
+		total += count;
+		Integer current = messages.get(message);
+		if (current != null) {
+			messages.put(message, current + count);
+		} else if (messages.size() < MAX_MESSAGES) {
+			messages.put(message, count);
+		} else {
+			dropped += count;
+		}
+	}
+
+	/**
+	 * 合并另一个报告中的信息(不会通知监听者)
+	 * @param other
+	 */
+	public void merge(Diagnostics other) {
+		if (other == null || other == this) {
+			return;
+		}
+		for (Map.Entry<String, Integer> entry : other.messages.entrySet()) {
+			Integer count = messages.get(entry.getKey());
+			if (count != null) {
+				messages.put(entry.getKey(), count + entry.getValue());
+			} else if (messages.size() < MAX_MESSAGES) {
+				messages.put(entry.getKey(), entry.getValue());
+			} else {
+				dropped += entry.getValue();
+			}
+		}
+		total += other.total;
+		dropped += other.dropped;
+	}
+
+	/**
+	 * 是否没有任何警告
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return total == 0;
+	}
+
+	/**
+	 * 所有警告的总数(包括重复的)
+	 * @return
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * 超出 MAX_MESSAGES 而没有保存的信息数量
+	 * @return
+	 */
+	public int getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * 去重后的信息，按第一次出现的顺序排列
+	 * @return
+	 */
+	public List<String> getMessages() {
+		return new ArrayList<String>(messages.keySet());
+	}
+
+	/**
+	 * 某条信息出现的次数
+	 * @param message
+	 * @return
+	 */
+	public int getCount(String message) {
+		Integer count = messages.get(message);
+		return count == null ? 0 : count;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, Integer> entry : messages.entrySet()) {
+			builder.append(entry.getKey());
+			if (entry.getValue() > 1) {
+				builder.append(" (x").append(entry.getValue()).append(")");
+			}
+			builder.append("\n");
+		}
+		if (dropped > 0) {
+			builder.append("... and " + dropped + " more\n");
+		}
+		return builder.toString();
+	}
+
+}
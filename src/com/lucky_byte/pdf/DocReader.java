@@ -34,20 +34,29 @@ import org.apache.poi.hwpf.usermodel.CharacterRun;
 import org.apache.poi.hwpf.usermodel.Paragraph;
 import org.apache.poi.hwpf.usermodel.Range;
 import org.apache.poi.hwpf.usermodel.Table;
-import org.apache.poi.hwpf.usermodel.TableCell;
 import org.apache.poi.hwpf.usermodel.TableRow;
 import org.json.simple.JSONObject;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * 读取 .doc 文件，并转换为 TextPDF 可识别的模板格式
+ *
+ * DocReader 不直接拼接 XML 文本，而是产生模板的 SAX 事件，这些事件可以
+ * 直接交给 TextParser 生成 PDF/HTML(不需要中间 XML 文件)，也可以交给
+ * DocXMLWriter 输出 XML 模板。
  */
 public class DocReader
 {
-	private URL xsl_url = null;
-	private boolean auto_title = false;
-	private boolean ignore_blank_para = false;
-	private Map<String, Object> json_object;
-	private Map<String, String> json_data;
+	URL xsl_url = null;
+	boolean auto_title = false;
+	boolean ignore_blank_para = false;
+	Map<String, Object> json_object;
+	Map<String, String> json_data;
+	Diagnostics diagnostics = new Diagnostics();
 
 	/**
 	 * 如果指定，将在文件中增加 XSL 风格页的引用
@@ -73,6 +82,18 @@ public class DocReader
 		this.ignore_blank_para = ignore;
 	}
 
+	/**
+	 * 设置诊断报告，转换过程中的警告信息收集到这个对象中
+	 * @param diagnostics
+	 */
+	public void setDiagnostics(Diagnostics diagnostics) {
+		this.diagnostics = diagnostics;
+	}
+
+	public Diagnostics getDiagnostics() {
+		return diagnostics;
+	}
+
 	private int getTitleIndex(Range range) {
 		int index = 0;
 		int max_font_size = 0;
@@ -104,20 +125,24 @@ public class DocReader
 		return index;
 	}
 
-	private void appendParaAttrs(StringBuilder builder, Paragraph para) {
+	void addAttr(AttributesImpl attrs, String name, String value) {
+		attrs.addAttribute("", name, name, "CDATA", value);
+	}
+
+	private void addParaAttrs(AttributesImpl attrs, Paragraph para) {
 		switch(para.getJustification()) {
 		case 1:
-			builder.append(" align=\"center\"");
+			addAttr(attrs, "align", "center");
 			break;
 		case 2:
-			builder.append(" align=\"right\"");
+			addAttr(attrs, "align", "right");
 			break;
 		case 3:	// left 对齐是默认的，不写入模板中
 			break;
 		}
 	}
 
-	private void appendRunAttrs(StringBuilder builder,
+	private void addRunAttrs(AttributesImpl attrs,
 			CharacterRun run, boolean is_span) {
 		StringBuilder style = new StringBuilder();
 
@@ -134,30 +159,70 @@ public class DocReader
 				style.append("underline");
 			}
 			if (style.length() > 0) {
-				builder.append(" font-style=\"" + style + "\"");
+				addAttr(attrs, "font-style", style.toString());
 			}
 		}
+		addAttr(attrs, "font-size",
+				String.valueOf((int)(run.getFontSize() / 2)));
+	}
 
-		builder.append(" font-size=\"");
-		builder.append((int)(run.getFontSize() / 2));
-		builder.append("\"");
+	void emptyElement(ContentHandler handler, String name,
+			Attributes attrs) throws SAXException {
+		handler.startElement("", name, name, attrs);
+		handler.endElement("", name, name);
 	}
 
-	private String textEscape(String text) {
-		StringBuilder builder = new StringBuilder();
-		for (int i = 0; i < text.length(); i++) {
-			String escape = Util.escapeXMLChars(text.charAt(i));
-			if (escape != null) {
-				builder.append(escape);
-			} else {
-				builder.append(text.charAt(i));
-			}
+	void textElement(ContentHandler handler, String name,
+			Attributes attrs, String text) throws SAXException {
+		handler.startElement("", name, name, attrs);
+		handler.characters(text.toCharArray(), 0, text.length());
+		handler.endElement("", name, name);
+	}
+
+	/**
+	 * 输出 &lt;value&gt; 元素，并在 JSON 数据模板中记录这个 id
+	 */
+	void emitValue(ContentHandler handler, Attributes style_attrs,
+			String vid, String text) throws SAXException {
+		AttributesImpl attrs = new AttributesImpl();
+		addAttr(attrs, "id", vid);
+		addAttr(attrs, "minlen", String.valueOf(text.length()));
+		for (int i = 0; i < style_attrs.getLength(); i++) {
+			addAttr(attrs, style_attrs.getQName(i), style_attrs.getValue(i));
+		}
+		emptyElement(handler, "value", attrs);
+		if (json_data != null) {
+			json_data.put(vid, "");
+		}
+	}
+
+	private void emitValue(ContentHandler handler, CharacterRun run,
+			String vid, String text) throws SAXException {
+		AttributesImpl attrs = new AttributesImpl();
+		addRunAttrs(attrs, run, false);
+		emitValue(handler, attrs, vid, text);
+	}
+
+	/**
+	 * 模板开始，包括 XSL 引用以及根元素
+	 */
+	void startTemplate(ContentHandler handler) throws SAXException {
+		handler.startDocument();
+		if (xsl_url != null) {
+			handler.processingInstruction("xml-stylesheet",
+					"type=\"text/xsl\" href=\"" + xsl_url.getPath() + "\"");
 		}
-		return builder.toString();
+		handler.startElement("", "textpdf", "textpdf", new AttributesImpl());
+	}
+
+	void endTemplate(ContentHandler handler) throws SAXException {
+		handler.endElement("", "textpdf", "textpdf");
+		handler.endDocument();
 	}
 
 	private void readCharacterRuns(Paragraph para, int para_index,
-			StringBuilder builder, boolean is_title) {
+			ContentHandler handler, boolean is_title)
+					throws SAXException {
 		StringBuilder all_text = null;
 		if (is_title && json_object != null) {
 			all_text = new StringBuilder();
@@ -166,10 +231,6 @@ public class DocReader
 			CharacterRun run = para.getCharacterRun(j);
 			String text = run.text().replaceAll("[\u0000-\u001f]", "");
 
-			System.out.println("run text: " + text + " >i=" + para_index);
-//			System.out.println("vanished: " + run.isVanished());
-//			System.out.println("special: " + run.isSpecialCharacter());
-
 			// 忽略特殊字符
 			if (run.isSpecialCharacter()) {
 				continue;
@@ -185,43 +246,20 @@ public class DocReader
 			// \u3000: IDEOGRAPHIC SPACE
 			if (text.matches("^[\\s\u3000]+$")) {
 				if (run.getUnderlineCode() == 1) {
-					String vid = "vid_" + para_index + "_" + j;
-					builder.append("    <value id=\"");
-					builder.append(vid);
-					builder.append("\" minlen=\"");
-					builder.append(text.length());
-					builder.append("\"");
-					appendRunAttrs(builder, run, false);
-					builder.append(" />\n");
-					if (json_data != null) {
-						json_data.put(vid, "");
-					}
+					emitValue(handler, run,
+							"vid_" + para_index + "_" + j, text);
 				} else {
-					builder.append("    <hspace");
-					builder.append(" size=\"");
-					builder.append(text.length());
-					builder.append("\"");
-					appendRunAttrs(builder, run, false);
-					builder.append(" />\n");
+					AttributesImpl attrs = new AttributesImpl();
+					addAttr(attrs, "size", String.valueOf(text.length()));
+					addRunAttrs(attrs, run, false);
+					emptyElement(handler, "hspace", attrs);
 				}
 			} else if (text.matches("^_+$")) {
-				String vid = "vid_" + para_index + "_" + j;
-				builder.append("    <value id=\"");
-				builder.append(vid);
-				builder.append("\" minlen=\"");
-				builder.append(text.length());
-				builder.append("\"");
-				appendRunAttrs(builder, run, false);
-				builder.append(" />\n");
-				if (json_data != null) {
-					json_data.put(vid, "");
-				}
+				emitValue(handler, run, "vid_" + para_index + "_" + j, text);
 			} else if (text.length() > 0) {
-				builder.append("    <span");
-				appendRunAttrs(builder, run, true);
-				builder.append(">");
-				builder.append(textEscape(text));
-				builder.append("</span>\n");
+				AttributesImpl attrs = new AttributesImpl();
+				addRunAttrs(attrs, run, true);
+				textElement(handler, "span", attrs, text);
 
 				if (all_text != null) {
 					all_text.append(text);
@@ -234,36 +272,27 @@ public class DocReader
 	}
 
 	/**
-	 * 转换 .doc 文件
+	 * 转换 .doc 文件，产生模板的 SAX 事件
+	 *
+	 * 事件的顺序和解析 XML 模板时完全相同，所以 handler 可以是 TextParser
+	 * 内部的模板处理器(直接生成 PDF 或 HTML)，也可以是 DocXMLWriter.
 	 * @param doc_stream .doc 数据流
-	 * @param xml_stream .xml 输出流，用于保存转换后结果
+	 * @param handler 模板事件的接收者
 	 * @throws IOException
+	 * @throws SAXException
 	 */
-	public void read(InputStream doc_stream, OutputStream xml_stream,
-			OutputStream json_stream)
-					throws IOException {
-		if (doc_stream == null || xml_stream == null) {
-			System.err.println("Invalid argument");
-			return;
-		}
-		if (json_stream != null) {
-			json_object = new HashMap<String, Object>();
-			json_data = new HashMap<String, String>();
+	public void read(InputStream doc_stream, ContentHandler handler)
+			throws IOException, SAXException {
+		if (doc_stream == null || handler == null) {
+			throw new IllegalArgumentException();
 		}
+		long start = Metrics.start();
 		HWPFDocument document = new HWPFDocument(doc_stream);
 		Range range = document.getRange();
-		StringBuilder builder = new StringBuilder();
-
-		builder.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
-		if (xsl_url != null) {
-			builder.append("<?xml-stylesheet type=\"text/xsl\" href=\"" +
-					xsl_url.getPath() + "\"?>\n");
-		}
-		builder.append("\n<!-- Automatic generated by TextPDF DocReader -->\n");
-		builder.append("\n<textpdf>\n");
+		Metrics.end(RenderMetrics.PHASE_DOC_READ, start);
+		AttributesImpl no_attrs = new AttributesImpl();
 
-		xml_stream.write(builder.toString().getBytes("UTF-8"));
-		builder.setLength(0);
+		startTemplate(handler);
 
 		int title_index = 0;
 		if (auto_title) {
@@ -277,7 +306,7 @@ public class DocReader
 			boolean is_title = false;
 
 			if (para.pageBreakBefore()) {	// 换页符
-				builder.append("  <pagebreak />\n");
+				emptyElement(handler, "pagebreak", no_attrs);
 			}
 
 			if (para.isInTable()) {		// 表格
@@ -297,17 +326,16 @@ public class DocReader
 							columns.append(",1");
 						}
 					}
-					builder.append("  <table columns=\"" +
-							columns.toString() + "\">\n");
+					AttributesImpl attrs = new AttributesImpl();
+					addAttr(attrs, "columns", columns.toString());
+					handler.startElement("", "table", "table", attrs);
 				}
 				String text = para.text().replaceAll("[\u0000-\u001f]", "");
-				builder.append("    <cell>");
-				builder.append(textEscape(text));
-				builder.append("</cell>\n");
+				textElement(handler, "cell", no_attrs, text);
 				continue;
 			} else {
 				if (table != null) {
-					builder.append("  </table>\n");
+					handler.endElement("", "table", "table");
 					table = null;
 				}
 			}
@@ -315,32 +343,177 @@ public class DocReader
 			if (ignore_blank_para && para.numCharacterRuns() == 0) {
 				continue;
 			}
+			String name = "para";
 			if (auto_title && i == title_index) {
-				builder.append("  <title");
+				name = "title";
 				is_title = true;
-			} else {
-				builder.append("  <para");
 			}
-			appendParaAttrs(builder, para);
-			builder.append(">\n");
-
-			readCharacterRuns(para, i, builder, is_title);
+			AttributesImpl attrs = new AttributesImpl();
+			addParaAttrs(attrs, para);
+			handler.startElement("", name, name, attrs);
+			readCharacterRuns(para, i, handler, is_title);
+			handler.endElement("", name, name);
+		}
+		if (table != null) {
+			handler.endElement("", "table", "table");
+		}
+		endTemplate(handler);
+	}
 
-			if (auto_title && i == title_index) {
-				builder.append("  </title>\n");
-			} else {
-				builder.append("  </para>\n");
-			}
-			xml_stream.write(builder.toString().getBytes("UTF-8"));
-			builder.setLength(0);
+	/**
+	 * 转换 .doc 文件为 XML 模板
+	 * @param doc_stream .doc 数据流
+	 * @param xml_stream .xml 输出流，用于保存转换后结果
+	 * @param json_stream .json 输出流，用于保存 JSON 数据模板，可以为 null
+	 * @throws IOException
+	 */
+	public void read(InputStream doc_stream, OutputStream xml_stream,
+			OutputStream json_stream)
+					throws IOException {
+		if (doc_stream == null || xml_stream == null) {
+			diagnostics.warn("Invalid argument");
+			return;
+		}
+		if (json_stream != null) {
+			json_object = new HashMap<String, Object>();
+			json_data = new HashMap<String, String>();
+		}
+		try {
+			read(doc_stream, new DocXMLWriter(xml_stream));
+		} catch (SAXException e) {
+			throw new IOException(e);
 		}
-		xml_stream.write("</textpdf>\n".getBytes());
 
 		// 输出 JSON 数据模板
 		if (json_stream != null) {
 			json_object.put("data", json_data);
 			String json_string = JSONObject.toJSONString(json_object);
 			json_stream.write(json_string.getBytes("UTF-8"));
+			json_object = null;
+			json_data = null;
+		}
+	}
+
+}
+
+
+/**
+ * 将模板 SAX 事件序列化为 XML 模板文本
+ *
+ * 只包含文字的元素写在一行，没有内容的元素写为空元素，其它元素按层次缩进。
+ */
+class DocXMLWriter extends DefaultHandler
+{
+	private OutputStream xml_stream;
+	private StringBuilder builder;
+	private String pending_name = null;
+	private boolean has_text = false;
+	private int depth = 0;
+
+	public DocXMLWriter(OutputStream xml_stream) {
+		this.xml_stream = xml_stream;
+		this.builder = new StringBuilder();
+	}
+
+	private void indent() {
+		for (int i = 0; i < depth; i++) {
+			builder.append("  ");
+		}
+	}
+
+	private void escape(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			String escape = Util.escapeXMLChars(text.charAt(i));
+			if (escape != null) {
+				builder.append(escape);
+			} else {
+				builder.append(text.charAt(i));
+			}
+		}
+	}
+
+	private void flush() throws SAXException {
+		try {
+			xml_stream.write(builder.toString().getBytes("UTF-8"));
+			builder.setLength(0);
+		} catch (IOException e) {
+			throw new SAXException(e);
+		}
+	}
+
+	/**
+	 * 上一个开始标签还未结束，此时遇到子元素，说明它是一个容器元素
+	 */
+	private void closePending() {
+		if (pending_name != null) {
+			builder.append(">\n");
+			pending_name = null;
+			depth++;
+		}
+	}
+
+	@Override
+	public void startDocument() throws SAXException {
+		builder.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+	}
+
+	@Override
+	public void processingInstruction(String target, String data)
+			throws SAXException {
+		builder.append("<?" + target + " " + data + "?>\n");
+	}
+
+	@Override
+	public void endDocument() throws SAXException {
+		flush();
+	}
+
+	@Override
+	public void startElement(String namespaceURI, String localName,
+			String qName, Attributes attrs) throws SAXException {
+		if (qName.equals("textpdf")) {
+			builder.append(
+					"\n<!-- Automatic generated by TextPDF DocReader -->\n\n");
+		}
+		closePending();
+		indent();
+		builder.append("<" + qName);
+		for (int i = 0; i < attrs.getLength(); i++) {
+			builder.append(" " + attrs.getQName(i) + "=\"");
+			escape(attrs.getValue(i));
+			builder.append("\"");
+		}
+		pending_name = qName;
+		has_text = false;
+	}
+
+	@Override
+	public void characters(char[] ch, int start, int length)
+			throws SAXException {
+		if (pending_name != null && !has_text) {
+			builder.append(">");
+			has_text = true;
+		}
+		escape(new String(ch, start, length));
+	}
+
+	@Override
+	public void endElement(String namespaceURI, String localName,
+			String qName) throws SAXException {
+		if (pending_name != null) {
+			if (has_text) {
+				builder.append("</" + qName + ">\n");
+			} else {
+				builder.append(" />\n");
+			}
+			pending_name = null;
+			has_text = false;
+		} else {
+			depth--;
+			indent();
+			builder.append("</" + qName + ">\n");
+			// 每个块元素结束时写出一次，避免缓存整个文档
+			flush();
 		}
 	}
 
@@ -0,0 +1,456 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * 一个 .docx 文字片段(w:r)
+ */
+class DocxRun
+{
+	StringBuilder text = new StringBuilder();
+	boolean bold = false;
+	boolean italic = false;
+	boolean underline = false;
+	int font_size = 0;		// 半磅，0 表示未指定
+
+	boolean sameStyle(DocxRun run) {
+		return bold == run.bold && italic == run.italic &&
+				underline == run.underline && font_size == run.font_size;
+	}
+}
+
+/**
+ * 一个 .docx 段落(w:p)，只在读取这个段落期间保存在内存中
+ */
+class DocxPara
+{
+	int index;
+	String align = null;
+	boolean page_break = false;
+	List<DocxRun> runs = new ArrayList<DocxRun>();
+
+	/**
+	 * Word 经常将同样格式的文字拆分为多个 w:r，这里将它们合并，
+	 * 否则一个下划线空白可能被拆成多个 value
+	 */
+	void addRun(DocxRun run) {
+		if (runs.size() > 0) {
+			DocxRun last = runs.get(runs.size() - 1);
+			if (last.sameStyle(run)) {
+				last.text.append(run.text);
+				return;
+			}
+		}
+		runs.add(run);
+	}
+
+	int maxFontSize() {
+		int size = 0;
+		for (DocxRun run : runs) {
+			size = Math.max(size, run.font_size);
+		}
+		return size;
+	}
+
+	String text() {
+		StringBuilder builder = new StringBuilder();
+		for (DocxRun run : runs) {
+			builder.append(run.text);
+		}
+		return builder.toString();
+	}
+}
+
+/**
+ * 读取 .docx 文件，并转换为 TextPDF 可识别的模板格式
+ *
+ * 和 DocReader 不同，这个类不会将整个文档读入内存，而是从 zip 中流式读取
+ * word/document.xml(StAX)，每次只保存一个段落(或表格的一个单元格)，
+ * 所以可以处理非常大的文档。输出的模板事件和 DocReader 相同。
+ */
+public class DocxReader extends DocReader
+{
+	static final String W_NS =
+			"http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+
+	// 自动识别标题时，需要缓存头 3 段
+	private List<DocxPara> head_paras;
+	private int title_index;
+	private int para_count;
+
+	private List<Integer> table_columns;
+	private boolean table_started;
+	private int table_depth;
+	private StringBuilder cell_text;
+	private int cell_span;
+
+	private boolean isOn(XMLStreamReader reader) {
+		String value = reader.getAttributeValue(W_NS, "val");
+		return value == null || !(value.equals("0") ||
+				value.equalsIgnoreCase("false") ||
+				value.equalsIgnoreCase("off") ||
+				value.equalsIgnoreCase("none"));
+	}
+
+	private int intAttr(XMLStreamReader reader, String name, int def) {
+		String value = reader.getAttributeValue(W_NS, name);
+		if (value != null) {
+			try {
+				return Integer.parseInt(value);
+			} catch (Exception ex) {
+				diagnostics.warn("Invalid w:" + name + " value '" + value
+						+ "' in document.xml");
+			}
+		}
+		return def;
+	}
+
+	private void addRunAttrs(AttributesImpl attrs, DocxRun run,
+			boolean is_span) {
+		StringBuilder style = new StringBuilder();
+
+		if (is_span) {
+			if (run.bold) {
+				style.append("bold");
+			}
+			if (run.italic) {
+				if (style.length() > 0) style.append(",");
+				style.append("italic");
+			}
+			if (run.underline) {
+				if (style.length() > 0) style.append(",");
+				style.append("underline");
+			}
+			if (style.length() > 0) {
+				addAttr(attrs, "font-style", style.toString());
+			}
+		}
+		if (run.font_size > 0) {
+			addAttr(attrs, "font-size", String.valueOf(run.font_size / 2));
+		}
+	}
+
+	private void emitRuns(ContentHandler handler, DocxPara para,
+			boolean is_title) throws SAXException {
+		StringBuilder all_text = null;
+		if (is_title && json_object != null) {
+			all_text = new StringBuilder();
+		}
+		for (int j = 0; j < para.runs.size(); j++) {
+			DocxRun run = para.runs.get(j);
+			String text = run.text.toString().replaceAll(
+					"[\u0000-\u001f]", "");
+			String vid = "vid_" + para.index + "_" + j;
+
+			// \u3000: IDEOGRAPHIC SPACE
+			if (text.matches("^[\\s\u3000]+$")) {
+				AttributesImpl attrs = new AttributesImpl();
+				addRunAttrs(attrs, run, false);
+				if (run.underline) {
+					emitValue(handler, attrs, vid, text);
+				} else {
+					AttributesImpl hspace = new AttributesImpl();
+					addAttr(hspace, "size", String.valueOf(text.length()));
+					addRunAttrs(hspace, run, false);
+					emptyElement(handler, "hspace", hspace);
+				}
+			} else if (text.matches("^_+$")) {
+				AttributesImpl attrs = new AttributesImpl();
+				addRunAttrs(attrs, run, false);
+				emitValue(handler, attrs, vid, text);
+			} else if (text.length() > 0) {
+				AttributesImpl attrs = new AttributesImpl();
+				addRunAttrs(attrs, run, true);
+				textElement(handler, "span", attrs, text);
+
+				if (all_text != null) {
+					all_text.append(text);
+				}
+			}
+		}
+		if (is_title && json_object != null) {
+			json_object.put("title", all_text.toString());
+		}
+	}
+
+	private void emitPara(ContentHandler handler, DocxPara para,
+			boolean is_title) throws SAXException {
+		if (para.page_break) {
+			emptyElement(handler, "pagebreak", new AttributesImpl());
+		}
+		if (ignore_blank_para && para.runs.size() == 0) {
+			return;
+		}
+		String name = is_title ? "title" : "para";
+		AttributesImpl attrs = new AttributesImpl();
+		if (para.align != null) {
+			if (para.align.equals("center")) {
+				addAttr(attrs, "align", "center");
+			} else if (para.align.equals("right") ||
+					para.align.equals("end")) {
+				addAttr(attrs, "align", "right");
+			}
+		}
+		handler.startElement("", name, name, attrs);
+		emitRuns(handler, para, is_title);
+		handler.endElement("", name, name);
+	}
+
+	/**
+	 * 和 DocReader 相同的规则：头 3 段中字体最大的为标题，
+	 * 字体大小相同时优先取居中的段落
+	 */
+	private void flushHeadParas(ContentHandler handler)
+			throws SAXException {
+		if (head_paras == null) {
+			return;
+		}
+		int max_font_size = 0;
+		boolean center = false;
+		if (head_paras.size() > 0) {
+			title_index = head_paras.get(0).index;
+		}
+		for (int i = 0; i < head_paras.size(); i++) {
+			DocxPara para = head_paras.get(i);
+			int font_size = para.maxFontSize();
+			if (font_size > max_font_size) {
+				title_index = para.index;
+				max_font_size = font_size;
+			} else if (font_size == max_font_size) {
+				if (!center && "center".equals(para.align)) {
+					title_index = para.index;
+					center = true;
+				}
+			}
+		}
+		for (DocxPara para : head_paras) {
+			emitPara(handler, para, para.index == title_index);
+		}
+		head_paras = null;
+	}
+
+	private void endPara(ContentHandler handler, DocxPara para)
+			throws SAXException {
+		if (table_depth > 0) {
+			cell_text.append(para.text());
+			return;
+		}
+		if (head_paras != null) {
+			head_paras.add(para);
+			if (para_count >= 3) {
+				flushHeadParas(handler);
+			}
+			return;
+		}
+		emitPara(handler, para, auto_title && para.index == title_index);
+	}
+
+	private void startTable(ContentHandler handler) throws SAXException {
+		StringBuilder columns = new StringBuilder();
+		for (int width : table_columns) {
+			if (columns.length() > 0) {
+				columns.append(",");
+			}
+			columns.append(width);
+		}
+		AttributesImpl attrs = new AttributesImpl();
+		if (columns.length() > 0) {
+			addAttr(attrs, "columns", columns.toString());
+		}
+		handler.startElement("", "table", "table", attrs);
+		table_started = true;
+	}
+
+	private void readDocument(XMLStreamReader reader, ContentHandler handler)
+			throws XMLStreamException, SAXException {
+		DocxPara para = null;
+		DocxRun run = null;
+		boolean break_next = false;
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = reader.getLocalName();
+				if (name.equals("tbl")) {
+					if (++table_depth == 1) {
+						flushHeadParas(handler);
+						table_columns = new ArrayList<Integer>();
+						table_started = false;
+					}
+				} else if (name.equals("gridCol")) {
+					if (table_depth == 1) {
+						table_columns.add(Math.max(1, intAttr(reader, "w", 1)));
+					}
+				} else if (name.equals("tc")) {
+					if (table_depth == 1) {
+						if (!table_started) {
+							startTable(handler);
+						}
+						cell_text = new StringBuilder();
+						cell_span = 1;
+					}
+				} else if (name.equals("gridSpan")) {
+					if (table_depth == 1) {
+						cell_span = intAttr(reader, "val", 1);
+					}
+				} else if (name.equals("p")) {
+					para = new DocxPara();
+					para.index = para_count++;
+					para.page_break = break_next;
+					break_next = false;
+				} else if (name.equals("pageBreakBefore")) {
+					if (para != null && isOn(reader)) {
+						para.page_break = true;
+					}
+				} else if (name.equals("jc")) {
+					if (para != null && run == null) {
+						para.align = reader.getAttributeValue(W_NS, "val");
+					}
+				} else if (name.equals("r")) {
+					run = new DocxRun();
+				} else if (run != null) {
+					// 段落标记(w:pPr/w:rPr)中的格式不属于任何文字
+					if (name.equals("b")) {
+						run.bold = isOn(reader);
+					} else if (name.equals("i")) {
+						run.italic = isOn(reader);
+					} else if (name.equals("u")) {
+						run.underline = isOn(reader);
+					} else if (name.equals("sz")) {
+						run.font_size = intAttr(reader, "val", 0);
+					} else if (name.equals("t")) {
+						run.text.append(reader.getElementText());
+					} else if (name.equals("tab")) {
+						run.text.append(' ');
+					} else if (name.equals("br")) {
+						if ("page".equals(reader.getAttributeValue(W_NS, "type"))) {
+							break_next = true;
+						}
+					}
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				String name = reader.getLocalName();
+				if (name.equals("r")) {
+					if (para != null && run != null) {
+						para.addRun(run);
+					}
+					run = null;
+				} else if (name.equals("p")) {
+					if (para != null) {
+						endPara(handler, para);
+					}
+					para = null;
+				} else if (name.equals("tc")) {
+					if (table_depth == 1) {
+						AttributesImpl attrs = new AttributesImpl();
+						if (cell_span > 1) {
+							addAttr(attrs, "colspan", String.valueOf(cell_span));
+						}
+						textElement(handler, "cell", attrs,
+								cell_text.toString().replaceAll(
+										"[\u0000-\u001f]", ""));
+						cell_text = null;
+					}
+				} else if (name.equals("tbl")) {
+					if (--table_depth == 0) {
+						if (table_started) {
+							handler.endElement("", "table", "table");
+						}
+						table_columns = null;
+					}
+				}
+			}
+		}
+		flushHeadParas(handler);
+	}
+
+	/**
+	 * 转换 .docx 文件，产生模板的 SAX 事件
+	 * @param docx_stream .docx 数据流
+	 * @param handler 模板事件的接收者
+	 * @throws IOException
+	 * @throws SAXException
+	 */
+	@Override
+	public void read(InputStream docx_stream, ContentHandler handler)
+			throws IOException, SAXException {
+		if (docx_stream == null || handler == null) {
+			throw new IllegalArgumentException();
+		}
+		ZipInputStream zip_stream = new ZipInputStream(docx_stream);
+		ZipEntry entry;
+		while ((entry = zip_stream.getNextEntry()) != null) {
+			if (entry.getName().equals("word/document.xml")) {
+				break;
+			}
+		}
+		if (entry == null) {
+			throw new IOException("word/document.xml not found in .docx");
+		}
+
+		head_paras = auto_title ? new ArrayList<DocxPara>() : null;
+		title_index = -1;
+		para_count = 0;
+		table_depth = 0;
+
+		XMLStreamReader reader = null;
+		try {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			factory.setProperty(
+					XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+			reader = factory.createXMLStreamReader(zip_stream, "UTF-8");
+
+			startTemplate(handler);
+			readDocument(reader, handler);
+			endTemplate(handler);
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+				}
+			}
+		}
+	}
+
+}
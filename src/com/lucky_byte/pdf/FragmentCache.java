@@ -0,0 +1,95 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 模板片段缓存
+ *
+ * <include src="..."/> 引用的片段编译一次(参考 CompiledTemplate)，
+ * 所有模板共享。每次使用时检查片段文件，文件被修改后重新编译。
+ * 包含片段的模板的摘要由模板及所有片段的摘要组成，所以修改片段后，
+ * 渲染结果、HTML 表单、套打及静态块等缓存中依赖它的模板自然失效。
+ */
+public class FragmentCache
+{
+	private final int max_fragments;
+	private Map<String, CompiledTemplate> fragments;
+
+	/**
+	 * @param max_fragments 最多缓存的片段数量
+	 */
+	public FragmentCache(final int max_fragments) {
+		this.max_fragments = max_fragments;
+		fragments = new LinkedHashMap<String, CompiledTemplate>(
+				16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, CompiledTemplate> eldest) {
+				return size() > FragmentCache.this.max_fragments;
+			}
+		};
+	}
+
+	public FragmentCache() {
+		this(256);
+	}
+
+	/**
+	 * 取得片段，没有缓存或者文件已被修改时重新读取
+	 * @param file
+	 * @return
+	 * @throws Exception
+	 */
+	CompiledTemplate get(File file) throws Exception {
+		String path = file.getCanonicalPath();
+		CompiledTemplate fragment;
+		synchronized (this) {
+			fragment = fragments.get(path);
+		}
+		boolean hit = fragment != null && fragment.isCurrent(file);
+		Metrics.cache("fragment", hit);
+		if (hit) {
+			return fragment;
+		}
+		fragment = CompiledTemplate.load(file);
+		synchronized (this) {
+			fragments.put(path, fragment);
+		}
+		return fragment;
+	}
+
+	public synchronized void clear() {
+		fragments.clear();
+	}
+
+	public synchronized int size() {
+		return fragments.size();
+	}
+
+}
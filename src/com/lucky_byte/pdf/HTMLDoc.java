@@ -24,21 +24,15 @@ public class HTMLDoc extends TextDoc
 	private String declare = null;
 	private String extra = null;
 	private int type = TYPE_INPUT;
+	private boolean table_open = false;
+	private boolean row_open = false;
+	private int table_cell = 0;
 
-	private String html_open = ""
-			+ "<!DOCTYPE html>\n"
-			+ "<html>\n"
-			+ "  <head>\n"
-			+ "    <title>__TITLE__</title>\n"
+	private String html_meta = ""
 			+ "    <meta name=\"author\" content=\"Lucky Byte, Inc.\"/>\n"
 			+ "    <meta name=\"generator\" content=\"TextPDF\" />\n"
 			+ "    <meta name=\"description\" content=\"TextPDF HTML Editor\" />\n"
-			+ "    <meta name=\"keywords\" content=\"TextPDF,PDF,Template\" />\n"
-			+ "    <meta http-equiv=\"Content-Type\" content=\"text/html; charset=__ENCODING__\">\n"
-			+ "    __CSS_URL__\n"
-			+ "    __JS_URL__\n"
-			+ "  </head>\n"
-			+ "  <body>\n";
+			+ "    <meta name=\"keywords\" content=\"TextPDF,PDF,Template\" />\n";
 
 	private String html_close = "  </body>\n</html>\n";
 
@@ -73,61 +67,93 @@ public class HTMLDoc extends TextDoc
 			out_stream.write(string.getBytes(encoding));
 			return true;
 		} catch (UnsupportedEncodingException e) {
-			System.err.println("Unsupported encoding.");
+			diagnostics.warn("Unsupported encoding.");
 			return false;
 		} catch (IOException e) {
-			System.err.println("Write to html stream failed.");
+			diagnostics.warn("Write to html stream failed.");
 			return false;
 		}
 	}
 
-	private void substituteDeclare() {
-		if (declare != null) {
-			html_open = html_open.replace("<!DOCTYPE html>", declare);
+	/**
+	 * 输出静态内容，如果输出流是压缩流，则使用预先压缩好的数据
+	 * @param string
+	 * @return
+	 */
+	private boolean writeStatic(String string) {
+		if (out_stream instanceof CompressOutputStream) {
+			try {
+				((CompressOutputStream) out_stream).writeStatic(
+						string, encoding);
+				return true;
+			} catch (IOException e) {
+				diagnostics.warn("Write to html stream failed.");
+				return false;
+			}
 		}
+		return writeStream(string);
+	}
+
+	/**
+	 * 文档头中标题之前的部分，和标题无关，可以缓存
+	 * @return
+	 */
+	String openPrefix() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(declare != null ? declare : "<!DOCTYPE html>");
+		builder.append("\n<html>\n  <head>\n    <title>");
+		return builder.toString();
 	}
 
-	private void substituteTitle() {
+	/**
+	 * 从 JSON 中取得标题，已经过 escape 处理
+	 * @return
+	 */
+	String getTitle() {
 		if (json_object != null) {
 			if (json_object.containsKey("title")) {
 				Object value = json_object.get("title");
 				if (value instanceof String) {
-					html_open = html_open.replace("__TITLE__",
-							Util.escapeHTMLString((String) value));
+					return Util.escapeHTMLString((String) value);
 				}
 			}
 		}
-		html_open = html_open.replace("__TITLE__", "");
+		return "";
 	}
 
-	private void substituteCSSLinks() {
+	/**
+	 * 文档头中标题之后的部分，和标题无关，可以缓存
+	 * @return
+	 */
+	String openSuffix() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("</title>\n");
+		builder.append(html_meta);
+		builder.append("    <meta http-equiv=\"Content-Type\" content=\"text/html; charset=");
+		builder.append(encoding);
+		builder.append("\">\n");
+
+		StringBuilder links = new StringBuilder();
 		if (css_paths != null) {
-			StringBuilder builder = new StringBuilder();
 			for (String path : css_paths) {
-				builder.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"");
-				builder.append(Util.escapeHTMLString(path));
-				builder.append("\"/>\n");
+				links.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"");
+				links.append(Util.escapeHTMLString(path));
+				links.append("\"/>\n");
 			}
-			html_open = html_open.replace("__CSS_URL__",
-					builder.toString().trim());
-		} else {
-			html_open = html_open.replace("__CSS_URL__", "");
 		}
-	}
+		builder.append("    " + links.toString().trim() + "\n");
 
-	private void substituteJSLinks() {
+		links.setLength(0);
 		if (js_paths != null) {
-			StringBuilder builder = new StringBuilder();
 			for (String path : js_paths) {
-				builder.append("    <script src=\"");
-				builder.append(Util.escapeHTMLString(path));
-				builder.append("\"></script>\n");
+				links.append("    <script src=\"");
+				links.append(Util.escapeHTMLString(path));
+				links.append("\"></script>\n");
 			}
-			html_open = html_open.replace("__JS_URL__",
-					builder.toString().trim());
-		} else {
-			html_open = html_open.replace("__JS_URL__", "");
 		}
+		builder.append("    " + links.toString().trim() + "\n");
+		builder.append("  </head>\n  <body>\n");
+		return builder.toString();
 	}
 
 	@Override
@@ -135,23 +161,19 @@ public class HTMLDoc extends TextDoc
 		if (out_stream == null)
 			return false;
 
-		substituteDeclare();
-		substituteTitle();
-		html_open = html_open.replace("__ENCODING__", encoding);
-		substituteCSSLinks();
-		substituteJSLinks();
-
 		is_open = true;
-		return writeStream(html_open);
+		return writeStatic(openPrefix()) && writeStream(getTitle()) &&
+				writeStatic(openSuffix());
 	}
 
 	@Override
 	public void close() {
 		if (is_open && out_stream != null) {
 			if (extra != null) {
-				writeStream(extra);
+				writeStatic(extra + html_close);
+			} else {
+				writeStatic(html_close);
 			}
-			writeStream(html_close);
 		}
 	}
 
@@ -269,7 +291,7 @@ public class HTMLDoc extends TextDoc
 
 		String label = getHtmlLabel(block_name);
 		if (label == null) {
-			System.err.println("unable map block name '"
+			diagnostics.warn("unable map block name '"
 					+ block_name + "'to html label.");
 			return;
 		}
@@ -313,7 +335,7 @@ public class HTMLDoc extends TextDoc
 	public void addImage(Attributes attrs) {
 		String value = attrs.getValue("src");
 		if (value == null) {
-			System.err.println("img missing src attribute.");
+			diagnostics.warn("img missing src attribute.");
 			return;
 		}
 		writeStream("<img src=\"" + Util.escapeHTMLString(value) + "\"/>");
@@ -341,30 +363,63 @@ public class HTMLDoc extends TextDoc
 					columns[i] = columns[i] * 100 / total;
 				}
 			} catch (Exception ex) {
-				System.err.println("column must has a integer value");
+				diagnostics.warn("column must has a integer value");
 			}
 		}
 		if (columns == null) {
 			return;
 		}
 
-		writeStream("    <table border=\"2\" width=\"100%\">\n");
-		for (int i = 0; i < table.getCells().size(); i++) {
-			int colno = i % columns.length;
+		// 大表格会分多次输出，参考 TextTable.isComplete()
+		if (!table_open) {
+			writeStream("    <table border=\"2\" width=\"100%\">\n");
+			table_open = true;
+			table_cell = 0;
+		}
+		for (TextChunk text_chunk : table.getCells()) {
+			int colno = table_cell++ % columns.length;
 			if (colno == 0) {
-				if (i > 0) {
+				if (row_open) {
 					writeStream("      </tr>\n");
 				}
 				writeStream("      <tr>\n");
+				row_open = true;
 			}
 			if (columns[colno] > 0) {
-				TextChunk text_chunk = table.getCells().get(i);
 				writeStream("        <td width=\"" + columns[colno] + "%\">" +
 						text_chunk.getContents() + "</td>\n");
 			}
 		}
-		writeStream("      </tr>\n");
-		writeStream("    </table>\n");
+		if (table.getRows() != null) {
+			if (row_open) {
+				writeStream("      </tr>\n");
+				row_open = false;
+			}
+			table_cell = 0;
+			for (Object row : table.getRows()) {
+				budget.check(this);
+				writeStream("      <tr>\n");
+				List<TextChunk> row_cells = table.bindRow(row);
+				for (int i = 0; i < row_cells.size(); i++) {
+					int colno = i % columns.length;
+					if (columns[colno] > 0) {
+						writeStream("        <td width=\"" + columns[colno] +
+								"%\">" + Util.escapeHTMLString(
+										row_cells.get(i).getContents()) +
+								"</td>\n");
+					}
+				}
+				writeStream("      </tr>\n");
+			}
+		}
+		if (table.isComplete()) {
+			if (row_open) {
+				writeStream("      </tr>\n");
+				row_open = false;
+			}
+			writeStream("    </table>\n");
+			table_open = false;
+		}
 	}
 
 }
@@ -0,0 +1,148 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 预先生成的 HTML 表单
+ *
+ * 同一个模板(以及相同的 css/js 链接、类型和编码)生成的 HTML 表单除了标题之外
+ * 完全相同，所以只需要生成一次，之后每次输出时插入标题即可。
+ * 表单的内容已经过 escape 处理并按输出编码转换为字节。
+ * 模板中有重复行时，表单中只有表头，参考 hasRepeatRows()。
+ */
+public class HTMLForm
+{
+	private String key;
+	private byte[] bytes;
+	private int title_offset;
+	private String encoding;
+	private long last_modified;
+	private byte[] deflated_head = null;
+	private byte[] deflated_body = null;
+	private boolean repeat_rows = false;
+
+	HTMLForm(String key, byte[] bytes, int title_offset, String encoding) {
+		this.key = key;
+		this.bytes = bytes;
+		this.title_offset = title_offset;
+		this.encoding = encoding;
+		this.last_modified = System.currentTimeMillis();
+	}
+
+	/**
+	 * 缓存键，由模板内容和输出选项计算得出
+	 * @return
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * 用于 HTTP ETag 头，注意标题不在计算范围内
+	 * @return
+	 */
+	public String getETag() {
+		return "\"" + key + "\"";
+	}
+
+	/**
+	 * 用于 HTTP Last-Modified 头，表单生成的时间
+	 * @return
+	 */
+	public long getLastModified() {
+		return last_modified;
+	}
+
+	void setRepeatRows(boolean repeat_rows) {
+		this.repeat_rows = repeat_rows;
+	}
+
+	/**
+	 * 模板中是否有重复行(<row repeat>)。重复行由 JSON 数据生成，表单
+	 * 生成时没有数据，所以只有表头，不能代替有数据时的输出
+	 * @return
+	 */
+	public boolean hasRepeatRows() {
+		return repeat_rows;
+	}
+
+	/**
+	 * 输出编码
+	 * @return
+	 */
+	public String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * 不包括标题的表单长度(字节)
+	 * @return
+	 */
+	public int length() {
+		return bytes.length;
+	}
+
+	/**
+	 * 输出表单
+	 * @param out_stream 输出流
+	 * @param title 标题，可以为 null
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out_stream, String title)
+			throws IOException {
+		if (out_stream instanceof CompressOutputStream) {
+			writeTo((CompressOutputStream) out_stream, title);
+			return;
+		}
+		out_stream.write(bytes, 0, title_offset);
+		if (title != null && title.length() > 0) {
+			out_stream.write(Util.escapeHTMLString(title).getBytes(encoding));
+		}
+		out_stream.write(bytes, title_offset, bytes.length - title_offset);
+	}
+
+	/**
+	 * 输出压缩的表单，标题前后的内容只压缩一次
+	 */
+	private void writeTo(CompressOutputStream out_stream, String title)
+			throws IOException {
+		synchronized (this) {
+			if (deflated_head == null) {
+				deflated_head = CompressOutputStream.precompress(
+						bytes, 0, title_offset);
+				deflated_body = CompressOutputStream.precompress(
+						bytes, title_offset, bytes.length - title_offset);
+			}
+		}
+		out_stream.writeStatic(bytes, 0, title_offset, deflated_head);
+		if (title != null && title.length() > 0) {
+			out_stream.write(Util.escapeHTMLString(title).getBytes(encoding));
+		}
+		out_stream.writeStatic(bytes, title_offset,
+				bytes.length - title_offset, deflated_body);
+	}
+
+}
@@ -0,0 +1,101 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HTML 表单缓存
+ *
+ * 缓存 TextParser.compileHTML() 生成的表单，以 LRU 方式淘汰。
+ * 可以被多个 TextParser 对象(多个线程)共享。
+ */
+public class HTMLFormCache
+{
+	private final int max_forms;
+	private Map<String, HTMLForm> forms;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param max_forms 最多缓存的表单数量
+	 */
+	public HTMLFormCache(final int max_forms) {
+		this.max_forms = max_forms;
+		forms = new LinkedHashMap<String, HTMLForm>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, HTMLForm> eldest) {
+				return size() > HTMLFormCache.this.max_forms;
+			}
+		};
+	}
+
+	public HTMLFormCache() {
+		this(256);
+	}
+
+	/**
+	 * 查找表单
+	 * @param key 参考 HTMLForm.getKey()
+	 * @return 不存在时返回 null
+	 */
+	public synchronized HTMLForm get(String key) {
+		HTMLForm form = forms.get(key);
+		if (form == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		Metrics.cache("html_form", form != null);
+		return form;
+	}
+
+	public synchronized void put(HTMLForm form) {
+		forms.put(form.getKey(), form);
+	}
+
+	public synchronized void remove(String key) {
+		forms.remove(key);
+	}
+
+	public synchronized void clear() {
+		forms.clear();
+	}
+
+	public synchronized int size() {
+		return forms.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+}
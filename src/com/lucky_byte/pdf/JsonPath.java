@@ -0,0 +1,237 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JSON 数据中的路径，例如 customer.address.city 或 items[0].name
+ *
+ * 路径只解析一次，结果缓存在所有模板之间共享，取值时直接按照解析好的
+ * 键和下标访问 JSON 对象树。
+ */
+class JsonPath
+{
+	/**
+	 * 路径不存在时 get() 的返回值，和值为 null 区别
+	 */
+	static final Object MISSING = new Object();
+
+	static final private int MAX_CACHED = 4096;
+	static final private ConcurrentHashMap<String, JsonPath> paths =
+			new ConcurrentHashMap<String, JsonPath>();
+
+	private String path;
+	private Object[] segments;		// String 为对象的键，Integer 为数组下标
+
+	private JsonPath(String path, Object[] segments) {
+		this.path = path;
+		this.segments = segments;
+	}
+
+	/**
+	 * 解析路径，格式错误时整个路径作为一个键
+	 * @param path
+	 * @return
+	 */
+	static JsonPath compile(String path) {
+		JsonPath json_path = paths.get(path);
+		if (json_path != null) {
+			return json_path;
+		}
+		Object[] segments = parse(path);
+		if (segments == null) {
+			segments = new Object[] { path };
+		}
+		json_path = new JsonPath(path, segments);
+		if (paths.size() < MAX_CACHED) {
+			paths.put(path, json_path);
+		}
+		return json_path;
+	}
+
+	private static Object[] parse(String path) {
+		List<Object> segments = new ArrayList<Object>();
+		int i = 0;
+		int length = path.length();
+		while (i < length) {
+			int start = i;
+			while (i < length && path.charAt(i) != '.' &&
+					path.charAt(i) != '[') {
+				i++;
+			}
+			if (i == start && (i > 0 || path.charAt(i) != '[')) {
+				return null;		// 空的键，例如 "a..b"
+			}
+			if (i > start) {
+				segments.add(path.substring(start, i));
+			}
+			while (i < length && path.charAt(i) == '[') {
+				int end = path.indexOf(']', i);
+				if (end < 0) {
+					return null;
+				}
+				try {
+					segments.add(Integer.valueOf(path.substring(i + 1, end)));
+				} catch (NumberFormatException e) {
+					return null;
+				}
+				i = end + 1;
+			}
+			if (i < length) {
+				if (path.charAt(i) != '.' || i == length - 1) {
+					return null;
+				}
+				i++;
+			}
+		}
+		return segments.isEmpty() ? null : segments.toArray();
+	}
+
+	/**
+	 * 路径的第一个键，下标开头的路径返回 null
+	 * @return
+	 */
+	String getRoot() {
+		return segments[0] instanceof String ? (String) segments[0] : null;
+	}
+
+	/**
+	 * 从第 from 段开始在 root 中取值
+	 * @param root JSON 对象或数组
+	 * @param from
+	 * @return 路径不存在时返回 MISSING
+	 */
+	Object get(Object root, int from) {
+		Object value = root;
+		for (int i = from; i < segments.length; i++) {
+			Object segment = segments[i];
+			if (segment instanceof String) {
+				if (!(value instanceof Map)) {
+					return MISSING;
+				}
+				Map<?, ?> map = (Map<?, ?>) value;
+				if (!map.containsKey(segment)) {
+					return MISSING;
+				}
+				value = map.get(segment);
+			} else {
+				int index = (Integer) segment;
+				if (!(value instanceof List) ||
+						index < 0 || index >= ((List<?>) value).size()) {
+					return MISSING;
+				}
+				value = ((List<?>) value).get(index);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * 在 JSON 对象中取值，和路径相同的键优先(兼容包含 . 的键)
+	 * @param root
+	 * @param path
+	 * @return 路径不存在时返回 MISSING
+	 */
+	static Object lookup(Object root, String path) {
+		if (root instanceof Map && ((Map<?, ?>) root).containsKey(path)) {
+			return ((Map<?, ?>) root).get(path);
+		}
+		return compile(path).get(root, 0);
+	}
+
+	/**
+	 * 按照路径取值，先在循环变量中查找(内层优先)，然后在 data 中查找
+	 * @param scopes 循环变量，每层一个
+	 * @param data 模板数据，可以为 null
+	 * @param path
+	 * @return 路径不存在时返回 MISSING
+	 */
+	static Object resolve(List<Map<String, Object>> scopes,
+			Object data, String path) {
+		if (!scopes.isEmpty()) {
+			JsonPath json_path = compile(path);
+			String root = json_path.getRoot();
+			for (int i = scopes.size() - 1; i >= 0; i--) {
+				Map<String, Object> scope = scopes.get(i);
+				if (root != null && scope.containsKey(root)) {
+					return json_path.get(scope.get(root), 1);
+				}
+			}
+		}
+		if (data == null) {
+			return MISSING;
+		}
+		return lookup(data, path);
+	}
+
+	/**
+	 * <if>/<unless> 的条件：没有 equals 时值成立，否则值等于 equals
+	 * @param value
+	 * @param equals
+	 * @return
+	 */
+	static boolean test(Object value, String equals) {
+		if (equals == null) {
+			return isTrue(value);
+		}
+		return value != MISSING && value != null &&
+				equals.equals(value.toString());
+	}
+
+	/**
+	 * 条件是否成立：不存在、null、false、空字符串、0、空数组及空对象不成立
+	 * @param value
+	 * @return
+	 */
+	static boolean isTrue(Object value) {
+		if (value == MISSING || value == null) {
+			return false;
+		}
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		}
+		if (value instanceof String) {
+			return ((String) value).length() > 0;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue() != 0;
+		}
+		if (value instanceof List) {
+			return !((List<?>) value).isEmpty();
+		}
+		if (value instanceof Map) {
+			return !((Map<?, ?>) value).isEmpty();
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+}
@@ -0,0 +1,261 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * 从模板事件生成清单
+ */
+class ManifestBuilder extends DefaultHandler
+{
+	// 不影响格式的属性
+	static final private String[] DATA_ATTRS = {
+		"id", "minlen", "field", "repeat", "test", "equals",
+		"items", "as", "index", "src"
+	};
+
+	private TextParser parser;
+	private List<ManifestKey> keys = new ArrayList<ManifestKey>();
+	private List<ManifestKey> all_keys = new ArrayList<ManifestKey>();
+	// 每个元素一项：元素开始的条件或数组(其它为 null)，以及元素的格式
+	private Stack<ManifestKey> containers = new Stack<ManifestKey>();
+	private Stack<String> styles = new Stack<String>();
+	private int conditional_depth = 0;
+	private int include_depth = 0;
+
+	public ManifestBuilder(TextParser parser) {
+		this.parser = parser;
+	}
+
+	TemplateManifest getManifest() {
+		return new TemplateManifest(keys, all_keys);
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName,
+			Attributes attrs) throws SAXException {
+		if (qName.equalsIgnoreCase("include")) {
+			include(attrs.getValue("src"));
+			return;
+		}
+		ManifestKey container = null;
+		String style = null;
+
+		if (qName.equalsIgnoreCase("if") || qName.equalsIgnoreCase("unless")) {
+			String test = attrs.getValue("test");
+			if (test != null && test.length() > 0) {
+				container = add(ManifestKey.KIND_TEST, test, false);
+				container.equals = attrs.getValue("equals");
+				container.negate = qName.equalsIgnoreCase("unless");
+			}
+		} else if (qName.equalsIgnoreCase("each")) {
+			String items = attrs.getValue("items");
+			if (items != null && items.length() > 0) {
+				container = add(ManifestKey.KIND_ARRAY, items,
+						conditional_depth == 0);
+				container.as = attrs.getValue("as");
+				if (container.as == null || container.as.length() == 0) {
+					container.as = "item";
+				}
+				container.index = attrs.getValue("index");
+			}
+		} else if (!qName.equalsIgnoreCase("textpdf") &&
+				!qName.equalsIgnoreCase("static")) {
+			style = style(qName, attrs);
+		}
+		styles.push(style);
+		if (style != null) {
+			container = element(qName, attrs);
+		}
+		if (container != null && container.getKind() == ManifestKey.KIND_TEST) {
+			conditional_depth++;
+		}
+		containers.push(container);
+	}
+
+	/**
+	 * 处理格式元素，重复行返回数组项
+	 */
+	private ManifestKey element(String qName, Attributes attrs) {
+		if (qName.equalsIgnoreCase("value")) {
+			String id = attrs.getValue("id");
+			if (id != null && id.length() > 0) {
+				ManifestKey key = add(ManifestKey.KIND_VALUE, id,
+						conditional_depth == 0);
+				try {
+					String minlen = attrs.getValue("minlen");
+					if (minlen != null) {
+						key.setMinLength(Integer.parseInt(minlen.trim()));
+					}
+				} catch (NumberFormatException e) {
+				}
+			}
+		} else if (qName.equalsIgnoreCase("row")) {
+			String repeat = attrs.getValue("repeat");
+			if (repeat != null && repeat.length() > 0) {
+				ManifestKey key = add(ManifestKey.KIND_ARRAY, repeat,
+						conditional_depth == 0);
+				key.row = true;
+				return key;
+			}
+		} else if (qName.equalsIgnoreCase("cell")) {
+			String field = attrs.getValue("field");
+			ManifestKey row = current();
+			if (field != null && row != null && row.row) {
+				ManifestKey key = new ManifestKey(ManifestKey.KIND_FIELD,
+						field, row.getPath() + "[]." + field, styleContext(),
+						false);
+				row.children.add(key);
+				all_keys.add(key);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void endElement(String uri, String localName, String qName)
+			throws SAXException {
+		if (qName.equalsIgnoreCase("include")) {
+			return;
+		}
+		ManifestKey container = containers.pop();
+		styles.pop();
+		if (container != null && container.getKind() == ManifestKey.KIND_TEST) {
+			conditional_depth--;
+		}
+	}
+
+	/**
+	 * 展开 include 引用的片段，和渲染时相同
+	 */
+	private void include(String src) throws SAXException {
+		if (src == null || src.length() == 0) {
+			return;
+		}
+		CompiledTemplate fragment = parser.includeFragment(src, include_depth);
+		include_depth++;
+		try {
+			fragment.replayContent(this, new TemplateLocator());
+		} finally {
+			include_depth--;
+		}
+	}
+
+	/**
+	 * 在当前的条件或循环中增加一项，相同的值合并为一项
+	 */
+	private ManifestKey add(int kind, String id, boolean required) {
+		ManifestKey container = current();
+		List<ManifestKey> list = container == null ? keys : container.children;
+		if (kind == ManifestKey.KIND_VALUE) {
+			for (ManifestKey key : list) {
+				if (key.getKind() == kind && key.getId().equals(id)) {
+					return key;
+				}
+			}
+		}
+		ManifestKey key = new ManifestKey(kind, id, absolutePath(id),
+				styleContext(), required);
+		list.add(key);
+		all_keys.add(key);
+		return key;
+	}
+
+	private ManifestKey current() {
+		for (int i = containers.size() - 1; i >= 0; i--) {
+			if (containers.get(i) != null) {
+				return containers.get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 循环变量开头的路径换为数组的路径
+	 */
+	private String absolutePath(String id) {
+		String root = JsonPath.compile(id).getRoot();
+		if (root == null) {
+			return id;
+		}
+		for (int i = containers.size() - 1; i >= 0; i--) {
+			ManifestKey array = containers.get(i);
+			if (array == null || array.as == null) {
+				continue;
+			}
+			if (root.equals(array.as)) {
+				return array.getPath() + "[]" + id.substring(root.length());
+			}
+			if (root.equals(array.index)) {
+				return array.getPath() + "[]#" + root;
+			}
+		}
+		return id;
+	}
+
+	private String style(String qName, Attributes attrs) {
+		StringBuilder builder = new StringBuilder(qName);
+		int count = 0;
+		for (int i = 0; i < attrs.getLength(); i++) {
+			String name = attrs.getQName(i);
+			boolean data_attr = false;
+			for (String attr : DATA_ATTRS) {
+				if (attr.equalsIgnoreCase(name)) {
+					data_attr = true;
+					break;
+				}
+			}
+			if (data_attr) {
+				continue;
+			}
+			builder.append(count++ == 0 ? "[" : ",");
+			builder.append(name).append("=").append(attrs.getValue(i));
+		}
+		if (count > 0) {
+			builder.append("]");
+		}
+		return builder.toString();
+	}
+
+	private String styleContext() {
+		StringBuilder builder = new StringBuilder();
+		for (String style : styles) {
+			if (style == null) {
+				continue;
+			}
+			if (builder.length() > 0) {
+				builder.append("/");
+			}
+			builder.append(style);
+		}
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,135 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 模板清单中的一项，参考 TemplateManifest
+ *
+ * 路径为 data 中的绝对路径，循环或重复行中的键以数组路径加 [] 开头，
+ * 例如 &lt;each items="items" as="it"&gt; 中的 it.name 为 items[].name。
+ */
+public class ManifestKey
+{
+	static final public int KIND_VALUE = 1;		// <value id>
+	static final public int KIND_ARRAY = 2;		// <each items> 或 <row repeat>
+	static final public int KIND_FIELD = 3;		// 重复行单元格的 field
+	static final public int KIND_TEST = 4;		// <if test> 或 <unless test>
+
+	private int kind;
+	private String id;
+	private String path;
+	private int minlen = 0;
+	private String style;
+	private boolean required;
+
+	// 条件的 equals 属性以及是否为 <unless>
+	String equals = null;
+	boolean negate = false;
+	// 数组元素及下标的变量名，重复行的单元格不需要检查
+	String as = null;
+	String index = null;
+	boolean row = false;
+	// 条件或循环中的项
+	List<ManifestKey> children = new ArrayList<ManifestKey>();
+
+	ManifestKey(int kind, String id, String path, String style,
+			boolean required) {
+		this.kind = kind;
+		this.id = id;
+		this.path = path;
+		this.style = style;
+		this.required = required;
+	}
+
+	/**
+	 * 类型，KIND_VALUE、KIND_ARRAY、KIND_FIELD 或 KIND_TEST
+	 * @return
+	 */
+	public int getKind() {
+		return kind;
+	}
+
+	/**
+	 * 模板中的 id(或 items、repeat、field、test 属性)
+	 * @return
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * data 中的绝对路径
+	 * @return
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * minlen 属性，没有时为 0。同一个值出现多次时取最大的
+	 * @return
+	 */
+	public int getMinLength() {
+		return minlen;
+	}
+
+	void setMinLength(int minlen) {
+		this.minlen = Math.max(this.minlen, minlen);
+	}
+
+	/**
+	 * 值所在的格式上下文，例如 para[font-size=14]/value[font-style=bold]
+	 * @return
+	 */
+	public String getStyle() {
+		return style;
+	}
+
+	/**
+	 * 是否必须存在。条件中的项只在条件成立时需要，重复行的单元格及
+	 * 条件本身不需要
+	 * @return
+	 */
+	public boolean isRequired() {
+		return required;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(path);
+		if (minlen > 0) {
+			builder.append(" minlen=").append(minlen);
+		}
+		if (!required) {
+			builder.append(" optional");
+		}
+		if (style != null && style.length() > 0) {
+			builder.append(" ").append(style);
+		}
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,118 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * 渲染统计的入口
+ *
+ * 默认不统计，这时所有的计时调用都几乎没有开销。
+ * 通过 setRenderMetrics() 设置统计接口后开始统计，例如：
+ *
+ *     MetricsRegistry registry = new MetricsRegistry();
+ *     registry.registerMBean();
+ *     Metrics.setRenderMetrics(registry);
+ */
+public class Metrics
+{
+	private static volatile RenderMetrics metrics = null;
+
+	/**
+	 * 设置统计接口，null 表示关闭统计
+	 * @param render_metrics
+	 */
+	public static void setRenderMetrics(RenderMetrics render_metrics) {
+		metrics = render_metrics;
+	}
+
+	public static RenderMetrics getRenderMetrics() {
+		return metrics;
+	}
+
+	static boolean isEnabled() {
+		return metrics != null;
+	}
+
+	/**
+	 * 开始计时
+	 * @return 开始时间，没有开启统计时为 0
+	 */
+	static long start() {
+		if (metrics == null) {
+			return 0;
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * 结束一个阶段的计时
+	 * @param phase 阶段名称
+	 * @param start start() 的返回值
+	 */
+	static void end(String phase, long start) {
+		RenderMetrics m = metrics;
+		if (m != null && start != 0) {
+			m.phase(phase, System.nanoTime() - start);
+		}
+	}
+
+	static void cache(String cache, boolean hit) {
+		RenderMetrics m = metrics;
+		if (m != null) {
+			m.cache(cache, hit);
+		}
+	}
+
+	static void render(int doc_type, long start, int pages, long bytes,
+			long allocated, boolean failed) {
+		RenderMetrics m = metrics;
+		if (m != null && start != 0) {
+			m.render(doc_type, System.nanoTime() - start, pages, bytes,
+					allocated, failed);
+		}
+	}
+
+	/**
+	 * 当前线程已分配的内存总数，JVM 不支持时返回 -1
+	 * @return
+	 */
+	static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sun_bean =
+					(com.sun.management.ThreadMXBean) bean;
+			try {
+				if (sun_bean.isThreadAllocatedMemorySupported() &&
+						sun_bean.isThreadAllocatedMemoryEnabled()) {
+					return sun_bean.getThreadAllocatedBytes(
+							Thread.currentThread().getId());
+				}
+			} catch (UnsupportedOperationException ex) {
+			}
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,221 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 默认的渲染统计实现，在内存中累计各项数据，并可以注册为 JMX MBean
+ */
+public class MetricsRegistry implements RenderMetrics, MetricsRegistryMBean
+{
+	public static final String OBJECT_NAME =
+			"com.lucky_byte.pdf:type=TextPDF,name=Metrics";
+
+	private AtomicLong render_count = new AtomicLong();
+	private AtomicLong render_errors = new AtomicLong();
+	private AtomicLong render_nanos = new AtomicLong();
+	private AtomicLong render_nanos_max = new AtomicLong();
+	private AtomicLong pages = new AtomicLong();
+	private AtomicLong bytes = new AtomicLong();
+	private AtomicLong allocated = new AtomicLong();
+	private AtomicLong allocated_count = new AtomicLong();
+
+	// 每个阶段：次数，耗时
+	private Map<String, AtomicLong[]> phases =
+			new ConcurrentHashMap<String, AtomicLong[]>();
+	// 每个缓存：命中，未命中
+	private Map<String, AtomicLong[]> caches =
+			new ConcurrentHashMap<String, AtomicLong[]>();
+
+	private AtomicLong[] counters(Map<String, AtomicLong[]> map, String name) {
+		AtomicLong[] values = map.get(name);
+		if (values == null) {
+			synchronized (map) {
+				values = map.get(name);
+				if (values == null) {
+					values = new AtomicLong[] {
+							new AtomicLong(), new AtomicLong()
+					};
+					map.put(name, values);
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * 注册到平台 MBeanServer，名称为 OBJECT_NAME
+	 * @throws Exception
+	 */
+	public void registerMBean() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(this, name);
+	}
+
+	@Override
+	public void phase(String phase, long nanos) {
+		AtomicLong[] values = counters(phases, phase);
+		values[0].incrementAndGet();
+		values[1].addAndGet(nanos);
+	}
+
+	@Override
+	public void render(int doc_type, long nanos, int pages, long bytes,
+			long allocated, boolean failed) {
+		render_count.incrementAndGet();
+		if (failed) {
+			render_errors.incrementAndGet();
+		}
+		render_nanos.addAndGet(nanos);
+		long max;
+		while ((max = render_nanos_max.get()) < nanos) {
+			if (render_nanos_max.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+		this.pages.addAndGet(pages);
+		this.bytes.addAndGet(bytes);
+		if (allocated >= 0) {
+			this.allocated.addAndGet(allocated);
+			this.allocated_count.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void cache(String cache, boolean hit) {
+		AtomicLong[] values = counters(caches, cache);
+		values[hit ? 0 : 1].incrementAndGet();
+	}
+
+	@Override
+	public long getRenderCount() {
+		return render_count.get();
+	}
+
+	@Override
+	public long getRenderErrors() {
+		return render_errors.get();
+	}
+
+	@Override
+	public long getRenderMillisTotal() {
+		return render_nanos.get() / 1000000;
+	}
+
+	@Override
+	public long getRenderMillisMax() {
+		return render_nanos_max.get() / 1000000;
+	}
+
+	@Override
+	public double getRenderMillisMean() {
+		long count = render_count.get();
+		if (count == 0) {
+			return 0;
+		}
+		return render_nanos.get() / 1000000.0 / count;
+	}
+
+	@Override
+	public long getPagesProduced() {
+		return pages.get();
+	}
+
+	@Override
+	public long getBytesProduced() {
+		return bytes.get();
+	}
+
+	@Override
+	public long getAllocatedBytes() {
+		return allocated.get();
+	}
+
+	@Override
+	public long getAllocatedBytesPerRender() {
+		long count = allocated_count.get();
+		if (count == 0) {
+			return 0;
+		}
+		return allocated.get() / count;
+	}
+
+	@Override
+	public String[] getPhaseNames() {
+		return phases.keySet().toArray(new String[0]);
+	}
+
+	@Override
+	public long getPhaseCount(String phase) {
+		AtomicLong[] values = phases.get(phase);
+		return values == null ? 0 : values[0].get();
+	}
+
+	@Override
+	public long getPhaseMillis(String phase) {
+		AtomicLong[] values = phases.get(phase);
+		return values == null ? 0 : values[1].get() / 1000000;
+	}
+
+	@Override
+	public String[] getCacheNames() {
+		return caches.keySet().toArray(new String[0]);
+	}
+
+	@Override
+	public double getCacheHitRatio(String cache) {
+		AtomicLong[] values = caches.get(cache);
+		if (values == null) {
+			return 0;
+		}
+		long hits = values[0].get();
+		long total = hits + values[1].get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public void reset() {
+		render_count.set(0);
+		render_errors.set(0);
+		render_nanos.set(0);
+		render_nanos_max.set(0);
+		pages.set(0);
+		bytes.set(0);
+		allocated.set(0);
+		allocated_count.set(0);
+		phases.clear();
+		caches.clear();
+	}
+
+}
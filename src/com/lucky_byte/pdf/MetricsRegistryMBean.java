@@ -0,0 +1,48 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+/**
+ * MetricsRegistry 的 JMX 接口
+ */
+public interface MetricsRegistryMBean
+{
+	public long getRenderCount();
+	public long getRenderErrors();
+	public long getRenderMillisTotal();
+	public long getRenderMillisMax();
+	public double getRenderMillisMean();
+	public long getPagesProduced();
+	public long getBytesProduced();
+	public long getAllocatedBytes();
+	public long getAllocatedBytesPerRender();
+
+	public String[] getPhaseNames();
+	public long getPhaseCount(String phase);
+	public long getPhaseMillis(String phase);
+
+	public String[] getCacheNames();
+	public double getCacheHitRatio(String cache);
+
+	public void reset();
+}
@@ -0,0 +1,102 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 套打模板缓存
+ *
+ * 缓存 TextParser.compileOverlay() 生成的套打模板，以 LRU 方式淘汰。
+ * 可以被多个 TextParser 对象(多个线程)共享。
+ */
+public class OverlayCache
+{
+	private final int max_templates;
+	private Map<String, OverlayTemplate> templates;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param max_templates 最多缓存的模板数量
+	 */
+	public OverlayCache(final int max_templates) {
+		this.max_templates = max_templates;
+		templates = new LinkedHashMap<String, OverlayTemplate>(
+				16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, OverlayTemplate> eldest) {
+				return size() > OverlayCache.this.max_templates;
+			}
+		};
+	}
+
+	public OverlayCache() {
+		this(256);
+	}
+
+	/**
+	 * 查找套打模板
+	 * @param key 参考 OverlayTemplate.getKey()
+	 * @return 不存在时返回 null
+	 */
+	public synchronized OverlayTemplate get(String key) {
+		OverlayTemplate template = templates.get(key);
+		if (template == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		Metrics.cache("overlay", template != null);
+		return template;
+	}
+
+	public synchronized void put(OverlayTemplate template) {
+		templates.put(template.getKey(), template);
+	}
+
+	public synchronized void remove(String key) {
+		templates.remove(key);
+	}
+
+	public synchronized void clear() {
+		templates.clear();
+	}
+
+	public synchronized int size() {
+		return templates.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+}
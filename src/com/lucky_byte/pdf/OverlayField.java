@@ -0,0 +1,51 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import com.itextpdf.text.Font;
+import com.itextpdf.text.pdf.BaseFont;
+
+/**
+ * 一个值的位置及字体
+ */
+class OverlayField
+{
+	String id;
+	Font font;
+	int page = 0;
+	float x;
+	float y;
+	float width;
+
+	public OverlayField(String id, Font font) {
+		this.id = id;
+		// 下划线已经画在背景中
+		this.font = new Font(font.getBaseFont(), font.getSize(),
+				font.getStyle() & ~Font.UNDERLINE, font.getColor());
+	}
+
+	float getWidth(String text) {
+		BaseFont base_font = font.getCalculatedBaseFont(false);
+		return base_font.getWidthPoint(text, font.getSize());
+	}
+}
@@ -0,0 +1,74 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.itextpdf.text.Chunk;
+import com.itextpdf.text.Document;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfPageEventHelper;
+import com.itextpdf.text.pdf.PdfWriter;
+
+/**
+ * 生成背景时记录值的位置，参考 TextParser.compileOverlay()
+ */
+class OverlayRecorder extends PdfPageEventHelper
+{
+	List<OverlayField> fields = new ArrayList<OverlayField>();
+	String unsafe_reason = null;
+
+	void unsafe(String reason) {
+		if (unsafe_reason == null) {
+			unsafe_reason = reason;
+		}
+	}
+
+	/**
+	 * 记录一个值的占位符，占位符的宽度由 minlen 决定
+	 */
+	void addField(TextChunk text_chunk, Chunk chunk) {
+		String id = text_chunk.getAttrs().get("id");
+		if (text_chunk.getAttrs().get("minlen") == null) {
+			unsafe("Value '" + id + "' has no minlen");
+			return;
+		}
+		chunk.setGenericTag(String.valueOf(fields.size()));
+		fields.add(new OverlayField(id, chunk.getFont()));
+	}
+
+	@Override
+	public void onGenericTag(PdfWriter writer, Document document,
+			Rectangle rect, String text) {
+		OverlayField field = fields.get(Integer.parseInt(text));
+		if (field.page != 0) {
+			unsafe("Value '" + field.id + "' split across lines");
+			return;
+		}
+		field.page = writer.getPageNumber();
+		field.x = rect.getLeft();
+		field.y = rect.getBottom();
+		field.width = rect.getWidth();
+	}
+}
@@ -0,0 +1,200 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+
+import com.itextpdf.text.Chunk;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Element;
+import com.itextpdf.text.Phrase;
+import com.itextpdf.text.pdf.ColumnText;
+import com.itextpdf.text.pdf.PdfContentByte;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfStamper;
+
+/**
+ * 套打模板
+ *
+ * 对于格式固定的表单，值不会影响排版，可以先用占位符(按 minlen 留出的
+ * 空白)生成一次背景 PDF，同时记录每个 <value> 所在的页和坐标，之后每份
+ * 文档只需要复制背景，再在这些位置上写入值，而不需要重新排版。
+ *
+ * 下列情况的模板不适合套打(isSafe() 返回 false)：值没有 minlen 属性，
+ * 值的占位符被拆分到两行，表格中有重复行。写入时如果某个值超出了占位符
+ * 的宽度，或者包含换行，stamp() 返回 false，调用者应该改为完整排版。
+ * 参考 TextParser.setOverlayCache()。
+ */
+public class OverlayTemplate
+{
+	private String key;
+	private byte[] background;
+	private List<OverlayField> fields;
+	private String unsafe_reason;
+	private Diagnostics diagnostics;
+
+	OverlayTemplate(String key, byte[] background, OverlayRecorder recorder,
+			Diagnostics diagnostics) {
+		this.key = key;
+		this.background = background;
+		this.fields = recorder.fields;
+		this.unsafe_reason = recorder.unsafe_reason;
+		this.diagnostics = diagnostics;
+
+		if (unsafe_reason == null) {
+			for (OverlayField field : fields) {
+				if (field.page == 0) {
+					unsafe_reason = "Value '" + field.id + "' not placed";
+					break;
+				}
+			}
+		}
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * 是否可以套打
+	 * @return
+	 */
+	public boolean isSafe() {
+		return unsafe_reason == null;
+	}
+
+	/**
+	 * 不能套打的原因
+	 * @return 可以套打时返回 null
+	 */
+	public String getUnsafeReason() {
+		return unsafe_reason;
+	}
+
+	/**
+	 * 背景 PDF
+	 * @return
+	 */
+	public byte[] getBackground() {
+		return background;
+	}
+
+	/**
+	 * 从 JSON 中取得值，产生和完整排版时相同的警告
+	 */
+	private String[] values(JSONObject json_object, Diagnostics diagnostics) {
+		String[] values = new String[fields.size()];
+		if (json_object == null) {
+			return values;
+		}
+		Object data = json_object.get("data");
+		if (data == null) {
+			diagnostics.warn("JSON source missing 'data' key, please check!");
+			return values;
+		}
+		if (!(data instanceof JSONObject)) {
+			diagnostics.warn("JSON 'data' must be a object.");
+			return values;
+		}
+		JSONObject json_data = (JSONObject) data;
+		for (int i = 0; i < fields.size(); i++) {
+			String id = fields.get(i).id;
+			// 和完整排版一样按照路径取值，数字及布尔值转换为字符串
+			Object value = JsonPath.lookup(json_data, id);
+			if (value == JsonPath.MISSING) {
+				diagnostics.warn("JSON data key '" + id + "' not found!");
+				continue;
+			}
+			if (value instanceof Number || value instanceof Boolean) {
+				value = value.toString();
+			}
+			if (!(value instanceof String)) {
+				diagnostics.warn("JSON  data key '" + id
+						+ "' must has a string value.");
+				continue;
+			}
+			values[i] = (String) value;
+		}
+		return values;
+	}
+
+	/**
+	 * 复制背景并写入值
+	 * @param json_object JSON 数据，可以为 null
+	 * @param out_stream 输出流，成功时会被关闭
+	 * @param diagnostics 警告信息
+	 * @return 模板不能套打，或者值超出占位符时返回 false，这时没有任何输出
+	 * @throws IOException
+	 */
+	public boolean stamp(JSONObject json_object, OutputStream out_stream,
+			Diagnostics diagnostics) throws IOException {
+		if (!isSafe()) {
+			return false;
+		}
+		Diagnostics value_diagnostics = new Diagnostics();
+		String[] values = values(json_object, value_diagnostics);
+
+		// 先检查所有的值，确定可以套打后才开始输出
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null || values[i].length() == 0) {
+				continue;
+			}
+			OverlayField field = fields.get(i);
+			if (values[i].indexOf('\n') >= 0 ||
+					field.getWidth(values[i]) > field.width) {
+				return false;
+			}
+		}
+		long start = Metrics.start();
+		RenderSpan span = Tracing.begin(RenderSpan.STAMP, "overlay");
+		try {
+			PdfReader reader = new PdfReader(background);
+			PdfStamper stamper = new PdfStamper(reader, out_stream);
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] == null || values[i].length() == 0) {
+					continue;
+				}
+				OverlayField field = fields.get(i);
+				PdfContentByte canvas = stamper.getOverContent(field.page);
+				ColumnText.showTextAligned(canvas, Element.ALIGN_LEFT,
+						new Phrase(new Chunk(values[i], field.font)),
+						field.x, field.y, 0);
+			}
+			stamper.close();
+			reader.close();
+		} catch (DocumentException e) {
+			throw new IOException(e);
+		} finally {
+			Tracing.end(span);
+		}
+		Metrics.end(RenderMetrics.PHASE_STAMP, start);
+		diagnostics.merge(this.diagnostics);
+		diagnostics.merge(value_diagnostics);
+		return true;
+	}
+
+}
@@ -44,9 +44,12 @@ import com.itextpdf.text.SplitCharacter;
 import com.itextpdf.text.pdf.BaseFont;
 import com.itextpdf.text.pdf.ColumnText;
 import com.itextpdf.text.pdf.PdfChunk;
+import com.itextpdf.text.pdf.PdfContentByte;
+import com.itextpdf.text.pdf.PdfImportedPage;
 import com.itextpdf.text.pdf.PdfPCell;
 import com.itextpdf.text.pdf.PdfPTable;
 import com.itextpdf.text.pdf.PdfPageEventHelper;
+import com.itextpdf.text.pdf.PdfReader;
 import com.itextpdf.text.pdf.PdfTemplate;
 import com.itextpdf.text.pdf.PdfWriter;
 import com.itextpdf.text.pdf.draw.LineSeparator;
@@ -111,8 +114,17 @@ public class PDFDoc extends TextDoc
 	private Document document;
 	private PdfWriter writer;
 	private Map<String, Image> images;
+	private int page_count = 0;
+	private PdfPTable pdf_table = null;
+	private OverlayRecorder overlay_recorder = null;
+	private int table_rows = 0;
 
-	private SplitCharacter split_character = new SplitCharacter() {
+	// 大表格每增加这么多行就输出到文档，输出后的行不再占用内存
+	static final int TABLE_FLUSH_ROWS = 100;
+
+	// 不引用文档，生成的 Chunk 可以保存在静态块缓存中
+	static final private SplitCharacter SPLIT_CHARACTER =
+			new SplitCharacter() {
 		@Override
 		public boolean isSplitCharacter(int start, int current,
 				int end, char[] cc, PdfChunk[] chunk) {
@@ -161,25 +173,45 @@ public class PDFDoc extends TextDoc
 			document.setMargins(page_margin_left, page_margin_right,
 					page_margin_top, page_margin_bottom);
 			writer = PdfWriter.getInstance(document, out_stream);
+			if (overlay_recorder != null) {
+				writer.setPageEvent(overlay_recorder);
+			}
 			// writer.setFullCompression();	// 需求 PDF 1.5
 			writer.setCompressionLevel(9);
 			addMetaInfo();
 			document.open();
 			return true;
 		} catch (Exception e) {
-			e.printStackTrace();
+			diagnostics.warn("Open PDF document failed: " + e);
 			return false;
 		}
 	}
 
+	/**
+	 * 生成套打背景时记录值的位置，参考 OverlayTemplate
+	 * @param recorder
+	 */
+	void setOverlayRecorder(OverlayRecorder recorder) {
+		this.overlay_recorder = recorder;
+	}
+
 	/**
 	 * 关闭 PDF 文档，关闭后不能继续操作文档
 	 */
 	@Override
 	public void close() {
+		page_count = writer.getPageNumber();
 		document.close();
 	}
 
+	@Override
+	public int getPageCount() {
+		if (isOpen()) {
+			return writer.getPageNumber();
+		}
+		return page_count;
+	}
+
 	/**
 	 * 测试文档是否已打开
 	 * @return
@@ -363,7 +395,7 @@ public class PDFDoc extends TextDoc
 					value.equalsIgnoreCase("song")) {
 				font_family = FONT_FAMILY_SONG;
 			} else {
-				System.err.println("Font family '" + value + "' unknown!");
+				diagnostics.warn("Font family '" + value + "' unknown!");
 			}
 		}
 
@@ -372,7 +404,7 @@ public class PDFDoc extends TextDoc
 			try {
 				font_size = Integer.parseInt(value);
 			} catch (Exception ex) {
-				System.err.println("Font size '" + value + "' invalid.");
+				diagnostics.warn("Font size '" + value + "' invalid.");
 			}
 		}
 
@@ -392,16 +424,24 @@ public class PDFDoc extends TextDoc
 			}
 		}
 
-		switch (font_family) {
-		case FONT_FAMILY_HEI:
-			base_font = BaseFont.createFont("resources/SIMHEI.TTF",
-					BaseFont.IDENTITY_H, BaseFont.EMBEDDED);
-			break;
-		case FONT_FAMILY_SONG:
-			base_font = BaseFont.createFont("resources/SIMSUN.TTC,0",
-					BaseFont.IDENTITY_H, BaseFont.EMBEDDED);
-			break;
+		long start = Metrics.start();
+		RenderSpan span = Tracing.begin(RenderSpan.FONT,
+				String.valueOf(font_family));
+		try {
+			switch (font_family) {
+			case FONT_FAMILY_HEI:
+				base_font = BaseFont.createFont("resources/SIMHEI.TTF",
+						BaseFont.IDENTITY_H, BaseFont.EMBEDDED);
+				break;
+			case FONT_FAMILY_SONG:
+				base_font = BaseFont.createFont("resources/SIMSUN.TTC,0",
+						BaseFont.IDENTITY_H, BaseFont.EMBEDDED);
+				break;
+			}
+		} finally {
+			Tracing.end(span);
 		}
+		Metrics.end(RenderMetrics.PHASE_FONT, start);
 		chunk.setFont(new Font(base_font, font_size, font_style));
 	}
 
@@ -436,13 +476,17 @@ public class PDFDoc extends TextDoc
 
 		String contents = text_chunk.getContents();
 
+		// 生成套打背景时值为空，但是应该和有值时的格式相同
+		boolean placeholder = overlay_recorder != null && text_chunk.isValue();
+
 		value = text_chunk.getAttrs().get("minlen");
 		if (value != null && value.length() > 0) {
-			if (contents.length() == 0) {
+			if (contents.length() == 0 && !placeholder) {
 				chunk.setUnderline(1.0f, -4.0f);
 			}
 			try {
 				int minlen = Integer.parseInt(value);
+				budget.checkPadding(minlen);
 				int currlen = 0;
 				for (int i = 0; i < contents.length(); i++) {
 					char ch = contents.charAt(i);
@@ -459,13 +503,15 @@ public class PDFDoc extends TextDoc
 					}
 					contents = builder.toString();
 				}
-			} catch (Exception ex) {
-				ex.printStackTrace();
-				System.err.println("minlen need a integer value.");
+			} catch (NumberFormatException ex) {
+				diagnostics.warn("minlen need a integer value.");
 			}
 		}
 		chunk.append(contents);
 		setChunkFont(text_chunk, chunk, block_default);
+		if (placeholder) {
+			overlay_recorder.addField(text_chunk, chunk);
+		}
 		return chunk;
 	}
 
@@ -485,7 +531,7 @@ public class PDFDoc extends TextDoc
 				} else if (value.equalsIgnoreCase("right")) {
 					para.setAlignment(Element.ALIGN_RIGHT);
 				} else {
-					System.err.println("Block alignment type '"
+					diagnostics.warn("Block alignment type '"
 							+ value + "' unknown.");
 				}
 			}
@@ -496,7 +542,7 @@ public class PDFDoc extends TextDoc
 					float indent = Float.parseFloat(value);
 					para.setFirstLineIndent(indent);
 				} catch (Exception ex) {
-					System.err.println(
+					diagnostics.warn(
 							"Indent attribute must has a float value");
 				}
 			}
@@ -507,7 +553,7 @@ public class PDFDoc extends TextDoc
 					float space = Float.parseFloat(value);
 					para.setSpacingBefore(space);
 				} catch (Exception ex) {
-					System.err.println(
+					diagnostics.warn(
 							"space-before attribute must has a float value");
 				}
 			}
@@ -518,7 +564,7 @@ public class PDFDoc extends TextDoc
 					float space = Float.parseFloat(value);
 					para.setSpacingAfter(space);
 				} catch (Exception ex) {
-					System.err.println(
+					diagnostics.warn(
 							"space-after attribute must has a float value");
 				}
 			}
@@ -526,21 +572,21 @@ public class PDFDoc extends TextDoc
 	}
 
 	/**
-	 * 添加一段文字到 PDF 文档
+	 * 生成一段文字
 	 * @param chunk_list chunks 列表
 	 * @param alignment 对齐方式
 	 * @param indent 首行缩进空间
 	 * @throws DocumentException
 	 * @throws IOException
 	 */
-	private void addParagraph(int block_type, List<TextChunk> chunk_list,
-			PDFBlockDefault block_default)
+	private Paragraph createParagraph(int block_type,
+			List<TextChunk> chunk_list, PDFBlockDefault block_default)
 			throws DocumentException, IOException {
 		Paragraph para = new Paragraph();
 
 		for(TextChunk text_chunk : chunk_list) {
 			Chunk chunk = formatChunk(text_chunk, block_default);
-			chunk.setSplitCharacter(split_character);
+			chunk.setSplitCharacter(SPLIT_CHARACTER);
 			para.add(chunk);
 		}
 		para.setSpacingBefore(block_default.line_space_before);
@@ -549,7 +595,7 @@ public class PDFDoc extends TextDoc
 		para.setFirstLineIndent(block_default.indent);
 
 		formatParagraph(para, chunk_list);
-		document.add(para);
+		return para;
 	}
 
 	/**
@@ -567,10 +613,64 @@ public class PDFDoc extends TextDoc
 			return;
 		}
 		if (document == null && !document.isOpen()) {
-			System.err.println("Document unopen yet, please open it first.");
+			diagnostics.warn("Document unopen yet, please open it first.");
 			return;
 		}
+		Paragraph para = createBlock(block_name, chunk_list);
+		if (para != null) {
+			try {
+				document.add(para);
+			} catch (DocumentException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	/**
+	 * 添加一个不包含值的块，块的内容只和模板有关，所以生成的段落可以
+	 * 保存在 cache 中供以后的渲染重复使用
+	 * @param block_name 块类型名
+	 * @param chunk_list 本块的内容
+	 * @param cache 静态块缓存
+	 * @param key 块在缓存中的键，参考 StaticBlockCache
+	 * @throws IOException
+	 */
+	public void writeStaticBlock(String block_name, List<TextChunk> chunk_list,
+			StaticBlockCache cache, String key) throws IOException {
+		if (document == null || !document.isOpen()) {
+			diagnostics.warn("Document unopen yet, please open it first.");
+			return;
+		}
+		StaticBlock block = cache.get(key);
+		if (block == null) {
+			// 生成时的警告和段落一起保存，每次使用时重新报告
+			Diagnostics render_diagnostics = diagnostics;
+			diagnostics = new Diagnostics();
+			try {
+				block = new StaticBlock(
+						createBlock(block_name, chunk_list), diagnostics);
+			} finally {
+				diagnostics = render_diagnostics;
+			}
+			cache.put(key, block);
+		}
+		diagnostics.merge(block.diagnostics);
+		Paragraph para = block.toParagraph();
+		if (para != null) {
+			try {
+				document.add(para);
+			} catch (DocumentException e) {
+				throw new IOException(e);
+			}
+		}
+	}
 
+	/**
+	 * 生成块对应的段落
+	 * @return 块类型未知时返回 null
+	 */
+	private Paragraph createBlock(String block_name,
+			List<TextChunk> chunk_list) throws IOException {
 		int block_type = -1;
 
 		// 将块名称映射到内部的整数表示
@@ -581,20 +681,47 @@ public class PDFDoc extends TextDoc
 			}
 		}
 		if (block_type == -1) {
-			System.err.println("Block type '" + block_name + "' unknown!");
-			return;
+			diagnostics.warn("Block type '" + block_name + "' unknown!");
+			return null;
 		}
 
 		for (PDFBlockDefault block_default : block_defaults) {
 			if (block_default.block_type == block_type) {
 				try {
-					addParagraph(block_type, chunk_list, block_default);
+					return createParagraph(
+							block_type, chunk_list, block_default);
 				} catch (DocumentException e) {
 					throw new IOException(e);
 				}
-				break;
 			}
 		}
+		return null;
+	}
+
+	/**
+	 * 从新的一页开始复制 PDF 片段中所有的页，之后的内容也从新的一页开始
+	 * @param pdf PDF 片段，页面设置应该和当前文档相同
+	 * @throws IOException
+	 */
+	public void importPages(byte[] pdf) throws IOException {
+		if (document == null || !document.isOpen()) {
+			diagnostics.warn("Document unopen yet, please open it first.");
+			return;
+		}
+		PdfReader reader = new PdfReader(pdf);
+		try {
+			PdfContentByte canvas = writer.getDirectContent();
+			for (int i = 1; i <= reader.getNumberOfPages(); i++) {
+				document.newPage();
+				PdfImportedPage page = writer.getImportedPage(reader, i);
+				canvas.addTemplate(page, 0, 0);
+				writer.setPageEmpty(false);
+			}
+			writer.freeReader(reader);
+			document.newPage();
+		} finally {
+			reader.close();
+		}
 	}
 
 	/**
@@ -603,7 +730,7 @@ public class PDFDoc extends TextDoc
 	@Override
 	public void newPage() {
 		if (document == null && !document.isOpen()) {
-			System.err.println("Document unopen yet, please open it first.");
+			diagnostics.warn("Document unopen yet, please open it first.");
 			return;
 		}
 		document.newPage();
@@ -635,7 +762,7 @@ public class PDFDoc extends TextDoc
 			document.add(Chunk.NEWLINE);
 			document.add(line);
 		} catch (Exception ex) {
-			ex.printStackTrace();
+			diagnostics.warn("Add hrule failed: " + ex);
 		}
 	}
 
@@ -648,19 +775,26 @@ public class PDFDoc extends TextDoc
 		try {
 			String src = attrs.getValue("src");
 			if (src == null) {
-				System.err.println("img missing src attribute.");
+				diagnostics.warn("img missing src attribute.");
 				return;
 			}
 			Image img = images.get(src);
 			if (img == null) {
-				img = Image.getInstance(src);
-				images.put(src, img);
+				long start = Metrics.start();
+				RenderSpan span = Tracing.begin(RenderSpan.IMAGE, src);
+				try {
+					img = Image.getInstance(src);
+					images.put(src, img);
+				} finally {
+					Tracing.end(span);
+				}
+				Metrics.end(RenderMetrics.PHASE_IMAGE, start);
 			}
 			if (img != null) {
 				document.add(img);
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
+			diagnostics.warn("Add image failed: " + e);
 		}
 	}
 
@@ -679,7 +813,7 @@ public class PDFDoc extends TextDoc
 					columns[i] = Integer.parseInt(array[i]);
 				}
 			} catch (Exception ex) {
-				System.err.println("column must has a integer value");
+				diagnostics.warn("column must has a integer value");
 			}
 		}
 		if (columns == null) {
@@ -694,7 +828,7 @@ public class PDFDoc extends TextDoc
 			try {
 				width = Float.parseFloat(value);
 			} catch (Exception ex) {
-				System.err.println("width must has a float value");
+				diagnostics.warn("width must has a float value");
 			}
 		}
 		table.setWidthPercentage(width);
@@ -720,7 +854,7 @@ public class PDFDoc extends TextDoc
 			try {
 				cell.setColspan(Integer.parseInt(value));
 			} catch (Exception ex) {
-				System.err.println("colspan must has a integer value");
+				diagnostics.warn("colspan must has a integer value");
 			}
 		}
 		value = attrs.get("align");
@@ -748,30 +882,79 @@ public class PDFDoc extends TextDoc
 				break;
 			}
 		}
-		PdfPTable pdf_table;
-
 		try {
-			pdf_table = createTable(table.getAttrs());
 			if (pdf_table == null) {
-				return;
+				pdf_table = createTable(table.getAttrs());
+				table_rows = 0;
+				pdf_table.setHeaderRows(headerRows(table));
+				if (!table.isComplete()) {
+					// 分批输出，已经输出的行会从 pdf_table 中删除
+					pdf_table.setComplete(false);
+				}
 			}
-		} catch (DocumentException e1) {
-			throw new IOException(e1);
-		}
-
-		for (TextChunk text_chunk : table.getCells()) {
-			try {
+			for (TextChunk text_chunk : table.getCells()) {
 				pdf_table.addCell(createTableCell(text_chunk, block_default));
-			} catch (DocumentException e) {
-				throw new IOException(e);
 			}
-		}
-		try {
+			// 重复行直接从 JSON 数组生成单元格
+			if (table.getRows() != null) {
+				for (Object row : table.getRows()) {
+					budget.check(this);
+					for (TextChunk text_chunk : table.bindRow(row)) {
+						pdf_table.addCell(
+								createTableCell(text_chunk, block_default));
+					}
+					if (!table.isComplete() &&
+							++table_rows % TABLE_FLUSH_ROWS == 0) {
+						document.add(pdf_table);
+					}
+				}
+			}
+			if (!table.isComplete()) {
+				document.add(pdf_table);
+				return;
+			}
 			pdf_table.completeRow();
+			pdf_table.setComplete(true);
 			document.add(pdf_table);
 		} catch (DocumentException e) {
 			throw new IOException(e);
+		} finally {
+			if (table.isComplete()) {
+				pdf_table = null;
+			}
+		}
+	}
+
+	/**
+	 * 每页重复的表头行数，通过 header 属性指定，有重复行时默认为重复行
+	 * 之前的单元格所占的行数。一次输出的表格没有绑定重复行，默认为 0
+	 */
+	private int headerRows(TextTable table) {
+		String value = table.getAttrs().get("header");
+		if (value != null) {
+			try {
+				return Integer.parseInt(value);
+			} catch (Exception ex) {
+				diagnostics.warn("header must has a integer value");
+			}
+		}
+		if (table.getRepeat() == null || table.isComplete()) {
+			return 0;
+		}
+		int cells = 0;
+		for (TextChunk text_chunk : table.getCells()) {
+			int colspan = 1;
+			String colspan_value = text_chunk.getAttrs().get("colspan");
+			if (colspan_value != null) {
+				try {
+					colspan = Integer.parseInt(colspan_value);
+				} catch (Exception ex) {
+				}
+			}
+			cells += colspan;
 		}
+		int columns = pdf_table.getNumberOfColumns();
+		return (cells + columns - 1) / columns;
 	}
 
 }
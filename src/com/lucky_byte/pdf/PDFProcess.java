@@ -65,6 +65,8 @@ public class PDFProcess
 
 	private	int font_family;
 	private BaseColor color;
+	private String template_id = null;
+	private String record_id = null;
 	
 	public PDFProcess(InputStream pdf_in_stream,
 			OutputStream pdf_out_stream) throws IOException {
@@ -80,6 +82,16 @@ public class PDFProcess
 		this.color = BaseColor.GRAY;
 	}	
 
+	/**
+	 * 设置跟踪标识，参考 TextParser.setTraceIds()
+	 * @param template_id
+	 * @param record_id
+	 */
+	public void setTraceIds(String template_id, String record_id) {
+		this.template_id = template_id;
+		this.record_id = record_id;
+	}
+
 	private BaseFont getBaseFont(int font_family) throws IOException{
 		BaseFont base_font = null;
 		try {
@@ -105,11 +117,17 @@ public class PDFProcess
 	 * @throws IOException
 	 */
 	public void finish() throws IOException {
+		long start = Metrics.start();
+		RenderSpan span = Tracing.begin(RenderSpan.STAMP, "finish",
+				template_id, record_id);
 		try {
 			this.stamper.close();
 		} catch (DocumentException e) {
 			throw new IOException(e);
+		} finally {
+			Tracing.end(span, reader.getNumberOfPages(), -1);
 		}
+		Metrics.end(RenderMetrics.PHASE_STAMP, start);
 	}
 
 	/**
@@ -126,40 +144,48 @@ public class PDFProcess
 		if (text == null || text.length() == 0)
 			return;
 
-		int total_pages = reader.getNumberOfPages();
+		long start = Metrics.start();
+		RenderSpan span = Tracing.begin(RenderSpan.STAMP, "text-marker",
+				template_id, record_id);
+		try {
+			int total_pages = reader.getNumberOfPages();
 
-		for (int i = 1; i <= total_pages; i++) {
-			Rectangle page_rect = reader.getPageSizeWithRotation(i);
-			float width = page_rect.getWidth();
-			float height = page_rect.getHeight();
-			float text_width = font_size * text.length();
+			for (int i = 1; i <= total_pages; i++) {
+				Rectangle page_rect = reader.getPageSizeWithRotation(i);
+				float width = page_rect.getWidth();
+				float height = page_rect.getHeight();
+				float text_width = font_size * text.length();
 
-			PdfGState gs = new PdfGState();
-			gs.setFillOpacity(opacity);
+				PdfGState gs = new PdfGState();
+				gs.setFillOpacity(opacity);
 
-			PdfContentByte content = stamper.getUnderContent(i);
-			content.beginText();
-			content.setGState(gs);
-			content.setColorFill(color);
-			content.setFontAndSize(getBaseFont(font_family), font_size);
-			content.setTextMatrix(10, 10);
+				PdfContentByte content = stamper.getUnderContent(i);
+				content.beginText();
+				content.setGState(gs);
+				content.setColorFill(color);
+				content.setFontAndSize(getBaseFont(font_family), font_size);
+				content.setTextMatrix(10, 10);
 
-			switch (style) {
-			case MARKER_STYLE_CENTER:
-				content.showTextAligned(Element.ALIGN_JUSTIFIED_ALL, 
-						text, width / 2 - text_width / 2, height / 2, angle); 
-				break;
-			case MARKER_STYLE_FULL:
-				for (float y = height - 20; y > -height + 20; y -= 100) {
-					for (float x = 10; x < width - 10; x += text_width) {
-						content.showTextAligned(Element.ALIGN_JUSTIFIED_ALL,
-								text, x, y, angle);
+				switch (style) {
+				case MARKER_STYLE_CENTER:
+					content.showTextAligned(Element.ALIGN_JUSTIFIED_ALL, 
+							text, width / 2 - text_width / 2, height / 2, angle); 
+					break;
+				case MARKER_STYLE_FULL:
+					for (float y = height - 20; y > -height + 20; y -= 100) {
+						for (float x = 10; x < width - 10; x += text_width) {
+							content.showTextAligned(Element.ALIGN_JUSTIFIED_ALL,
+									text, x, y, angle);
+						}
 					}
+					break;
 				}
-				break;
+				content.endText();
 			}
-			content.endText();
+		} finally {
+			Tracing.end(span, reader.getNumberOfPages(), -1);
 		}
+		Metrics.end(RenderMetrics.PHASE_STAMP, start);
 	}
 
 	/**
@@ -179,36 +205,44 @@ public class PDFProcess
 		if (img_filename == null) {
 			return;
 		}
-		Image image = null;
-		Rectangle page_rect;
-		int total_pages = reader.getNumberOfPages();
-
+		long start = Metrics.start();
+		RenderSpan span = Tracing.begin(RenderSpan.STAMP, "image-marker",
+				template_id, record_id);
 		try {
-			image = Image.getInstance(img_filename);
-			image.scaleToFit(width, height);
-		} catch (BadElementException e) {
-			throw new IOException(e);
-		}
-		PdfGState gs = new PdfGState();
-		gs.setFillOpacity(opacity);
+			Image image = null;
+			Rectangle page_rect;
+			int total_pages = reader.getNumberOfPages();
 
-		if (only_first_page) {
-			total_pages = 1;
-		}
-		for (int i = 1; i <= total_pages; i++) {
-			page_rect = reader.getPageSizeWithRotation(i);
-			PdfContentByte content = stamper.getUnderContent(i);
-			if (x < 0) {
-				x = page_rect.getWidth() + x;
-			}
-			image.setAbsolutePosition(x, page_rect.getHeight() - y - height);
-			content.setGState(gs);
 			try {
-				content.addImage(image);
-			} catch (DocumentException e) {
+				image = Image.getInstance(img_filename);
+				image.scaleToFit(width, height);
+			} catch (BadElementException e) {
 				throw new IOException(e);
 			}
+			PdfGState gs = new PdfGState();
+			gs.setFillOpacity(opacity);
+
+			if (only_first_page) {
+				total_pages = 1;
+			}
+			for (int i = 1; i <= total_pages; i++) {
+				page_rect = reader.getPageSizeWithRotation(i);
+				PdfContentByte content = stamper.getUnderContent(i);
+				if (x < 0) {
+					x = page_rect.getWidth() + x;
+				}
+				image.setAbsolutePosition(x, page_rect.getHeight() - y - height);
+				content.setGState(gs);
+				try {
+					content.addImage(image);
+				} catch (DocumentException e) {
+					throw new IOException(e);
+				}
+			}
+		} finally {
+			Tracing.end(span, reader.getNumberOfPages(), -1);
 		}
+		Metrics.end(RenderMetrics.PHASE_STAMP, start);
 	}
 
 	/**
@@ -269,24 +303,32 @@ public class PDFProcess
 	}
 
 	public void addPageNum() throws IOException {
-		int total_pages = reader.getNumberOfPages();
+		long start = Metrics.start();
+		RenderSpan span = Tracing.begin(RenderSpan.STAMP, "page-number",
+				template_id, record_id);
+		try {
+			int total_pages = reader.getNumberOfPages();
 
-		PdfGState gs = new PdfGState();
-		gs.setFillOpacity(1.0f);
+			PdfGState gs = new PdfGState();
+			gs.setFillOpacity(1.0f);
 
-		for (int i = 1; i <= total_pages; i++) {
-			PdfContentByte content = stamper.getUnderContent(i);
-			content.beginText();
-			content.setGState(gs);
-			content.setColorFill(BaseColor.BLACK);
-			content.setFontAndSize(getBaseFont(font_family), 11);
+			for (int i = 1; i <= total_pages; i++) {
+				PdfContentByte content = stamper.getUnderContent(i);
+				content.beginText();
+				content.setGState(gs);
+				content.setColorFill(BaseColor.BLACK);
+				content.setFontAndSize(getBaseFont(font_family), 11);
 
-			Rectangle page_rect = reader.getPageSizeWithRotation(i);
-			String text = String.format("- 第 %d 页 共 %d 页 -", i, total_pages);
-			content.showTextAligned(Element.ALIGN_CENTER,
-					text, page_rect.getWidth() / 2, 30, 0);
-			content.endText();
+				Rectangle page_rect = reader.getPageSizeWithRotation(i);
+				String text = String.format("- 第 %d 页 共 %d 页 -", i, total_pages);
+				content.showTextAligned(Element.ALIGN_CENTER,
+						text, page_rect.getWidth() / 2, 30, 0);
+				content.endText();
+			}
+		} finally {
+			Tracing.end(span, reader.getNumberOfPages(), -1);
 		}
+		Metrics.end(RenderMetrics.PHASE_STAMP, start);
 	}
 
 	public static final int ALLOW_PRINTING = PdfWriter.ALLOW_PRINTING;
@@ -0,0 +1,168 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 一次渲染的资源使用情况
+ *
+ * TextDocHandler 和 TextDoc 在处理元素、补齐、表格行时检查资源限制，
+ * 以及时间是否用完、是否被取消(TextParser.cancel() 或线程被中断)，
+ * 超出时抛出 RenderLimitException，渲染线程可以立即回到线程池。
+ */
+class RenderBudget
+{
+	private RenderLimits limits;
+	private TextParser parser;
+	private long deadline = 0;
+	private long cells = 0;
+
+	/**
+	 * @param limits 为 null 时不限制
+	 * @param parser 为 null 时不能取消
+	 */
+	public RenderBudget(RenderLimits limits, TextParser parser) {
+		this.limits = limits == null ? new RenderLimits() : limits;
+		this.parser = parser;
+		if (this.limits.getMaxMillis() > 0) {
+			deadline = System.nanoTime() +
+					this.limits.getMaxMillis() * 1000000L;
+		}
+	}
+
+	private RenderLimitException exceeded(String limit, long max) {
+		return new RenderLimitException(limit,
+				"Render limit exceeded: " + limit + " > " + max);
+	}
+
+	/**
+	 * 检查时间、页数以及是否被取消
+	 * @param text_doc
+	 */
+	public void check(TextDoc text_doc) {
+		if ((parser != null && parser.cancelled) ||
+				Thread.currentThread().isInterrupted()) {
+			throw new RenderLimitException(RenderLimitException.CANCELLED,
+					"Render cancelled.");
+		}
+		if (deadline != 0 && System.nanoTime() - deadline > 0) {
+			throw exceeded("millis", limits.getMaxMillis());
+		}
+		int max_pages = limits.getMaxPages();
+		if (max_pages > 0 && text_doc != null &&
+				text_doc.getPageCount() > max_pages) {
+			throw exceeded("pages", max_pages);
+		}
+	}
+
+	public void checkSpaces(int spaces) {
+		int max_spaces = limits.getMaxSpaces();
+		if (max_spaces > 0 && spaces > max_spaces) {
+			throw exceeded("spaces", max_spaces);
+		}
+	}
+
+	public void checkPadding(int padding) {
+		int max_padding = limits.getMaxPadding();
+		if (max_padding > 0 && padding > max_padding) {
+			throw exceeded("padding", max_padding);
+		}
+	}
+
+	/**
+	 * 增加表格单元格计数
+	 * @param count
+	 */
+	public void addCells(long count) {
+		cells += count;
+		long max_cells = limits.getMaxCells();
+		if (max_cells > 0 && cells > max_cells) {
+			throw exceeded("cells", max_cells);
+		}
+	}
+
+	/**
+	 * 在异常的原因中查找 RenderLimitException
+	 * @param e
+	 * @return 没有找到时返回 null
+	 */
+	public static RenderLimitException findCause(Throwable e) {
+		for (int i = 0; e != null && i < 16; i++) {
+			if (e instanceof RenderLimitException) {
+				return (RenderLimitException) e;
+			}
+			e = e.getCause();
+		}
+		return null;
+	}
+
+	/**
+	 * 限制输出字节数，没有限制时返回原输出流
+	 * @param stream
+	 * @return
+	 */
+	public OutputStream wrap(OutputStream stream) {
+		if (stream == null || limits.getMaxOutputBytes() <= 0) {
+			return stream;
+		}
+		return new BudgetOutputStream(stream, limits.getMaxOutputBytes());
+	}
+
+	/**
+	 * 超出字节数时抛出异常的输出流
+	 */
+	private class BudgetOutputStream extends FilterOutputStream
+	{
+		private long count = 0;
+		private long max_bytes;
+
+		public BudgetOutputStream(OutputStream out_stream, long max_bytes) {
+			super(out_stream);
+			this.max_bytes = max_bytes;
+		}
+
+		private void count(int length) {
+			count += length;
+			if (count > max_bytes) {
+				throw exceeded("output_bytes", max_bytes);
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			count(1);
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length)
+				throws IOException {
+			count(length);
+			out.write(bytes, offset, length);
+		}
+	}
+
+}
@@ -0,0 +1,305 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 渲染结果缓存
+ *
+ * 以模板、JSON 数据及输出选项的摘要为键(参考 TextParser.setRenderCache())，
+ * 缓存最终输出的字节。分为两级：内存中按字节数限制大小的 LRU 缓存，
+ * 以及可选的磁盘缓存，磁盘缓存超过大小限制时淘汰最久未使用的文件。
+ * 可以被多个 TextParser 对象(多个线程)共享。
+ */
+public class RenderCache
+{
+	static final private String SUFFIX = ".render";
+
+	private final long max_memory;
+	private final long max_disk;
+	private File cache_dir;
+
+	private LinkedHashMap<String, byte[]> memory;
+	private long memory_size = 0;
+	private LinkedHashMap<String, Long> disk;
+	private long disk_size = 0;
+
+	private long memory_hits = 0;
+	private long disk_hits = 0;
+	private long misses = 0;
+
+	/**
+	 * 只使用内存缓存
+	 * @param max_memory 内存缓存的最大字节数
+	 */
+	public RenderCache(long max_memory) {
+		this(max_memory, null, 0);
+	}
+
+	/**
+	 * @param max_memory 内存缓存的最大字节数
+	 * @param cache_dir 磁盘缓存目录，为 null 时不使用磁盘缓存
+	 * @param max_disk 磁盘缓存的最大字节数
+	 */
+	public RenderCache(long max_memory, File cache_dir, long max_disk) {
+		this.max_memory = max_memory;
+		this.max_disk = max_disk;
+		this.memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+		this.disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		if (cache_dir != null) {
+			this.cache_dir = cache_dir;
+			cache_dir.mkdirs();
+			loadDisk();
+		}
+	}
+
+	/**
+	 * 载入磁盘缓存目录中已有的文件，按修改时间排列 LRU 次序
+	 */
+	private void loadDisk() {
+		File[] files = cache_dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long t1 = f1.lastModified(), t2 = f2.lastModified();
+				return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(".tmp")) {	// 未完成的写入
+				file.delete();
+				continue;
+			}
+			if (!file.isFile() || !name.endsWith(SUFFIX)) {
+				continue;
+			}
+			String key = name.substring(0, name.length() - SUFFIX.length());
+			disk.put(key, file.length());
+			disk_size += file.length();
+		}
+		evictDisk();
+	}
+
+	private File diskFile(String key) {
+		return new File(cache_dir, key + SUFFIX);
+	}
+
+	/**
+	 * 查找缓存的输出，先查内存再查磁盘，磁盘命中的结果会放入内存
+	 * @param key
+	 * @return 不存在时返回 null
+	 */
+	public byte[] get(String key) {
+		synchronized (this) {
+			byte[] bytes = memory.get(key);
+			if (bytes != null) {
+				memory_hits++;
+				Metrics.cache("render", true);
+				return bytes;
+			}
+			if (disk.get(key) == null) {
+				misses++;
+				Metrics.cache("render", false);
+				return null;
+			}
+		}
+		// 在锁外读文件，文件可能已经被其它线程淘汰
+		byte[] bytes = readFile(diskFile(key));
+		synchronized (this) {
+			if (bytes == null) {
+				misses++;
+			} else {
+				disk_hits++;
+				putMemory(key, bytes);
+			}
+		}
+		Metrics.cache("render", bytes != null);
+		return bytes;
+	}
+
+	private byte[] readFile(File file) {
+		RandomAccessFile stream = null;
+		try {
+			stream = new RandomAccessFile(file, "r");
+			byte[] bytes = new byte[(int) stream.length()];
+			stream.readFully(bytes);
+			file.setLastModified(System.currentTimeMillis());
+			return bytes;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * 保存输出，数组的内容之后不能再被修改
+	 * @param key
+	 * @param bytes
+	 */
+	public void put(String key, byte[] bytes) {
+		synchronized (this) {
+			putMemory(key, bytes);
+			if (cache_dir == null || bytes.length > max_disk ||
+					disk.containsKey(key)) {
+				return;
+			}
+		}
+		// 先写入临时文件再改名，其它线程或进程不会读到不完整的文件
+		File tmp_file = new File(cache_dir, key + "." +
+				Thread.currentThread().getId() + ".tmp");
+		FileOutputStream stream = null;
+		try {
+			stream = new FileOutputStream(tmp_file);
+			stream.write(bytes);
+			stream.close();
+			stream = null;
+			synchronized (this) {
+				if (disk.containsKey(key) ||
+						!tmp_file.renameTo(diskFile(key))) {
+					tmp_file.delete();
+					return;
+				}
+				disk.put(key, (long) bytes.length);
+				disk_size += bytes.length;
+				evictDisk();
+			}
+		} catch (IOException e) {
+			tmp_file.delete();
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+				tmp_file.delete();
+			}
+		}
+	}
+
+	private void putMemory(String key, byte[] bytes) {
+		if (bytes.length > max_memory) {
+			return;
+		}
+		byte[] old_bytes = memory.put(key, bytes);
+		if (old_bytes != null) {
+			memory_size -= old_bytes.length;
+		}
+		memory_size += bytes.length;
+
+		Iterator<Map.Entry<String, byte[]>> iter =
+				memory.entrySet().iterator();
+		while (memory_size > max_memory && iter.hasNext()) {
+			memory_size -= iter.next().getValue().length;
+			iter.remove();
+		}
+	}
+
+	private void evictDisk() {
+		Iterator<Map.Entry<String, Long>> iter = disk.entrySet().iterator();
+		while (disk_size > max_disk && iter.hasNext()) {
+			Map.Entry<String, Long> entry = iter.next();
+			diskFile(entry.getKey()).delete();
+			disk_size -= entry.getValue();
+			iter.remove();
+		}
+	}
+
+	public synchronized void remove(String key) {
+		byte[] bytes = memory.remove(key);
+		if (bytes != null) {
+			memory_size -= bytes.length;
+		}
+		Long size = disk.remove(key);
+		if (size != null) {
+			diskFile(key).delete();
+			disk_size -= size;
+		}
+	}
+
+	public synchronized void clear() {
+		memory.clear();
+		memory_size = 0;
+		for (String key : disk.keySet()) {
+			diskFile(key).delete();
+		}
+		disk.clear();
+		disk_size = 0;
+	}
+
+	public synchronized long getMemorySize() {
+		return memory_size;
+	}
+
+	public synchronized long getDiskSize() {
+		return disk_size;
+	}
+
+	public synchronized long getMemoryHits() {
+		return memory_hits;
+	}
+
+	public synchronized long getDiskHits() {
+		return disk_hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * 命中率(包括内存及磁盘)
+	 * @return 没有查询时返回 0
+	 */
+	public synchronized double getHitRatio() {
+		long total = memory_hits + disk_hits + misses;
+		return total == 0 ? 0 : (double) (memory_hits + disk_hits) / total;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("memory %d bytes, %d hits; disk %d bytes, "
+				+ "%d hits; %d misses; hit ratio %.2f",
+				memory_size, memory_hits, disk_size, disk_hits, misses,
+				getHitRatio());
+	}
+
+}
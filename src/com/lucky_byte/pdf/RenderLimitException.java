@@ -0,0 +1,52 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+/**
+ * 渲染超出资源限制，或者被取消
+ *
+ * 这是非受检异常，可以直接穿过 SAX 解析器和 iText 的回调，调用者不需要
+ * 从包装的异常中查找原因。参考 RenderLimits 及 TextParser.cancel()
+ */
+public class RenderLimitException extends RuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+	static final public String CANCELLED = "cancelled";
+
+	private String limit;
+
+	public RenderLimitException(String limit, String message) {
+		super(message);
+		this.limit = limit;
+	}
+
+	/**
+	 * 超出的限制名称，例如 "pages"，被取消时为 CANCELLED
+	 * @return
+	 */
+	public String getLimit() {
+		return limit;
+	}
+
+}
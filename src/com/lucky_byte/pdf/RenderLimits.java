@@ -0,0 +1,115 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+/**
+ * 渲染的资源限制
+ *
+ * 模板或数据有问题时(例如很大的 hspace、minlen，没有尽头的表格)，一次
+ * 渲染可能占用工作线程很长时间以及大量的内存。通过
+ * TextParser.setRenderLimits() 设置限制后，超出任何一项都会终止渲染并
+ * 抛出 RenderLimitException。每一项为 0 表示不限制(默认)。
+ * 同一个对象可以在多个 TextParser 之间共享。
+ */
+public class RenderLimits
+{
+	private int max_spaces = 0;
+	private int max_padding = 0;
+	private long max_cells = 0;
+	private int max_pages = 0;
+	private long max_output_bytes = 0;
+	private long max_millis = 0;
+
+	/**
+	 * 一个 hspace 元素最多的空格数
+	 * @param max_spaces
+	 */
+	public void setMaxSpaces(int max_spaces) {
+		this.max_spaces = max_spaces;
+	}
+
+	public int getMaxSpaces() {
+		return max_spaces;
+	}
+
+	/**
+	 * minlen 属性最大的值，也就是值最多补齐的长度
+	 * @param max_padding
+	 */
+	public void setMaxPadding(int max_padding) {
+		this.max_padding = max_padding;
+	}
+
+	public int getMaxPadding() {
+		return max_padding;
+	}
+
+	/**
+	 * 文档中所有表格的单元格总数，包括重复行的单元格
+	 * @param max_cells
+	 */
+	public void setMaxCells(long max_cells) {
+		this.max_cells = max_cells;
+	}
+
+	public long getMaxCells() {
+		return max_cells;
+	}
+
+	/**
+	 * 最多的页数，只对 PDF 有效
+	 * @param max_pages
+	 */
+	public void setMaxPages(int max_pages) {
+		this.max_pages = max_pages;
+	}
+
+	public int getMaxPages() {
+		return max_pages;
+	}
+
+	/**
+	 * 最多输出的字节数
+	 * @param max_output_bytes
+	 */
+	public void setMaxOutputBytes(long max_output_bytes) {
+		this.max_output_bytes = max_output_bytes;
+	}
+
+	public long getMaxOutputBytes() {
+		return max_output_bytes;
+	}
+
+	/**
+	 * 一次渲染最长的时间(毫秒)
+	 * @param max_millis
+	 */
+	public void setMaxMillis(long max_millis) {
+		this.max_millis = max_millis;
+	}
+
+	public long getMaxMillis() {
+		return max_millis;
+	}
+
+}
@@ -0,0 +1,82 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+/**
+ * 渲染统计接口
+ *
+ * 应用程序可以实现这个接口，通过 Metrics.setRenderMetrics() 接入自己的
+ * 监控系统，或者直接使用 MetricsRegistry(同时提供 JMX 接口)。
+ *
+ * 各阶段的计时是包含关系，例如 template 包括模板解析以及其中的
+ * json、layout 等阶段，layout 又包括 font、image 以及 PDF 输出，
+ * 所以 SAX 解析本身的时间约等于 template - json - layout。
+ */
+public interface RenderMetrics
+{
+	/** 解析 JSON 数据 */
+	public static final String PHASE_JSON = "json";
+	/** 解析模板(SAX 或 DocReader 事件)，包含其它阶段 */
+	public static final String PHASE_TEMPLATE = "template";
+	/** 调用 PDFDoc/HTMLDoc 排版输出 */
+	public static final String PHASE_LAYOUT = "layout";
+	/** 加载字体 */
+	public static final String PHASE_FONT = "font";
+	/** 加载图片 */
+	public static final String PHASE_IMAGE = "image";
+	/** 压缩 HTML 输出 */
+	public static final String PHASE_COMPRESS = "compress";
+	/** 写输出流 */
+	public static final String PHASE_OUTPUT = "output";
+	/** 读取 .doc/.docx 文件 */
+	public static final String PHASE_DOC_READ = "docread";
+	/** PDFProcess 后期处理 */
+	public static final String PHASE_STAMP = "stamp";
+
+	/**
+	 * 一个阶段结束
+	 * @param phase 阶段名称，参考 PHASE_XXX
+	 * @param nanos 耗时(纳秒)
+	 */
+	public void phase(String phase, long nanos);
+
+	/**
+	 * 一次渲染结束
+	 * @param doc_type TextParser.DOC_TYPE_PDF 或 TextParser.DOC_TYPE_HTML
+	 * @param nanos 耗时(纳秒)
+	 * @param pages 生成的页数，HTML 为 0
+	 * @param bytes 输出的字节数
+	 * @param allocated 渲染线程分配的内存(字节)，不支持时为 -1
+	 * @param failed 是否失败
+	 */
+	public void render(int doc_type, long nanos, int pages, long bytes,
+			long allocated, boolean failed);
+
+	/**
+	 * 缓存查询
+	 * @param cache 缓存名称
+	 * @param hit 是否命中
+	 */
+	public void cache(String cache, boolean hit);
+
+}
@@ -0,0 +1,252 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * 以流的方式发布渲染输出
+ *
+ * PdfWriter 在排版过程中就会逐页写出 PDF，通过 RenderPublisher 订阅
+ * 渲染结果时，每写满一段(默认 16KB)就交给订阅者，不需要等待文档完成。
+ * 渲染按照订阅者的请求进行：没有请求时写输出的渲染线程等待，所以慢的
+ * 订阅者不会导致输出在内存中堆积。订阅者取消订阅时渲染终止。
+ *
+ * 接口和 java.util.concurrent.Flow 相同，参考 RenderSubscriber。
+ * 一个 RenderPublisher 只能订阅一次。
+ */
+public class RenderPublisher
+{
+	static final public int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+	private TextParser parser;
+	private int doc_type;
+	private Executor executor;
+	private int chunk_size = DEFAULT_CHUNK_SIZE;
+	private boolean subscribed = false;
+
+	/**
+	 * @param parser 渲染使用的 TextParser，构造函数中的输出流被忽略
+	 * @param doc_type DOC_TYPE_PDF 或 DOC_TYPE_HTML
+	 * @param executor 执行渲染的线程池，为 null 时为每次渲染创建线程
+	 */
+	public RenderPublisher(TextParser parser, int doc_type,
+			Executor executor) {
+		this.parser = parser;
+		this.doc_type = doc_type;
+		this.executor = executor;
+	}
+
+	/**
+	 * 设置每段输出的大小
+	 * @param chunk_size
+	 */
+	public void setChunkSize(int chunk_size) {
+		this.chunk_size = Math.max(chunk_size, 1);
+	}
+
+	/**
+	 * 订阅渲染输出，订阅后开始渲染
+	 * @param subscriber
+	 */
+	public void subscribe(RenderSubscriber subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException();
+		}
+		synchronized (this) {
+			if (subscribed) {
+				subscriber.onSubscribe(new RenderSubscription() {
+					@Override
+					public void request(long n) {
+					}
+
+					@Override
+					public void cancel() {
+					}
+				});
+				subscriber.onError(new IllegalStateException(
+						"RenderPublisher allows only one subscriber."));
+				return;
+			}
+			subscribed = true;
+		}
+		final PublishingOutputStream stream =
+				new PublishingOutputStream(parser, subscriber, chunk_size);
+		subscriber.onSubscribe(stream);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				stream.render(doc_type);
+			}
+		};
+		if (executor == null) {
+			Thread thread = new Thread(task, "textpdf-publish");
+			thread.setDaemon(true);
+			thread.start();
+		} else {
+			executor.execute(task);
+		}
+	}
+
+}
+
+
+/**
+ * 写满一段时等待订阅者的请求并交给订阅者
+ */
+class PublishingOutputStream extends OutputStream
+		implements RenderSubscription
+{
+	private TextParser parser;
+	private RenderSubscriber subscriber;
+	private byte[] buffer;
+	private int count = 0;
+	private long demand = 0;
+	private boolean cancelled = false;
+	private Throwable error = null;
+
+	public PublishingOutputStream(TextParser parser,
+			RenderSubscriber subscriber, int chunk_size) {
+		this.parser = parser;
+		this.subscriber = subscriber;
+		this.buffer = new byte[chunk_size];
+	}
+
+	@Override
+	public synchronized void request(long n) {
+		if (n <= 0) {
+			// 和 Flow 的规定相同，非法的请求视为错误并终止
+			error = new IllegalArgumentException(
+					"Request must be positive: " + n);
+			cancelLocked();
+			return;
+		}
+		demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void cancel() {
+		cancelLocked();
+	}
+
+	private void cancelLocked() {
+		cancelled = true;
+		parser.cancel();
+		notifyAll();
+	}
+
+	/**
+	 * 在渲染线程中执行
+	 */
+	void render(int doc_type) {
+		parser.out_stream = this;
+		Throwable failure = null;
+		try {
+			parser.gen(doc_type);
+			emit();
+		} catch (Throwable e) {
+			failure = e;
+		}
+		synchronized (this) {
+			if (error != null) {
+				failure = error;
+			} else if (cancelled) {
+				return;		// 取消后不再通知订阅者
+			}
+		}
+		if (failure == null) {
+			subscriber.onComplete();
+		} else {
+			subscriber.onError(failure);
+		}
+	}
+
+	/**
+	 * 等待请求，然后将缓冲区的内容交给订阅者
+	 */
+	private void emit() throws IOException {
+		if (count == 0) {
+			return;
+		}
+		synchronized (this) {
+			while (demand == 0 && !cancelled) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// 渲染线程被中断不是订阅者的取消，要通知订阅者
+					error = new InterruptedIOException("Render interrupted.");
+					cancelLocked();
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (cancelled) {
+				throw new RenderLimitException(RenderLimitException.CANCELLED,
+						"Render cancelled.");
+			}
+			demand--;
+		}
+		byte[] chunk = new byte[count];
+		System.arraycopy(buffer, 0, chunk, 0, count);
+		count = 0;
+		subscriber.onNext(ByteBuffer.wrap(chunk));
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == buffer.length) {
+			emit();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length)
+			throws IOException {
+		while (length > 0) {
+			if (count == buffer.length) {
+				emit();
+			}
+			int n = Math.min(length, buffer.length - count);
+			System.arraycopy(bytes, offset, buffer, count, n);
+			count += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * 只在缓冲区满时发布，保证每段的大小(最后一段除外)
+	 */
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
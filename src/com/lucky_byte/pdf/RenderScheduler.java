@@ -0,0 +1,305 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 渲染调度器
+ *
+ * 交互请求(例如用户点击下载合同)和批量任务(例如夜间生成对账单)共用
+ * 一组渲染线程，但是分别排队：
+ *
+ * - 两个队列按照权重(默认 4:1)公平分配线程，批量任务很多时交互请求
+ *   不用排在它们后面，交互请求很多时批量任务也不会饿死；
+ * - 并发数超过 1 时，批量任务最多占用并发数减 1 个线程，总是留一个线程
+ *   给交互请求；
+ * - 并发数在 1 和线程数之间自动调整：交互请求的延迟超过目标值或者空闲
+ *   堆内存不足时减少(每秒最多一次)，任务在排队并且延迟正常时增加。
+ *   所以空闲时批量任务可以用满 CPU，交互请求变慢时立即让出。
+ *
+ * 通过 Future.cancel(true) 取消的任务会中断渲染线程，TextParser 在下一个
+ * 检查点终止渲染，参考 RenderLimits。
+ */
+public class RenderScheduler
+{
+	static final public int LANE_INTERACTIVE = 0;
+	static final public int LANE_BULK = 1;
+
+	// 步幅调度，每执行一个任务，队列的行程增加 STRIDE / 权重
+	static final private long STRIDE = 1 << 20;
+	static final private long DECREASE_INTERVAL = 1000000000L;
+
+	private int max_threads;
+	private int limit;
+	private int running = 0;
+	private int[] lane_running = new int[2];
+	private int[] weights = { 4, 1 };
+	private long[] passes = new long[2];
+	private long pass = 0;
+	private List<ArrayDeque<LaneTask<?>>> queues;
+	private long target_latency = 2000;
+	private double min_free_heap = 0.1;
+	private long last_decrease = 0;
+	private boolean shutdown = false;
+
+	/**
+	 * @param max_threads 渲染线程数，也就是最大的并发数
+	 */
+	public RenderScheduler(int max_threads) {
+		this.max_threads = Math.max(max_threads, 1);
+		this.limit = Math.min(this.max_threads,
+				Runtime.getRuntime().availableProcessors());
+		queues = new ArrayList<ArrayDeque<LaneTask<?>>>();
+		queues.add(new ArrayDeque<LaneTask<?>>());
+		queues.add(new ArrayDeque<LaneTask<?>>());
+		for (int i = 0; i < this.max_threads; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "textpdf-render-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * 设置两个队列的权重，默认为 4:1
+	 * @param interactive
+	 * @param bulk
+	 */
+	public synchronized void setWeights(int interactive, int bulk) {
+		weights[LANE_INTERACTIVE] = Math.max(interactive, 1);
+		weights[LANE_BULK] = Math.max(bulk, 1);
+	}
+
+	/**
+	 * 设置交互请求的目标延迟(毫秒，包括排队时间)，默认为 2000
+	 * @param millis
+	 */
+	public synchronized void setTargetLatency(long millis) {
+		this.target_latency = millis;
+	}
+
+	/**
+	 * 空闲堆内存(相对于最大堆内存)低于这个比例时减少并发数，默认为 0.1
+	 * @param ratio
+	 */
+	public synchronized void setMinFreeHeap(double ratio) {
+		this.min_free_heap = ratio;
+	}
+
+	/**
+	 * 当前的并发数
+	 * @return
+	 */
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	public synchronized int getQueued(int lane) {
+		return queues.get(lane).size();
+	}
+
+	/**
+	 * 提交任务
+	 * @param lane LANE_INTERACTIVE 或 LANE_BULK
+	 * @param callable
+	 * @return
+	 */
+	public <T> Future<T> submit(int lane, Callable<T> callable) {
+		if (lane != LANE_INTERACTIVE && lane != LANE_BULK) {
+			throw new IllegalArgumentException("Unknown lane " + lane);
+		}
+		LaneTask<T> task = new LaneTask<T>(lane, callable);
+		synchronized (this) {
+			if (shutdown) {
+				throw new RejectedExecutionException("Scheduler shutdown.");
+			}
+			// 空闲过的队列不能积攒行程，否则会连续占用线程
+			if (queues.get(lane).isEmpty() && lane_running[lane] == 0) {
+				passes[lane] = Math.max(passes[lane], pass);
+			}
+			queues.get(lane).add(task);
+			notifyAll();
+		}
+		return task;
+	}
+
+	/**
+	 * 提交渲染任务，结果为输出的内容，参考 TextParser.renderToBytes()
+	 * @param lane LANE_INTERACTIVE 或 LANE_BULK
+	 * @param parser
+	 * @param doc_type
+	 * @return
+	 */
+	public Future<byte[]> render(int lane, final TextParser parser,
+			final int doc_type) {
+		return submit(lane, new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return parser.renderToBytes(doc_type);
+			}
+		});
+	}
+
+	/**
+	 * 将一个队列作为 Executor 使用，例如交给 TextPDFWatcher
+	 * @param lane
+	 * @return
+	 */
+	public Executor lane(final int lane) {
+		return new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				submit(lane, new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						command.run();
+						return null;
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * 不再接受新的任务，已经排队的任务会继续执行
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		notifyAll();
+	}
+
+	/**
+	 * 选择下一个任务，没有可以执行的任务时返回 null
+	 */
+	private LaneTask<?> next() {
+		if (running >= limit) {
+			return null;
+		}
+		int bulk_limit = limit > 1 ? limit - 1 : limit;
+		int lane = -1;
+		for (int i = 0; i < queues.size(); i++) {
+			if (queues.get(i).isEmpty()) {
+				continue;
+			}
+			if (i == LANE_BULK && lane_running[i] >= bulk_limit) {
+				continue;
+			}
+			if (lane < 0 || passes[i] < passes[lane]) {
+				lane = i;
+			}
+		}
+		if (lane < 0) {
+			return null;
+		}
+		pass = passes[lane];
+		passes[lane] += STRIDE / weights[lane];
+		return queues.get(lane).poll();
+	}
+
+	private void work() {
+		while (true) {
+			LaneTask<?> task;
+			synchronized (this) {
+				while ((task = next()) == null) {
+					if (shutdown && queues.get(0).isEmpty() &&
+							queues.get(1).isEmpty()) {
+						return;
+					}
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				running++;
+				lane_running[task.lane]++;
+			}
+			task.run();
+			Thread.interrupted();	// 清除取消任务时的中断状态
+			long latency = (System.nanoTime() - task.submitted) / 1000000;
+			synchronized (this) {
+				running--;
+				lane_running[task.lane]--;
+				adapt(task.lane, latency);
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * 根据任务的延迟和空闲堆内存调整并发数
+	 */
+	private void adapt(int lane, long latency) {
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		double free = 1.0 - (double) used / runtime.maxMemory();
+		boolean slow = lane == LANE_INTERACTIVE && latency > target_latency;
+
+		if (slow || free < min_free_heap) {
+			long now = System.nanoTime();
+			if (limit > 1 && now - last_decrease > DECREASE_INTERVAL) {
+				limit = Math.max(1, limit * 3 / 4);
+				last_decrease = now;
+			}
+			return;
+		}
+		boolean queued = !queues.get(0).isEmpty() ||
+				!queues.get(1).isEmpty();
+		if (queued && running + 1 >= limit && limit < max_threads) {
+			limit++;
+		}
+	}
+
+}
+
+
+/**
+ * 队列中的任务
+ */
+class LaneTask<T> extends FutureTask<T>
+{
+	int lane;
+	long submitted;
+
+	public LaneTask(int lane, Callable<T> callable) {
+		super(callable);
+		this.lane = lane;
+		this.submitted = System.nanoTime();
+	}
+}
@@ -0,0 +1,144 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+/**
+ * 渲染过程中的一个跨度(span)
+ *
+ * 每次渲染产生一个 render 跨度，其下包括模板解析、JSON 绑定、
+ * 每个块(writeBlock/writeTable)、字体和图片加载等子跨度，
+ * 通过 getParent() 可以将慢的渲染和导致它的块关联起来。
+ */
+public class RenderSpan
+{
+	public static final String RENDER = "render";
+	public static final String TEMPLATE = "template";
+	public static final String JSON = "json";
+	public static final String BLOCK = "block";
+	public static final String TABLE = "table";
+	public static final String FONT = "font";
+	public static final String IMAGE = "image";
+	public static final String STAMP = "stamp";
+
+	private String name;
+	private String detail;
+	private RenderSpan parent;
+	private String template_id;
+	private String record_id;
+	private long start_nanos;
+	private long end_nanos = 0;
+	private int pages = -1;
+	private long bytes = -1;
+
+	RenderSpan(String name, String detail, RenderSpan parent,
+			String template_id, String record_id) {
+		this.name = name;
+		this.detail = detail;
+		this.parent = parent;
+		this.template_id = template_id;
+		this.record_id = record_id;
+		this.start_nanos = System.nanoTime();
+	}
+
+	/**
+	 * 跨度名称，参考类中的常量
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * 附加信息，例如块名称、字体文件、图片路径等，可能为 null
+	 */
+	public String getDetail() {
+		return detail;
+	}
+
+	public RenderSpan getParent() {
+		return parent;
+	}
+
+	/**
+	 * 模板标识，参考 TextParser.setTraceIds()
+	 */
+	public String getTemplateId() {
+		return template_id;
+	}
+
+	/**
+	 * 数据记录标识，参考 TextParser.setTraceIds()
+	 */
+	public String getRecordId() {
+		return record_id;
+	}
+
+	public long getStartNanos() {
+		return start_nanos;
+	}
+
+	/**
+	 * 耗时(纳秒)，跨度未结束时返回 0
+	 */
+	public long getDurationNanos() {
+		if (end_nanos == 0) {
+			return 0;
+		}
+		return end_nanos - start_nanos;
+	}
+
+	/**
+	 * 跨度结束时文档的页数，未知时为 -1
+	 */
+	public int getPages() {
+		return pages;
+	}
+
+	/**
+	 * 跨度结束时已输出的字节数，未知时为 -1
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	void finish(int pages, long bytes) {
+		this.end_nanos = System.nanoTime();
+		this.pages = pages;
+		this.bytes = bytes;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(name);
+		if (detail != null) {
+			builder.append("[").append(detail).append("]");
+		}
+		builder.append(" template=").append(template_id);
+		builder.append(" record=").append(record_id);
+		builder.append(" nanos=").append(getDurationNanos());
+		builder.append(" pages=").append(pages);
+		builder.append(" bytes=").append(bytes);
+		return builder.toString();
+	}
+
+}
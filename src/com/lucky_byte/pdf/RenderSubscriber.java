@@ -0,0 +1,58 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 渲染输出的订阅者，参考 RenderPublisher
+ *
+ * 和 java.util.concurrent.Flow.Subscriber<ByteBuffer> 的方法相同
+ * (TextPDF 需要在 Java 7 上运行，所以不能直接使用 Flow)，
+ * Java 9 以上可以简单地包装为 Flow.Subscriber。
+ */
+public interface RenderSubscriber
+{
+	/**
+	 * 订阅开始，在调用 subscription.request() 之前不会收到数据
+	 * @param subscription
+	 */
+	void onSubscribe(RenderSubscription subscription);
+
+	/**
+	 * 一段输出，缓冲区只属于这一次调用
+	 * @param buffer
+	 */
+	void onNext(ByteBuffer buffer);
+
+	/**
+	 * 渲染失败，之后不会再有调用
+	 * @param throwable
+	 */
+	void onError(Throwable throwable);
+
+	/**
+	 * 渲染完成，之后不会再有调用
+	 */
+	void onComplete();
+}
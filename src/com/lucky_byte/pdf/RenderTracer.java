@@ -0,0 +1,53 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+/**
+ * 渲染跟踪接口
+ *
+ * 应用程序实现这个接口，通过 Tracing.setRenderTracer() 接入自己的
+ * 跟踪系统。运行在 JDK 11 以上时，也可以在 spanFinished() 中提交
+ * JDK Flight Recorder 事件(jdk.jfr.Event)，例如：
+ *
+ *     class RenderEvent extends jdk.jfr.Event {
+ *         String name, detail, template, record;
+ *         int pages;
+ *         long bytes;
+ *     }
+ *
+ *     public void spanFinished(RenderSpan span) {
+ *         RenderEvent event = new RenderEvent();
+ *         event.name = span.getName();
+ *         ...
+ *         event.commit();
+ *     }
+ *
+ * 这两个函数在渲染线程中同步调用，实现应该尽可能快。
+ */
+public interface RenderTracer
+{
+	public void spanStarted(RenderSpan span);
+
+	public void spanFinished(RenderSpan span);
+
+}
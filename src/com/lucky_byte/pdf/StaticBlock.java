@@ -0,0 +1,107 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.itextpdf.text.Chunk;
+import com.itextpdf.text.Element;
+import com.itextpdf.text.Font;
+import com.itextpdf.text.Paragraph;
+
+/**
+ * 预先生成的块，以及生成时产生的警告
+ *
+ * 缓存中只保存生成段落需要的数据：每个 Chunk 的文字、字体及属性，以及
+ * 段落的格式，每次使用时生成新的 Paragraph。iText 的 Element 是可变的，
+ * 而且 Chunk 的属性可能引用生成它的文档，所以不能在多个文档之间共享。
+ * 保存的字体和属性值生成后不再修改，iText 输出时只读取它们(字体本身
+ * 由 BaseFont 在所有文档之间共享)，所以可以被多个线程同时使用。
+ */
+class StaticBlock
+{
+	private boolean empty;
+	private List<String> contents = new ArrayList<String>();
+	private List<Font> fonts = new ArrayList<Font>();
+	private List<HashMap<String, Object>> attributes =
+			new ArrayList<HashMap<String, Object>>();
+	private float leading;
+	private float multiplied_leading;
+	private int alignment;
+	private float indent;
+	private float spacing_before;
+	private float spacing_after;
+	Diagnostics diagnostics;
+
+	/**
+	 * @param para 生成的段落，块类型未知时为 null
+	 * @param diagnostics 生成时的警告
+	 */
+	public StaticBlock(Paragraph para, Diagnostics diagnostics) {
+		this.diagnostics = diagnostics;
+		this.empty = para == null;
+		if (para == null) {
+			return;
+		}
+		for (Element element : para) {
+			Chunk chunk = (Chunk) element;
+			contents.add(chunk.getContent());
+			fonts.add(chunk.getFont());
+			attributes.add(chunk.getAttributes() == null ? null :
+					new HashMap<String, Object>(chunk.getAttributes()));
+		}
+		leading = para.getLeading();
+		multiplied_leading = para.getMultipliedLeading();
+		alignment = para.getAlignment();
+		indent = para.getFirstLineIndent();
+		spacing_before = para.getSpacingBefore();
+		spacing_after = para.getSpacingAfter();
+	}
+
+	/**
+	 * 生成新的段落
+	 * @return 块类型未知时返回 null
+	 */
+	Paragraph toParagraph() {
+		if (empty) {
+			return null;
+		}
+		Paragraph para = new Paragraph();
+		for (int i = 0; i < contents.size(); i++) {
+			Chunk chunk = new Chunk(contents.get(i), fonts.get(i));
+			if (attributes.get(i) != null) {
+				chunk.setAttributes(
+						new HashMap<String, Object>(attributes.get(i)));
+			}
+			para.add(chunk);
+		}
+		para.setLeading(leading, multiplied_leading);
+		para.setAlignment(alignment);
+		para.setFirstLineIndent(indent);
+		para.setSpacingBefore(spacing_before);
+		para.setSpacingAfter(spacing_after);
+		return para;
+	}
+}
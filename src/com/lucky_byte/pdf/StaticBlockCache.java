@@ -0,0 +1,80 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PDF 静态块缓存
+ *
+ * 合同之类的模板中大部分段落不包含 <value>，它们生成的段落在每次渲染中
+ * 都完全一样。这个缓存保存生成这些段落需要的文字、字体及格式，以后的渲染
+ * 直接使用，只生成包含值的块，参考 StaticBlock。键为模板内容的摘要加上块在模板中的位置，
+ * 参考 TextParser.setStaticBlockCache()。
+ * 可以被多个 TextParser 对象(多个线程)共享，以 LRU 方式淘汰。
+ */
+public class StaticBlockCache
+{
+	private final int max_blocks;
+	private Map<String, StaticBlock> blocks;
+
+	/**
+	 * @param max_blocks 最多缓存的块数量
+	 */
+	public StaticBlockCache(final int max_blocks) {
+		this.max_blocks = max_blocks;
+		blocks = new LinkedHashMap<String, StaticBlock>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, StaticBlock> eldest) {
+				return size() > StaticBlockCache.this.max_blocks;
+			}
+		};
+	}
+
+	public StaticBlockCache() {
+		this(4096);
+	}
+
+	synchronized StaticBlock get(String key) {
+		StaticBlock block = blocks.get(key);
+		Metrics.cache("static_block", block != null);
+		return block;
+	}
+
+	synchronized void put(String key, StaticBlock block) {
+		blocks.put(key, block);
+	}
+
+	public synchronized void clear() {
+		blocks.clear();
+	}
+
+	public synchronized int size() {
+		return blocks.size();
+	}
+
+}
@@ -0,0 +1,80 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PDF 静态页缓存
+ *
+ * 模板中以 <static> 标记的部分(例如合同最后的条款附录)如果不包含值，
+ * 则只生成一次 PDF 片段并保存在这个缓存中，以后的渲染直接复制其中的页，
+ * 只有包含值的部分才需要排版。键为片段内容(以及页面设置)的摘要，
+ * 参考 TextParser.setStaticPageCache()。
+ * 可以被多个 TextParser 对象(多个线程)共享，以 LRU 方式淘汰。
+ */
+public class StaticPageCache
+{
+	private final int max_fragments;
+	private Map<String, StaticPages> fragments;
+
+	/**
+	 * @param max_fragments 最多缓存的片段数量
+	 */
+	public StaticPageCache(final int max_fragments) {
+		this.max_fragments = max_fragments;
+		fragments = new LinkedHashMap<String, StaticPages>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, StaticPages> eldest) {
+				return size() > StaticPageCache.this.max_fragments;
+			}
+		};
+	}
+
+	public StaticPageCache() {
+		this(64);
+	}
+
+	synchronized StaticPages get(String key) {
+		StaticPages pages = fragments.get(key);
+		Metrics.cache("static_pages", pages != null);
+		return pages;
+	}
+
+	synchronized void put(String key, StaticPages pages) {
+		fragments.put(key, pages);
+	}
+
+	public synchronized void clear() {
+		fragments.clear();
+	}
+
+	public synchronized int size() {
+		return fragments.size();
+	}
+
+}
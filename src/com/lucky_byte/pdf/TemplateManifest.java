@@ -0,0 +1,145 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 模板清单：模板需要的所有数据键，包括值的 id、minlen 及格式上下文，
+ * 以及循环、重复行和条件引用的键，包含的片段一起展开。
+ *
+ * 清单由 TextParser.compileManifest() 生成，和数据无关，可以在多次
+ * 检查之间共享。check() 只按照清单在 JSON 中取值，不解析模板也不排版，
+ * 可以在渲染之前快速拒绝缺少键或类型不对的记录，报告的信息和 PDF
+ * 渲染时相同，参考 BatchJob.validate()。
+ */
+public class TemplateManifest
+{
+	private List<ManifestKey> keys;		// 顶层的项，条件及循环中的项在其中
+	private List<ManifestKey> all_keys;
+
+	TemplateManifest(List<ManifestKey> keys, List<ManifestKey> all_keys) {
+		this.keys = keys;
+		this.all_keys = all_keys;
+	}
+
+	/**
+	 * 所有的项，按在模板中出现的次序，相同的值只出现一次
+	 * @return
+	 */
+	public List<ManifestKey> getKeys() {
+		return Collections.unmodifiableList(all_keys);
+	}
+
+	/**
+	 * 按照清单检查 JSON 数据源(包括 data 对象)
+	 * @param json_source 解析后的 JSON 数据源
+	 * @return 和 PDF 渲染时相同的警告，没有问题时为空
+	 */
+	public Diagnostics check(Object json_source) {
+		Diagnostics diagnostics = new Diagnostics();
+		if (!(json_source instanceof Map)) {
+			diagnostics.warn("JSON source must be a object.");
+			return diagnostics;
+		}
+		Map<?, ?> source = (Map<?, ?>) json_source;
+		if (!source.containsKey("data")) {
+			diagnostics.warn("JSON source missing 'data' key, please check!");
+			return diagnostics;
+		}
+		Object data = source.get("data");
+		if (!(data instanceof Map)) {
+			diagnostics.warn("JSON 'data' must be a object.");
+			return diagnostics;
+		}
+		check(keys, new ArrayList<Map<String, Object>>(), data, diagnostics);
+		return diagnostics;
+	}
+
+	private void check(List<ManifestKey> keys,
+			List<Map<String, Object>> scopes, Object data,
+			Diagnostics diagnostics) {
+		for (ManifestKey key : keys) {
+			Object value = JsonPath.resolve(scopes, data, key.getId());
+			switch (key.getKind()) {
+			case ManifestKey.KIND_VALUE:
+				if (value == JsonPath.MISSING) {
+					diagnostics.warn("JSON data key '" + key.getId()
+							+ "' not found!");
+				} else if (!(value instanceof String ||
+						value instanceof Number || value instanceof Boolean)) {
+					diagnostics.warn("JSON  data key '" + key.getId()
+							+ "' must has a string value.");
+				}
+				break;
+			case ManifestKey.KIND_TEST:
+				if (JsonPath.test(value, key.equals) != key.negate) {
+					check(key.children, scopes, data, diagnostics);
+				}
+				break;
+			case ManifestKey.KIND_ARRAY:
+				if (value == JsonPath.MISSING || value == null) {
+					diagnostics.warn("JSON data key '" + key.getId()
+							+ "' not found!");
+				} else if (!(value instanceof List)) {
+					diagnostics.warn("JSON data key '" + key.getId()
+							+ "' must has a array value.");
+				} else if (!key.row) {
+					int index = 0;
+					for (Object item : (List<?>) value) {
+						Map<String, Object> scope =
+								new HashMap<String, Object>();
+						scope.put(key.as, item);
+						if (key.index != null) {
+							scope.put(key.index, (long) index);
+						}
+						scopes.add(scope);
+						try {
+							check(key.children, scopes, data, diagnostics);
+						} finally {
+							scopes.remove(scopes.size() - 1);
+						}
+						index++;
+					}
+				}
+				break;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (ManifestKey key : all_keys) {
+			if (key.getKind() == ManifestKey.KIND_VALUE) {
+				builder.append(key).append("\n");
+			}
+		}
+		return builder.toString();
+	}
+
+}
@@ -43,9 +43,32 @@ public abstract class TextDoc
 	protected int page_margin_top = 50;
 	protected int page_margin_bottom = 56;
 	protected String encoding = "UTF-8";
+	protected Diagnostics diagnostics;
+	protected RenderBudget budget = new RenderBudget(null, null);
 
 	public TextDoc(OutputStream out_stream) {
 		this.out_stream = out_stream;
+		this.diagnostics = new Diagnostics();
+	}
+
+	/**
+	 * 设置诊断报告，文档中的警告信息收集到这个对象中
+	 * @param diagnostics
+	 */
+	public void setDiagnostics(Diagnostics diagnostics) {
+		this.diagnostics = diagnostics;
+	}
+
+	public Diagnostics getDiagnostics() {
+		return diagnostics;
+	}
+
+	/**
+	 * 设置资源限制，在补齐及输出表格行时检查
+	 * @param budget
+	 */
+	void setRenderBudget(RenderBudget budget) {
+		this.budget = budget;
 	}
 
 	/**
@@ -78,6 +101,14 @@ public abstract class TextDoc
 		this.encoding = enc;
 	}
 
+	/**
+	 * 已生成的页数，没有分页概念的文档返回 0
+	 * @return
+	 */
+	public int getPageCount() {
+		return 0;
+	}
+
 	abstract public boolean open();
 	abstract public void close();
 	abstract public boolean isOpen();
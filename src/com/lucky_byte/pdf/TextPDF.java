@@ -22,16 +22,25 @@
  */
 package com.lucky_byte.pdf;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -93,6 +102,50 @@ public class TextPDF
 	 * @throws IOException 
 	 */
 	public static void main(String[] args) throws IOException {
+		if (args.length > 0 && args[0].equals("-daemon")) {
+			TextPDFDaemon.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-watch")) {
+			try {
+				TextPDFWatcher.main(Arrays.copyOfRange(args, 1, args.length));
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-batch")) {
+			int code = BatchCoordinator.main(
+					Arrays.copyOfRange(args, 1, args.length));
+			if (code != 0) {
+				System.exit(code);
+			}
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-batch-worker")) {
+			BatchWorker.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-client")) {
+			int code = client(Arrays.copyOfRange(args, 1, args.length));
+			if (code != 0) {
+				System.exit(code);
+			}
+			return;
+		}
+		run(null, args, System.out, System.err);
+	}
+
+	/**
+	 * 执行命令行，常驻进程也通过这个函数执行客户端发来的命令
+	 * @param base_dir 相对路径的基准目录，为 null 时为当前目录
+	 * @param args 命令行参数
+	 * @param out 版本等信息的输出
+	 * @param err 错误及诊断信息的输出
+	 * @return 退出码，成功时为 0
+	 */
+	static int run(File base_dir, String[] args,
+			PrintStream out, PrintStream err) {
 		List<String> args2 = new ArrayList<String>();
 		String out_fname = null;
 		String out_format = "pdf";
@@ -104,50 +157,50 @@ public class TextPDF
 		for (int i = 0; i < args.length; i++) {
 			if (args[i].equals("-o")) {
 				if (i >= args.length - 1) {
-					System.err.println("'-o' option require a argument");
-					return;
+					err.println("'-o' option require a argument");
+					return 1;
 				}
 				out_fname = args[i + 1];
 				i++;
 			} else if (args[i].equals("-f")) {
 				if (i >= args.length - 1) {
-					System.err.println("'-f' option require a argument");
-					return;
+					err.println("'-f' option require a argument");
+					return 1;
 				}
 				out_format = args[i + 1];
 				if (!out_format.equalsIgnoreCase("pdf") &&
 						!out_format.equalsIgnoreCase("html")) {
-					System.err.println("'-f' option require 'pdf' or 'html'");
-					return;
+					err.println("'-f' option require 'pdf' or 'html'");
+					return 1;
 				}
 				i++;
 			} else if (args[i].equals("-e")) {
 				if (i >= args.length - 1) {
-					System.err.println("'-e' option require a argument");
-					return;
+					err.println("'-e' option require a argument");
+					return 1;
 				}
 				out_encoding = args[i + 1];
 				i++;
 			} else if (args[i].equals("-css")) {
 				if (i >= args.length - 1) {
-					System.err.println("'-css' option require a argument");
-					return;
+					err.println("'-css' option require a argument");
+					return 1;
 				}
 				css_paths = args[i + 1];
 				i++;
 			} else if (args[i].equals("-js")) {
 				if (i >= args.length - 1) {
-					System.err.println("'-js' option require a argument");
-					return;
+					err.println("'-js' option require a argument");
+					return 1;
 				}
 				js_paths = args[i + 1];
 				i++;
 			} else if (args[i].equals("-h")) {
 				print_help = true;
 			} else if (args[i].equals("-v")) {
-				System.out.println("TextPDF version " + Version.VERSION);
-				System.out.println("\nCopyright (c) 2015 Lucky Byte, Inc.\n");
-				return;
+				out.println("TextPDF version " + Version.VERSION);
+				out.println("\nCopyright (c) 2015 Lucky Byte, Inc.\n");
+				return 0;
 			} else {
 				args2.add(args[i]);
 			}
@@ -155,66 +208,62 @@ public class TextPDF
 
 		if (print_help || args2.size() < 1) {
 			if (!print_help) {
-				System.err.println("Argument missing...");
-				System.err.println();
-			}
-			System.err.println("Usage:");
-			System.err.println("  java -jar textpdf.jar [OPTION] <xmlfile|docfile> [jsonfile]");
-			System.err.println("\nOptions:");
-			System.err.println("  -o filename    : Output file name");
-			System.err.println("  -f [pdf|html]  : Output file format");
-			System.err.println("  -e encoding    : Output file encoding");
-			System.err.println("  -css path1,... : Add CSS link to output file");
-			System.err.println("  -js path1,...  : Add JS link to output file");
-			System.err.println("  -v             : Print version");
-			System.err.println("  -h             : Print this information");
-			System.err.println();
-			return;
+				err.println("Argument missing...");
+				err.println();
+			}
+			err.println("Usage:");
+			err.println("  java -jar textpdf.jar [OPTION] <xmlfile|docfile|docxfile> [jsonfile]");
+			err.println("\nOptions:");
+			err.println("  -o filename    : Output file name");
+			err.println("  -f [pdf|html]  : Output file format");
+			err.println("  -e encoding    : Output file encoding");
+			err.println("  -css path1,... : Add CSS link to output file");
+			err.println("  -js path1,...  : Add JS link to output file");
+			err.println("  -v             : Print version");
+			err.println("  -h             : Print this information");
+			err.println("\n  java -jar textpdf.jar -daemon [-p port] [-t threads]");
+			err.println("  java -jar textpdf.jar -client [OPTION] <xmlfile|docfile|docxfile> [jsonfile]");
+			err.println("  java -jar textpdf.jar -watch [-t threads] [-f pdf|html] indir outdir errordir");
+			err.println("\n  -daemon        : Run as a daemon, preload fonts and listen on localhost");
+			err.println("  -client        : Render through the running daemon");
+			err.println("  -watch         : Render jobs dropped into indir, see TextPDFWatcher");
+			err.println();
+			return print_help ? 0 : 1;
 		}
-		File xmlfile = new File(args2.get(0));
+		File xmlfile = resolveFile(base_dir, args2.get(0));
 		if (!xmlfile.exists()) {
-			System.err.println(xmlfile.getAbsolutePath() + " not found.");
-			return;
+			err.println(xmlfile.getAbsolutePath() + " not found.");
+			return 1;
 		}
 		File jsonfile = null;
 		if (args2.size() > 1) {
-			jsonfile = new File(args2.get(1));
+			jsonfile = resolveFile(base_dir, args2.get(1));
 			if (!jsonfile.exists()) {
-				System.err.println(jsonfile.getAbsolutePath() + " not found.");
-				return;
+				err.println(jsonfile.getAbsolutePath() + " not found.");
+				return 1;
 			}
 		}
 		if (out_fname == null) {
 			out_fname = args2.get(0) + "." + out_format;
 		}
-		File outfile = new File(out_fname);
+		File outfile = resolveFile(base_dir, out_fname);
 		if (outfile.exists()) {
-			System.err.println(outfile.getAbsolutePath() + " already exists.");
-			return;
+			err.println(outfile.getAbsolutePath() + " already exists.");
+			return 1;
 		}
 
+		InputStream xml_stream = null;
+		InputStream json_stream = null;
+		OutputStream out_stream = null;
 		try {
-			if (args2.get(0).endsWith(".doc")) {
-				File tmpfile = File.createTempFile("textpdf-", ".xml");
-
-				DocReader reader = new DocReader();
-				reader.setAutoTitle(true);
-				reader.ignoreBlankPara(true);
-				InputStream doc_stream =
-						new FileInputStream(xmlfile);
-				OutputStream xml_stream =
-						new FileOutputStream(tmpfile);
-				reader.read(doc_stream, xml_stream, null);
-				xmlfile = tmpfile;
-			}
-			InputStream json_stream = null;
+			xml_stream = new FileInputStream(xmlfile);
 			if (jsonfile != null) {
 				json_stream = new FileInputStream(jsonfile);
 			}
+			out_stream = new FileOutputStream(outfile);
 			TextParser parser = new TextParser(
-					new FileInputStream(xmlfile),
-					json_stream,
-					new FileOutputStream(outfile));
+					xml_stream, json_stream, out_stream);
+			parser.setIncludeDir(xmlfile.getAbsoluteFile().getParentFile());
 			if (out_encoding != null) {
 				parser.setOutputEncoding(out_encoding);
 			}
@@ -224,17 +273,105 @@ public class TextPDF
 			if (js_paths != null) {
 				parser.setJSLinks(js_paths.split(","));
 			}
+			// .doc/.docx 文件直接转换为模板事件，不再经过临时 XML 文件
+			if (args2.get(0).endsWith(".doc") ||
+					args2.get(0).endsWith(".docx")) {
+				DocReader reader = args2.get(0).endsWith(".docx") ?
+						new DocxReader() : new DocReader();
+				reader.setAutoTitle(true);
+				reader.ignoreBlankPara(true);
+				parser.setDocReader(reader);
+			}
 
 			if (out_format.equalsIgnoreCase("pdf")) {
 				parser.genPDF();
 			} else {
 				parser.genHTML();
 			}
-			if (args2.get(0).endsWith(".doc")) {	// 删除临时文件
-				xmlfile.delete();
+			// 命令行程序中直接打印诊断信息
+			err.print(parser.getDiagnostics());
+		} catch (Exception e) {
+			e.printStackTrace(err);
+			return 1;
+		} finally {
+			// 常驻进程中需要关闭文件，HTML 输出不会关闭输出流
+			closeQuietly(xml_stream);
+			closeQuietly(json_stream);
+			closeQuietly(out_stream);
+		}
+		return 0;
+	}
+
+	private static void closeQuietly(Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static File resolveFile(File base_dir, String path) {
+		File file = new File(path);
+		if (base_dir != null && !file.isAbsolute()) {
+			file = new File(base_dir, path);
+		}
+		return file;
+	}
+
+	/**
+	 * 通过常驻进程执行命令，参考 TextPDFDaemon，常驻进程没有运行时
+	 * 直接在当前进程中执行
+	 * @param args 命令行参数
+	 * @return 退出码
+	 */
+	static int client(String[] args) {
+		String[] info = TextPDFDaemon.readInfo();
+		if (info == null) {
+			return run(null, args, System.out, System.err);
+		}
+		Socket socket = null;
+		try {
+			socket = new Socket(InetAddress.getLoopbackAddress(),
+					Integer.parseInt(info[0]));
+		} catch (Exception e) {
+			return run(null, args, System.out, System.err);
+		}
+		try {
+			Writer writer = new OutputStreamWriter(
+					socket.getOutputStream(), "UTF-8");
+			writer.write(info[1] + "\n");
+			writer.write(System.getProperty("user.dir") + "\n");
+			for (String arg : args) {
+				if (arg.length() == 0 || arg.indexOf('\n') >= 0) {
+					System.err.println("Invalid argument '" + arg + "'");
+					return 1;
+				}
+				writer.write(arg + "\n");
+			}
+			writer.write("\n");
+			writer.flush();
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), "UTF-8"));
+			String line = reader.readLine();
+			if (line == null) {
+				System.err.println("TextPDF daemon closed connection.");
+				return 1;
+			}
+			int code = Integer.parseInt(line.trim());
+			while ((line = reader.readLine()) != null) {
+				System.err.println(line);
 			}
+			return code;
 		} catch (Exception e) {
 			e.printStackTrace();
+			return 1;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
 		}
 	}
 
@@ -0,0 +1,343 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * TextPDF 常驻进程
+ *
+ * 命令行程序每次启动都要加载 iText、POI 等类库以及字体，逐个生成文档的
+ * 脚本大部分时间都花在这里。常驻进程启动时预先加载字体，并通过生成示例
+ * 文档进行预热，然后在本机回环地址上监听，`TextPDF -client` 将命令行
+ * 参数发送过来，由常驻进程完成生成。
+ *
+ * 协议是以行为单位的 UTF-8 文本，所以 shell 脚本也可以直接通过
+ * /dev/tcp 访问：
+ *   请求：口令、客户端当前目录、每个参数一行，最后以空行结束
+ *   响应：第一行为退出码，之后为错误及诊断信息
+ * 端口和口令保存在 ~/.textpdf-daemon 文件中，只有当前用户可以读取，
+ * 没有口令的连接会被拒绝。
+ */
+public class TextPDFDaemon
+{
+	static final public String INFO_FILE = ".textpdf-daemon";
+
+	// 预热用的示例文档，包括两种字体、值及表格
+	static final private String WARMUP_XML = "<?xml version=\"1.0\" "
+			+ "encoding=\"UTF-8\"?><textpdf>"
+			+ "<title>TextPDF</title><chapter>TextPDF</chapter>"
+			+ "<para font-family=\"heiti\">TextPDF <value id=\"v\" /></para>"
+			+ "<para font-family=\"songti\" font-style=\"bold,italic\">"
+			+ "TextPDF</para>"
+			+ "<table columns=\"1,1\"><cell>a</cell><cell>b</cell>"
+			+ "<row repeat=\"rows\"><cell field=\"a\" /><cell field=\"b\" />"
+			+ "</row></table></textpdf>";
+	static final private String WARMUP_JSON = "{\"data\":{\"v\":\"1\","
+			+ "\"rows\":[{\"a\":\"1\",\"b\":\"2\"},{\"a\":\"3\",\"b\":\"4\"}]}}";
+
+	private int port;
+	private int threads;
+	private String token;
+	private ServerSocket server_socket;
+	private ExecutorService executor;
+
+	/**
+	 * @param port 监听端口，为 0 时随机选择
+	 * @param threads 同时处理的请求数
+	 */
+	public TextPDFDaemon(int port, int threads) {
+		this.port = port;
+		this.threads = threads;
+	}
+
+	/**
+	 * 保存端口和口令的文件
+	 * @return
+	 */
+	public static File infoFile() {
+		return new File(System.getProperty("user.home"), INFO_FILE);
+	}
+
+	/**
+	 * 读取常驻进程的端口和口令
+	 * @return 没有运行时返回 null
+	 */
+	static String[] readInfo() {
+		File file = infoFile();
+		if (!file.isFile()) {
+			return null;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			String port = reader.readLine();
+			String token = reader.readLine();
+			if (port == null || token == null) {
+				return null;
+			}
+			return new String[] { port.trim(), token.trim() };
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * 重复生成示例文档，加载字体及相关的类，并让 JIT 编译常用的代码
+	 * @param rounds 重复次数
+	 * @return 预热失败(例如缺少字体)时返回 false
+	 */
+	public static boolean warmUp(int rounds) {
+		try {
+			for (int i = 0; i < rounds; i++) {
+				for (int doc_type : new int[] {
+						TextParser.DOC_TYPE_PDF, TextParser.DOC_TYPE_HTML }) {
+					TextParser parser = new TextParser(
+							new ByteArrayInputStream(
+									WARMUP_XML.getBytes("UTF-8")),
+							new ByteArrayInputStream(
+									WARMUP_JSON.getBytes("UTF-8")),
+							null);
+					parser.renderToBytes(doc_type);
+				}
+			}
+			return true;
+		} catch (Exception e) {
+			System.err.println("TextPDF warm up failed: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * 开始监听，并保存端口和口令
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		server_socket = new ServerSocket(port, 50,
+				InetAddress.getLoopbackAddress());
+		port = server_socket.getLocalPort();
+
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		token = Util.toHexString(bytes);
+		writeInfo();
+
+		executor = Executors.newFixedThreadPool(threads);
+	}
+
+	private void writeInfo() throws IOException {
+		File file = infoFile();
+		file.delete();
+		file.createNewFile();
+		try {
+			Files.setPosixFilePermissions(file.toPath(),
+					PosixFilePermissions.fromString("rw-------"));
+		} catch (UnsupportedOperationException e) {
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+		}
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(port + "\n" + token + "\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * 接受并处理连接，直到 stop() 被调用
+	 * @throws IOException
+	 */
+	public void serve() throws IOException {
+		while (!server_socket.isClosed()) {
+			Socket socket;
+			try {
+				socket = server_socket.accept();
+			} catch (SocketException e) {
+				break;	// stop() 关闭了监听
+			}
+			executor.execute(new DaemonSession(this, socket));
+		}
+	}
+
+	/**
+	 * 停止监听，并删除端口和口令文件
+	 */
+	public void stop() {
+		try {
+			if (server_socket != null) {
+				server_socket.close();
+			}
+		} catch (IOException e) {
+		}
+		if (executor != null) {
+			executor.shutdown();
+		}
+		String[] info = readInfo();
+		if (info != null && info[1].equals(token)) {
+			infoFile().delete();
+		}
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	boolean checkToken(String token) throws IOException {
+		if (token == null) {
+			return false;
+		}
+		return MessageDigest.isEqual(this.token.getBytes("UTF-8"),
+				token.getBytes("UTF-8"));
+	}
+
+	/**
+	 * 常驻进程入口，参数为 [-p port] [-t threads]
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = 0;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		for (int i = 0; i < args.length; i++) {
+			if ((args[i].equals("-p") || args[i].equals("-t")) &&
+					i < args.length - 1) {
+				try {
+					int value = Integer.parseInt(args[i + 1]);
+					if (args[i].equals("-p")) {
+						port = value;
+					} else {
+						threads = Math.max(value, 1);
+					}
+				} catch (NumberFormatException e) {
+					System.err.println("'" + args[i]
+							+ "' option require a integer value");
+					return;
+				}
+				i++;
+			} else {
+				System.err.println("Unknown option '" + args[i] + "'");
+				return;
+			}
+		}
+		final TextPDFDaemon daemon = new TextPDFDaemon(port, threads);
+		warmUp(20);
+		daemon.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				daemon.stop();
+			}
+		});
+		System.err.println("TextPDF daemon listening on localhost:"
+				+ daemon.getPort());
+		daemon.serve();
+	}
+
+}
+
+
+/**
+ * 处理一个客户端请求
+ */
+class DaemonSession implements Runnable
+{
+	private TextPDFDaemon daemon;
+	private Socket socket;
+
+	public DaemonSession(TextPDFDaemon daemon, Socket socket) {
+		this.daemon = daemon;
+		this.socket = socket;
+	}
+
+	@Override
+	public void run() {
+		try {
+			socket.setSoTimeout(30 * 1000);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), "UTF-8"));
+			OutputStream out_stream = socket.getOutputStream();
+
+			if (!daemon.checkToken(reader.readLine())) {
+				out_stream.write("1\nInvalid token.\n".getBytes("UTF-8"));
+				return;
+			}
+			String cwd = reader.readLine();
+			List<String> args = new ArrayList<String>();
+			String line;
+			while ((line = reader.readLine()) != null && line.length() > 0) {
+				args.add(line);
+			}
+			if (cwd == null || line == null) {
+				return;		// 请求不完整
+			}
+			ByteArrayOutputStream messages = new ByteArrayOutputStream();
+			PrintStream print_stream = new PrintStream(messages, true, "UTF-8");
+			int code = TextPDF.run(new File(cwd),
+					args.toArray(new String[args.size()]),
+					print_stream, print_stream);
+			print_stream.flush();
+
+			out_stream.write((code + "\n").getBytes("UTF-8"));
+			messages.writeTo(out_stream);
+			out_stream.flush();
+		} catch (IOException e) {
+			System.err.println("TextPDF daemon session failed: " + e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+}
@@ -0,0 +1,450 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * 监视目录，自动生成放入其中的文档
+ *
+ * 每个任务是输入目录中的一个 JSON 数据文件 name.json，模板为同一目录中
+ * 的 name.xml，或者 JSON 中 "template" 指定的模板文件(相对于模板目录，
+ * 这种模板会被缓存，不会被删除)。生成的文档先写入输出目录中的临时文件，
+ * 完成后再改名为 name.pdf(或 name.html)，所以读取方不会看到不完整的文件。
+ * 生成时有警告的，在文档之前写入输出目录中的 name.warn.txt。
+ * 成功后删除任务文件，失败时将任务文件移到错误目录，并附带
+ * name.error.txt 说明原因。
+ *
+ * 生成任务文件时，最好先写入以 . 开头或以 .tmp 结尾的临时文件，然后再
+ * 改名，这些文件会被忽略。直接写入的文件要等到一段时间没有修改后才会
+ * 处理，刚修改的任务稍后重新提交，不会在渲染线程中等待。
+ */
+public class TextPDFWatcher
+{
+	private File in_dir;
+	private File out_dir;
+	private File error_dir;
+	private File template_dir;
+	private int doc_type = TextParser.DOC_TYPE_PDF;
+	private long settle_millis = 500;
+	private Executor executor;
+	private ExecutorService own_executor = null;
+	private ScheduledExecutorService delayer = null;
+	private Set<String> pending;
+	private ConcurrentHashMap<String, CompiledTemplate> templates;
+	private StaticBlockCache static_cache;
+	private FragmentCache fragment_cache;
+	private volatile boolean running = false;
+
+	/**
+	 * @param in_dir 输入目录
+	 * @param out_dir 输出目录
+	 * @param error_dir 错误目录
+	 * @param threads 同时生成的文档数
+	 */
+	public TextPDFWatcher(File in_dir, File out_dir, File error_dir,
+			int threads) {
+		this(in_dir, out_dir, error_dir, (Executor) null);
+		this.own_executor = Executors.newFixedThreadPool(threads);
+		this.executor = own_executor;
+	}
+
+	/**
+	 * 在调度器的批量队列中生成文档，和同一个进程中的交互请求共享渲染线程，
+	 * 参考 RenderScheduler
+	 * @param in_dir 输入目录
+	 * @param out_dir 输出目录
+	 * @param error_dir 错误目录
+	 * @param scheduler
+	 */
+	public TextPDFWatcher(File in_dir, File out_dir, File error_dir,
+			RenderScheduler scheduler) {
+		this(in_dir, out_dir, error_dir,
+				scheduler.lane(RenderScheduler.LANE_BULK));
+	}
+
+	private TextPDFWatcher(File in_dir, File out_dir, File error_dir,
+			Executor executor) {
+		this.in_dir = in_dir;
+		this.out_dir = out_dir;
+		this.error_dir = error_dir;
+		this.template_dir = in_dir;
+		this.executor = executor;
+		this.pending = Collections.newSetFromMap(
+				new ConcurrentHashMap<String, Boolean>());
+		this.templates = new ConcurrentHashMap<String, CompiledTemplate>();
+		this.static_cache = new StaticBlockCache();
+		this.fragment_cache = new FragmentCache();
+	}
+
+	/**
+	 * JSON 中 "template" 指定的模板文件所在的目录，默认为输入目录
+	 * @param template_dir
+	 */
+	public void setTemplateDir(File template_dir) {
+		this.template_dir = template_dir;
+	}
+
+	/**
+	 * 输出文档类型，默认为 PDF
+	 * @param doc_type TextParser.DOC_TYPE_PDF 或 TextParser.DOC_TYPE_HTML
+	 */
+	public void setDocType(int doc_type) {
+		this.doc_type = doc_type;
+	}
+
+	/**
+	 * 任务文件在这段时间内没有被修改时才处理，默认为 500
+	 * @param settle_millis
+	 */
+	public void setSettleTime(long settle_millis) {
+		this.settle_millis = settle_millis;
+	}
+
+	/**
+	 * 监视输入目录，直到 stop() 被调用。开始时先处理目录中已有的任务
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void watch() throws IOException, InterruptedException {
+		out_dir.mkdirs();
+		error_dir.mkdirs();
+		running = true;
+		delayer = Executors.newSingleThreadScheduledExecutor();
+
+		WatchService service = FileSystems.getDefault().newWatchService();
+		try {
+			in_dir.toPath().register(service, ENTRY_CREATE, ENTRY_MODIFY);
+			scan();
+			while (running) {
+				WatchKey key = service.poll(1, TimeUnit.SECONDS);
+				if (key == null) {
+					continue;
+				}
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW) {
+						scan();
+					} else {
+						submit(((Path) event.context()).toString());
+					}
+				}
+				key.reset();
+			}
+		} finally {
+			service.close();
+			delayer.shutdownNow();
+		}
+	}
+
+	/**
+	 * 停止监视，等待正在处理的任务完成(使用调度器时由调度器的所有者
+	 * 负责停止调度器)
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		running = false;
+		if (own_executor != null) {
+			own_executor.shutdown();
+			own_executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	private void scan() {
+		String[] names = in_dir.list();
+		if (names != null) {
+			for (String name : names) {
+				submit(name);
+			}
+		}
+	}
+
+	/**
+	 * 根据文件名提交任务，xml 和 json 文件都可能触发同一个任务
+	 */
+	private void submit(String file_name) {
+		if (file_name.startsWith(".") || file_name.endsWith(".tmp")) {
+			return;
+		}
+		final String name;
+		if (file_name.endsWith(".json")) {
+			name = file_name.substring(0, file_name.length() - 5);
+		} else if (file_name.endsWith(".xml")) {
+			name = file_name.substring(0, file_name.length() - 4);
+		} else {
+			return;
+		}
+		if (!pending.add(name)) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					process(name);
+				} finally {
+					pending.remove(name);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 文件是否已经写入完成：一段时间内没有被修改
+	 */
+	private boolean settled(File file) {
+		return System.currentTimeMillis() - file.lastModified() >=
+				settle_millis;
+	}
+
+	/**
+	 * 文件还在写入，稍后重新提交任务，不占用渲染线程
+	 */
+	private void retry(final String name) {
+		if (!running) {
+			return;		// 下次启动时扫描目录会处理
+		}
+		try {
+			delayer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					submit(name + ".json");
+				}
+			}, settle_millis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+		}
+	}
+
+	private void process(String name) {
+		File json_file = new File(in_dir, name + ".json");
+		File xml_file = new File(in_dir, name + ".xml");
+		Diagnostics diagnostics = null;
+		try {
+			if (!json_file.isFile()) {
+				return;		// 只有模板，等待 JSON 文件
+			}
+			if (!settled(json_file) ||
+					(xml_file.isFile() && !settled(xml_file))) {
+				retry(name);
+				return;
+			}
+			byte[] json_bytes = readFile(json_file);
+			TextParser parser;
+			if (xml_file.isFile()) {
+				parser = new TextParser(
+						new ByteArrayInputStream(readFile(xml_file)),
+						new ByteArrayInputStream(json_bytes), null);
+			} else {
+				CompiledTemplate template = template(json_bytes);
+				if (template == null) {
+					return;		// 等待 name.xml
+				}
+				parser = new TextParser(null,
+						new ByteArrayInputStream(json_bytes), null);
+				parser.setCompiledTemplate(template);
+			}
+			parser.setTraceIds(null, name);
+			parser.setStaticBlockCache(static_cache);
+			parser.setIncludeDir(template_dir);
+			parser.setFragmentCache(fragment_cache);
+			byte[] bytes;
+			try {
+				bytes = parser.renderToBytes(doc_type);
+			} finally {
+				diagnostics = parser.getDiagnostics();
+			}
+			writeWarnings(name, diagnostics);
+			writeOutput(name, bytes);
+			json_file.delete();
+			xml_file.delete();
+		} catch (Exception e) {
+			fail(name, json_file, xml_file, diagnostics, e);
+		}
+	}
+
+	/**
+	 * 取得 JSON 中 "template" 指定的模板，缓存到文件被修改为止，
+	 * 编译结果同时保存在模板旁边，参考 CompiledTemplate.load()
+	 * @return 没有指定模板时返回 null
+	 */
+	private CompiledTemplate template(byte[] json_bytes) throws Exception {
+		JSONParser json_parser = new JSONParser();
+		Object object = json_parser.parse(new String(json_bytes, "UTF-8"));
+		if (!(object instanceof JSONObject)) {
+			return null;
+		}
+		Object value = ((JSONObject) object).get("template");
+		if (!(value instanceof String)) {
+			return null;
+		}
+		File file = new File((String) value);
+		if (!file.isAbsolute()) {
+			file = new File(template_dir, (String) value);
+		}
+		String path = file.getCanonicalPath();
+		CompiledTemplate template = templates.get(path);
+		if (template == null || !template.isCurrent(file)) {
+			template = CompiledTemplate.load(file);
+			templates.put(path, template);
+		}
+		return template;
+	}
+
+	private byte[] readFile(File file) throws IOException {
+		InputStream stream = new FileInputStream(file);
+		try {
+			return Util.readStream(stream);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * 先写入临时文件，再改名为最终的文件名
+	 */
+	private void writeOutput(String name, byte[] bytes) throws IOException {
+		String suffix = doc_type == TextParser.DOC_TYPE_HTML ? ".html" : ".pdf";
+		Util.writeFileAtomic(new File(out_dir, name + suffix), bytes);
+	}
+
+	/**
+	 * 写入 name.warn.txt，没有警告时删除以前留下的文件
+	 */
+	private void writeWarnings(String name, Diagnostics diagnostics)
+			throws IOException {
+		Path path = new File(out_dir, name + ".warn.txt").toPath();
+		if (diagnostics.isEmpty()) {
+			Files.deleteIfExists(path);
+		} else {
+			Files.write(path, diagnostics.toString().getBytes("UTF-8"));
+		}
+	}
+
+	/**
+	 * 将任务文件移到错误目录，并写入错误说明
+	 */
+	private void fail(String name, File json_file, File xml_file,
+			Diagnostics diagnostics, Exception ex) {
+		StringWriter writer = new StringWriter();
+		PrintWriter print_writer = new PrintWriter(writer);
+		if (diagnostics != null && !diagnostics.isEmpty()) {
+			print_writer.print(diagnostics);
+			print_writer.println();
+		}
+		ex.printStackTrace(print_writer);
+		print_writer.flush();
+		try {
+			for (File file : new File[] { json_file, xml_file }) {
+				if (file.isFile()) {
+					Files.move(file.toPath(),
+							new File(error_dir, file.getName()).toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			Files.write(new File(error_dir, name + ".error.txt").toPath(),
+					writer.toString().getBytes("UTF-8"));
+		} catch (IOException e) {
+			System.err.println(name + ": failed to move to error folder: " + e);
+		}
+		System.err.println(name + ": " + ex);
+	}
+
+	/**
+	 * 监视模式入口，参数为 [-t threads] [-f pdf|html] indir outdir errordir
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int doc_type = TextParser.DOC_TYPE_PDF;
+		String[] dirs = new String[3];
+		int ndirs = 0;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-t") && i < args.length - 1) {
+				try {
+					threads = Math.max(Integer.parseInt(args[++i]), 1);
+				} catch (NumberFormatException e) {
+					System.err.println("'-t' option require a integer value");
+					return;
+				}
+			} else if (args[i].equals("-f") && i < args.length - 1) {
+				if (args[++i].equalsIgnoreCase("html")) {
+					doc_type = TextParser.DOC_TYPE_HTML;
+				}
+			} else if (ndirs < dirs.length) {
+				dirs[ndirs++] = args[i];
+			}
+		}
+		if (ndirs < dirs.length) {
+			System.err.println("Usage: java -jar textpdf.jar -watch "
+					+ "[-t threads] [-f pdf|html] indir outdir errordir");
+			return;
+		}
+		final TextPDFWatcher watcher = new TextPDFWatcher(new File(dirs[0]),
+				new File(dirs[1]), new File(dirs[2]), threads);
+		watcher.setDocType(doc_type);
+		TextPDFDaemon.warmUp(20);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					watcher.stop();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		System.err.println("TextPDF watching " + dirs[0]);
+		watcher.watch();
+	}
+
+}
+
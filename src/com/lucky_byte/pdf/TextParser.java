@@ -23,13 +23,22 @@
 package com.lucky_byte.pdf;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.EmptyStackException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 
 import javax.xml.parsers.SAXParser;
@@ -39,7 +48,10 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 import org.xml.sax.helpers.DefaultHandler;
 
 import com.itextpdf.text.PageSize;
@@ -58,6 +70,9 @@ public class TextParser
 	static final public int DOC_TYPE_PDF  = 1;
 	static final public int DOC_TYPE_HTML = 2;
 
+	// 片段最多嵌套的层数，避免片段循环引用
+	static final private int MAX_INCLUDE_DEPTH = 16;
+
 	InputStream xml_stream;
 	InputStream json_stream;
 	OutputStream out_stream;
@@ -67,6 +82,30 @@ public class TextParser
 	String html_declare = null;
 	String html_extra = null;
 	int html_type = HTMLDoc.TYPE_INPUT;
+	DocReader doc_reader = null;
+	CompiledTemplate compiled_template = null;
+	// XML 模板的摘要及其中引用的片段，每个对象只计算一次
+	private byte[] xml_digest = null;
+	private List<String> xml_includes = null;
+	File include_dir = null;
+	FragmentCache fragment_cache = null;
+	HTMLFormCache html_cache = null;
+	RenderCache render_cache = null;
+	StaticBlockCache static_cache = null;
+	OverlayCache overlay_cache = null;
+	StaticPageCache static_page_cache = null;
+	OverlayRecorder overlay_recorder = null;
+	RenderLimits render_limits = null;
+	RenderBudget budget = null;
+	volatile boolean cancelled = false;
+	String template_key = null;
+	// 模板中有重复行，HTML 输出和数据有关
+	boolean repeat_rows = false;
+	int html_compress = 0;
+	String template_id = null;
+	String record_id = null;
+	DiagnosticListener diagnostic_listener = null;
+	Diagnostics diagnostics = new Diagnostics();
 
 	public TextParser(InputStream xml_stream, InputStream json_stream,
 			OutputStream out_stream) {
@@ -77,6 +116,14 @@ public class TextParser
 		js_paths = new ArrayList<String>();
 	}
 
+	/**
+	 * 输出到 NIO 通道，代替构造函数中的输出流，通道在渲染结束后不会被关闭
+	 * @param channel
+	 */
+	public void setOutputChannel(WritableByteChannel channel) {
+		this.out_stream = new ChannelOutputStream(channel);
+	}
+
 	/**
 	 * 在输出的 html 文件中添加 css 链接
 	 * @param css_paths
@@ -149,18 +196,679 @@ public class TextParser
 		this.html_type = type;
 	}
 
+	/**
+	 * 模板输入流为 .doc 文件，通过 DocReader 直接产生模板事件，
+	 * 不需要先转换为 XML 模板文件再解析
+	 * @param reader
+	 */
+	public void setDocReader(DocReader reader) {
+		this.doc_reader = reader;
+		this.compiled_template = null;
+	}
+
+	/**
+	 * 使用编译后的模板代替 XML 模板输入流(忽略构造函数中的模板输入流)，
+	 * 不需要再解析 XML，参考 CompiledTemplate.load()
+	 * @param template
+	 */
+	public void setCompiledTemplate(CompiledTemplate template) {
+		this.compiled_template = template;
+		this.doc_reader = null;
+	}
+
+	/**
+	 * 设置 <include src="..."/> 中相对路径的基准目录，默认为当前目录，
+	 * 片段中引用的片段也相对于这个目录
+	 * @param include_dir
+	 */
+	public void setIncludeDir(File include_dir) {
+		this.include_dir = include_dir;
+	}
+
+	/**
+	 * 设置片段缓存，片段只编译一次，在多个模板之间共享
+	 * @param cache
+	 */
+	public void setFragmentCache(FragmentCache cache) {
+		this.fragment_cache = cache;
+	}
+
+	/**
+	 * 读取 include 引用的片段
+	 */
+	CompiledTemplate loadFragment(String src) throws Exception {
+		File file = new File(src);
+		if (!file.isAbsolute() && include_dir != null) {
+			file = new File(include_dir, src);
+		}
+		if (fragment_cache != null) {
+			return fragment_cache.get(file);
+		}
+		return CompiledTemplate.load(file);
+	}
+
+	/**
+	 * 读取第 depth 层 include 引用的片段，层数过多时认为片段循环引用，
+	 * 渲染及生成模板清单时使用
+	 */
+	CompiledTemplate includeFragment(String src, int depth)
+			throws SAXException {
+		if (depth >= MAX_INCLUDE_DEPTH) {
+			throw new SAXException("include nested too deep: " + src);
+		}
+		try {
+			return loadFragment(src);
+		} catch (Exception e) {
+			throw new SAXException("Load fragment '" + src + "' failed.", e);
+		}
+	}
+
+	/**
+	 * 设置资源限制，超出时终止渲染并抛出 RenderLimitException
+	 * @param limits
+	 */
+	public void setRenderLimits(RenderLimits limits) {
+		this.render_limits = limits;
+	}
+
+	/**
+	 * 取消渲染，可以在其它线程中调用。渲染线程在下一个检查点抛出
+	 * RenderLimitException，中断渲染线程的效果相同。
+	 * 只取消正在进行的渲染，以后再调用 gen() 时重新开始
+	 */
+	public void cancel() {
+		this.cancelled = true;
+	}
+
+	/**
+	 * 设置 HTML 输出的压缩格式，文档头和文档尾等静态内容只压缩一次
+	 * @param format CompressOutputStream.GZIP 或 CompressOutputStream.DEFLATE，
+	 *        0 表示不压缩(默认)
+	 */
+	public void setHtmlCompression(int format) {
+		this.html_compress = format;
+	}
+
+	/**
+	 * 设置诊断信息监听者，参考 getDiagnostics()
+	 * @param listener
+	 */
+	public void setDiagnosticListener(DiagnosticListener listener) {
+		this.diagnostic_listener = listener;
+	}
+
+	/**
+	 * 最近一次渲染的诊断报告，包括 JSON 中缺少的 key、错误的属性值等，
+	 * 这些信息不会再输出到 System.err
+	 * @return
+	 */
+	public Diagnostics getDiagnostics() {
+		return diagnostics;
+	}
+
+	/**
+	 * 设置跟踪标识，这两个标识会出现在本次渲染的所有跨度中，
+	 * 参考 Tracing 和 RenderSpan
+	 * @param template_id 模板标识，例如模板文件名
+	 * @param record_id 数据记录标识，例如合同编号
+	 */
+	public void setTraceIds(String template_id, String record_id) {
+		this.template_id = template_id;
+		this.record_id = record_id;
+	}
+
+	/**
+	 * 设置 HTML 表单缓存，设置后 genHTML() 只在缓存中不存在对应的表单时
+	 * 才解析模板，参考 compileHTML()
+	 * @param cache
+	 */
+	public void setHTMLFormCache(HTMLFormCache cache) {
+		this.html_cache = cache;
+	}
+
+	/**
+	 * 设置渲染结果缓存，模板、JSON 数据及选项都相同时直接输出缓存的结果，
+	 * 参考 RenderCache
+	 * @param cache
+	 */
+	public void setRenderCache(RenderCache cache) {
+		this.render_cache = cache;
+	}
+
+	/**
+	 * 设置 PDF 静态块缓存，不包含值的块只生成一次，以后的渲染直接使用，
+	 * 参考 StaticBlockCache。只适用于 XML 模板
+	 * @param cache
+	 */
+	public void setStaticBlockCache(StaticBlockCache cache) {
+		this.static_cache = cache;
+	}
+
+	/**
+	 * 设置 PDF 静态页缓存，模板中 <static> 标记的部分如果不包含值，只生成
+	 * 一次，以后直接复制生成的页，参考 StaticPageCache
+	 * @param cache
+	 */
+	public void setStaticPageCache(StaticPageCache cache) {
+		this.static_page_cache = cache;
+	}
+
+	/**
+	 * 设置套打模板缓存，设置后生成 PDF 时先尝试套打，模板不适合套打或者
+	 * 值超出占位符时再完整排版，参考 OverlayTemplate。只适用于 XML 模板
+	 * @param cache
+	 */
+	public void setOverlayCache(OverlayCache cache) {
+		this.overlay_cache = cache;
+	}
+
+	/**
+	 * 生成套打模板，如果设置了缓存，则优先从缓存中获取。
+	 * 这个函数会读取 XML 模板输入流，但不会读取 JSON 输入流，也不会写输出流。
+	 * @return
+	 * @throws Exception
+	 */
+	public OverlayTemplate compileOverlay() throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		digest.update(templateDigest());
+		String key = Util.toHexString(digest.digest("\0overlay".getBytes("UTF-8")));
+
+		if (overlay_cache != null) {
+			OverlayTemplate template = overlay_cache.get(key);
+			if (template != null) {
+				return template;
+			}
+		}
+		ByteArrayOutputStream pdf_stream = new ByteArrayOutputStream();
+		TextParser parser = templateParser(pdf_stream);
+		parser.overlay_recorder = new OverlayRecorder();
+		parser.genPDF();
+
+		OverlayTemplate template = new OverlayTemplate(key,
+				pdf_stream.toByteArray(), parser.overlay_recorder,
+				parser.getDiagnostics());
+		if (overlay_cache != null) {
+			overlay_cache.put(template);
+		}
+		return template;
+	}
+
+	/**
+	 * 尝试套打
+	 * @return 成功时返回 true，否则恢复输入流，由调用者完整排版
+	 */
+	private boolean writeOverlay() throws Exception {
+		OverlayTemplate template = compileOverlay();
+		if (!template.isSafe()) {
+			return false;
+		}
+		JSONObject json_object = null;
+		if (json_stream != null) {
+			byte[] json_bytes = Util.readStream(json_stream);
+			json_stream = new ByteArrayInputStream(json_bytes);
+			JSONParser json_parser = new JSONParser();
+			json_object = (JSONObject) json_parser.parse(
+					new String(json_bytes, "UTF-8"));
+		}
+		if (template.stamp(json_object, out_stream, diagnostics)) {
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 读取模板输入流的内容，并恢复输入流以便再次读取。
+	 * 使用编译后的模板时返回 null
+	 */
+	private byte[] readTemplate() throws IOException {
+		if (compiled_template != null) {
+			return null;
+		}
+		byte[] xml_bytes = Util.readStream(xml_stream);
+		xml_stream = new ByteArrayInputStream(xml_bytes);
+		return xml_bytes;
+	}
+
+	/**
+	 * 模板内容的 SHA-1 摘要，编译后的模板和对应的 XML 模板摘要相同。
+	 * 模板包含片段时，摘要中包括所有片段的摘要，所以片段被修改后，
+	 * 使用这个摘要的缓存都会失效
+	 */
+	private byte[] templateDigest() throws Exception {
+		byte[] source_digest;
+		List<String> includes;
+		if (compiled_template != null) {
+			source_digest = compiled_template.getDigest();
+			includes = compiled_template.getIncludes();
+		} else {
+			if (xml_digest == null) {
+				byte[] xml_bytes = readTemplate();
+				xml_includes = new ArrayList<String>();
+				if (doc_reader == null &&
+						new String(xml_bytes, "UTF-8").contains("<include")) {
+					xml_includes =
+							CompiledTemplate.compile(xml_bytes).getIncludes();
+				}
+				// 和 CompiledTemplate.getDigest() 相同
+				xml_digest = MessageDigest.getInstance("SHA-1").digest(
+						xml_bytes);
+			}
+			source_digest = xml_digest;
+			includes = xml_includes;
+		}
+		if (includes.isEmpty()) {
+			return source_digest;
+		}
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		digest.update(source_digest);
+		digestIncludes(digest, includes, 0);
+		return digest.digest();
+	}
+
+	private void digestIncludes(MessageDigest digest, List<String> includes,
+			int depth) throws Exception {
+		if (!includes.isEmpty() &&
+				depth >= MAX_INCLUDE_DEPTH) {
+			throw new IOException("include nested too deep.");
+		}
+		for (String src : includes) {
+			CompiledTemplate fragment = loadFragment(src);
+			digest.update(("\0include:" + src + "\0").getBytes("UTF-8"));
+			digest.update(fragment.getDigest());
+			digestIncludes(digest, fragment.getIncludes(), depth + 1);
+		}
+	}
+
+	/**
+	 * 创建使用同一个模板的解析器，不带 JSON 数据
+	 */
+	private TextParser templateParser(OutputStream stream) throws Exception {
+		TextParser parser;
+		if (compiled_template != null) {
+			parser = new TextParser(null, null, stream);
+			parser.compiled_template = compiled_template;
+		} else {
+			parser = new TextParser(
+					new ByteArrayInputStream(readTemplate()), null, stream);
+		}
+		parser.render_limits = render_limits;
+		parser.include_dir = include_dir;
+		parser.fragment_cache = fragment_cache;
+		return parser;
+	}
+
+	/**
+	 * 计算 HTML 表单的缓存键，包括模板内容以及所有影响输出的选项
+	 */
+	private String htmlFormKey() throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		digest.update(templateDigest());
+		digest.update(optionKey().getBytes("UTF-8"));
+		return Util.toHexString(digest.digest());
+	}
+
+	/**
+	 * 计算渲染结果的缓存键，包括模板、JSON 数据、输出类型及选项
+	 */
+	private String renderKey(int doc_type, byte[] json_bytes)
+			throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		// 模板摘要长度固定，不会和数据的边界混淆
+		digest.update(templateDigest());
+		if (json_bytes != null) {
+			digest.update(json_bytes);
+			digest.update(("\0json:" + json_bytes.length).getBytes("UTF-8"));
+		}
+		digest.update(("\0doc:" + doc_type).getBytes("UTF-8"));
+		if (doc_type == DOC_TYPE_HTML) {
+			digest.update(optionKey().getBytes("UTF-8"));
+			digest.update(("\0compress:" + html_compress).getBytes("UTF-8"));
+		}
+		return Util.toHexString(digest.digest());
+	}
+
+	/**
+	 * 影响 HTML 输出的选项
+	 */
+	private String optionKey() {
+		StringBuilder builder = new StringBuilder();
+		builder.append('\0').append(doc_reader == null ?
+				"xml" : doc_reader.getClass().getName());
+		for (String path : css_paths) {
+			builder.append("\0css:").append(path);
+		}
+		for (String path : js_paths) {
+			builder.append("\0js:").append(path);
+		}
+		builder.append("\0type:").append(html_type);
+		builder.append("\0encoding:").append(out_encoding);
+		builder.append("\0declare:").append(html_declare);
+		builder.append("\0extra:").append(html_extra);
+		return builder.toString();
+	}
+
+	/**
+	 * 生成不包含标题的 HTML 表单
+	 *
+	 * 同一个模板生成的 HTML 表单除了标题以外都相同，如果设置了缓存，
+	 * 则优先从缓存中获取。可以通过 HTMLForm 的 ETag 和 Last-Modified
+	 * 信息直接响应 HTTP 请求，而不需要重新生成。
+	 * 这个函数会读取 XML 模板输入流，但不会读取 JSON 输入流，也不会写输出流。
+	 * @return
+	 * @throws Exception
+	 */
+	public HTMLForm compileHTML() throws Exception {
+		String key = htmlFormKey();
+
+		if (html_cache != null) {
+			HTMLForm form = html_cache.get(key);
+			if (form != null) {
+				return form;
+			}
+		}
+		ByteArrayOutputStream html_stream = new ByteArrayOutputStream();
+		TextParser parser = templateParser(html_stream);
+		parser.css_paths.addAll(css_paths);
+		parser.js_paths.addAll(js_paths);
+		parser.out_encoding = out_encoding;
+		parser.html_declare = html_declare;
+		parser.html_extra = html_extra;
+		parser.html_type = html_type;
+		if (doc_reader != null) {
+			parser.doc_reader = doc_reader;
+		}
+		parser.diagnostic_listener = diagnostic_listener;
+		parser.genHTML();
+		diagnostics.merge(parser.getDiagnostics());
+
+		// 没有 JSON 数据时标题为空，标题的位置就是文档头前缀的长度
+		HTMLDoc html_doc = new HTMLDoc(html_stream);
+		if (html_declare != null) {
+			html_doc.setDeclare(html_declare);
+		}
+		String encoding = out_encoding != null ? out_encoding : "UTF-8";
+		int title_offset = html_doc.openPrefix().getBytes(encoding).length;
+
+		HTMLForm form = new HTMLForm(key, html_stream.toByteArray(),
+				title_offset, encoding);
+		form.setRepeatRows(parser.repeat_rows);
+		if (html_cache != null) {
+			html_cache.put(form);
+		}
+		return form;
+	}
+
+	/**
+	 * 生成模板清单，包括所有值的 id、minlen 及格式上下文，可以在渲染之前
+	 * 通过 TemplateManifest.check() 检查 JSON 数据，参考 TemplateManifest。
+	 * 这个函数会读取 XML 模板输入流，但不会读取 JSON 输入流，也不会写输出流。
+	 * @return
+	 * @throws Exception
+	 */
+	public TemplateManifest compileManifest() throws Exception {
+		ManifestBuilder builder = new ManifestBuilder(this);
+		if (compiled_template != null) {
+			compiled_template.replay(builder);
+		} else {
+			ByteArrayInputStream stream =
+					new ByteArrayInputStream(readTemplate());
+			if (doc_reader != null) {
+				doc_reader.setDiagnostics(diagnostics);
+				doc_reader.read(stream, builder);
+			} else {
+				SAXParserFactory factory = SAXParserFactory.newInstance();
+				factory.setNamespaceAware(false);
+				SAXParser parser = factory.newSAXParser();
+				parser.parse(stream, builder);
+			}
+		}
+		return builder.getManifest();
+	}
+
+	/**
+	 * 模板(包括片段)摘要的十六进制形式，用作模板清单的缓存键及检查点日志
+	 */
+	String templateKey() throws Exception {
+		return Util.toHexString(templateDigest());
+	}
+
+	/**
+	 * 从 JSON 输入流中读取标题
+	 */
+	private String readJSONTitle() throws Exception {
+		if (json_stream == null) {
+			return null;
+		}
+		InputStreamReader reader =
+				new InputStreamReader(json_stream, "UTF-8");
+		JSONParser json_parser = new JSONParser();
+		JSONObject json_object = (JSONObject) json_parser.parse(
+				new BufferedReader(reader));
+		Object value = json_object.get("title");
+		if (value instanceof String) {
+			return (String) value;
+		}
+		return null;
+	}
+
 	/**
 	 * 解析 XML 模板并生成输出文档
 	 * @throws Exception 
 	 */
 	public void gen(int doc_type) throws Exception {
+		diagnostics = new Diagnostics(diagnostic_listener);
+		if (!Metrics.isEnabled() && !Tracing.isEnabled()) {
+			render(doc_type);
+			return;
+		}
+		RenderSpan span = Tracing.beginRender(template_id, record_id);
+		long start = Metrics.start();
+		long allocated = Metrics.allocatedBytes();
+		OutputStream stream = out_stream;
+		MeteredOutputStream metered_stream = new MeteredOutputStream(stream);
+		TextDoc text_doc = null;
+		boolean failed = true;
 		try {
-			SAXParserFactory factory = SAXParserFactory.newInstance();
-			factory.setNamespaceAware(false);
-			SAXParser parser = factory.newSAXParser();
-			parser.parse(xml_stream, new TextDocHandler(this, doc_type));
-		} catch (Exception ex) {
-			throw ex;
+			out_stream = metered_stream;
+			text_doc = render(doc_type);
+			failed = false;
+		} finally {
+			out_stream = stream;
+			if (allocated >= 0) {
+				allocated = Metrics.allocatedBytes() - allocated;
+			}
+			int pages = text_doc == null ? 0 : text_doc.getPageCount();
+			Metrics.render(doc_type, start, pages,
+					metered_stream.getCount(), allocated, failed);
+			Tracing.end(span, pages, metered_stream.getCount());
+		}
+	}
+
+	/**
+	 * 生成输出文档，返回解析时使用的 TextDoc，使用缓存时返回 null
+	 */
+	private TextDoc render(int doc_type) throws Exception {
+		cancelled = false;
+		budget = new RenderBudget(render_limits, this);
+		OutputStream stream = out_stream;
+		try {
+			out_stream = budget.wrap(stream);
+			if (render_cache != null) {
+				return renderCached(doc_type);
+			}
+			return renderOutput(doc_type);
+		} catch (Exception e) {
+			// iText 会包装输出流抛出的异常
+			RenderLimitException cause = RenderBudget.findCause(e);
+			if (cause != null) {
+				throw cause;
+			}
+			throw e;
+		} finally {
+			out_stream = stream;
+		}
+	}
+
+	/**
+	 * 先查找渲染结果缓存，没有命中时渲染到缓冲区并保存结果，
+	 * 命中时返回 null
+	 */
+	private TextDoc renderCached(int doc_type) throws Exception {
+		byte[] json_bytes = null;
+		if (json_stream != null) {
+			json_bytes = Util.readStream(json_stream);
+		}
+		String key = renderKey(doc_type, json_bytes);
+		byte[] bytes = render_cache.get(key);
+		if (bytes != null) {
+			out_stream.write(bytes);
+			closeOutput(doc_type);
+			return null;
+		}
+		if (json_bytes != null) {
+			json_stream = new ByteArrayInputStream(json_bytes);
+		}
+		ByteBufferPool pool = ByteBufferPool.getDefault();
+		ByteBufferOutputStream buffer = pool.acquire();
+		OutputStream stream = out_stream;
+		try {
+			TextDoc text_doc;
+			try {
+				out_stream = buffer;
+				text_doc = renderOutput(doc_type);
+			} finally {
+				out_stream = stream;
+			}
+			render_cache.put(key, buffer.toByteArray());
+			buffer.writeTo(out_stream);
+			closeOutput(doc_type);
+			return text_doc;
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * 和直接渲染时一样，PDF 输出结束时关闭输出流(PdfWriter 的行为)，
+	 * HTML 输出只刷新
+	 */
+	private void closeOutput(int doc_type) throws IOException {
+		if (doc_type == DOC_TYPE_PDF) {
+			out_stream.close();
+		} else {
+			flushOutput();
+		}
+	}
+
+	private TextDoc renderOutput(int doc_type) throws Exception {
+		if (doc_type != DOC_TYPE_HTML || html_compress == 0) {
+			TextDoc text_doc = writeDoc(doc_type);
+			flushOutput();
+			return text_doc;
+		}
+		OutputStream stream = out_stream;
+		CompressOutputStream compress_stream =
+				new CompressOutputStream(stream, html_compress);
+		try {
+			out_stream = compress_stream;
+			TextDoc text_doc = writeDoc(doc_type);
+			compress_stream.finish();
+			out_stream = stream;
+			flushOutput();
+			return text_doc;
+		} finally {
+			out_stream = stream;
+		}
+	}
+
+	/**
+	 * HTML 输出不会关闭输出流，需要刷新带缓冲的输出(例如 NIO 通道)
+	 */
+	private void flushOutput() throws IOException {
+		if (out_stream != null) {
+			out_stream.flush();
+		}
+	}
+
+	private TextDoc writeDoc(int doc_type) throws Exception {
+		if (doc_type == DOC_TYPE_HTML && html_cache != null) {
+			HTMLForm form = compileHTML();
+			// 重复行由数据生成，有数据时完整生成
+			if (!form.hasRepeatRows() || json_stream == null) {
+				form.writeTo(out_stream, readJSONTitle());
+				return null;
+			}
+		}
+		if (doc_type == DOC_TYPE_PDF && overlay_cache != null &&
+				doc_reader == null && overlay_recorder == null) {
+			if (writeOverlay()) {
+				return null;
+			}
+		}
+		template_key = null;
+		if (doc_type == DOC_TYPE_PDF && static_cache != null &&
+				doc_reader == null) {
+			template_key = Util.toHexString(templateDigest());
+		}
+		long start = Metrics.start();
+		RenderSpan span = Tracing.begin(RenderSpan.TEMPLATE, null);
+		TextDocHandler handler = null;
+		try {
+			handler = new TextDocHandler(this, doc_type);
+			if (compiled_template != null) {
+				compiled_template.replay(handler);
+			} else if (doc_reader != null) {
+				doc_reader.setDiagnostics(diagnostics);
+				doc_reader.read(xml_stream, handler);
+			} else {
+				SAXParserFactory factory = SAXParserFactory.newInstance();
+				factory.setNamespaceAware(false);
+				SAXParser parser = factory.newSAXParser();
+				parser.parse(xml_stream, handler);
+			}
+		} finally {
+			Tracing.end(span, handler == null ? -1 :
+					handler.getTextDoc().getPageCount(), -1);
+		}
+		Metrics.end(RenderMetrics.PHASE_TEMPLATE, start);
+		return handler.getTextDoc();
+	}
+
+	/**
+	 * 渲染到给定的缓冲区(忽略构造函数中的输出流)，缓冲区可以在多次渲染
+	 * 之间重复使用，参考 ByteBufferPool
+	 * @param doc_type DOC_TYPE_PDF 或 DOC_TYPE_HTML
+	 * @param buffer 输出缓冲区，原有内容会被清空
+	 * @return 只读的输出内容，不经过复制，在缓冲区下次使用之前有效
+	 * @throws Exception
+	 */
+	public ByteBuffer renderToBuffer(int doc_type,
+			ByteBufferOutputStream buffer) throws Exception {
+		OutputStream stream = out_stream;
+		buffer.reset();
+		try {
+			out_stream = buffer;
+			gen(doc_type);
+		} finally {
+			out_stream = stream;
+		}
+		return buffer.toByteBuffer();
+	}
+
+	/**
+	 * 渲染到内存，使用默认对象池中的缓冲区，只在最后复制一次
+	 * @param doc_type DOC_TYPE_PDF 或 DOC_TYPE_HTML
+	 * @return
+	 * @throws Exception
+	 */
+	public byte[] renderToBytes(int doc_type) throws Exception {
+		ByteBufferPool pool = ByteBufferPool.getDefault();
+		ByteBufferOutputStream buffer = pool.acquire();
+		try {
+			renderToBuffer(doc_type, buffer);
+			return buffer.toByteArray();
+		} finally {
+			pool.release(buffer);
 		}
 	}
 
@@ -198,9 +906,31 @@ class TextDocHandler extends DefaultHandler
 	private List<TextChunk> chunk_list;
 	private Stack<TextChunk> chunk_stack;
 	private StringBuilder contents_builder;
+	private Diagnostics diagnostics;
 	private JSONObject json_object;
 	private JSONObject json_data;
+	private Locator locator = null;
+	private StringBuilder static_builder = null;
+	private int static_depth = 0;
+	private boolean static_dynamic = false;
+	private String page_xml = "";
 	private TextTable table = null;
+	private TextChunk table_cell = null;
+	private boolean in_row = false;
+	private boolean table_flushed = false;
+
+	// 静态单元格超过这个数量时先输出，不必等到表格结束
+	static final int TABLE_FLUSH_CELLS = 1000;
+
+	private int include_depth = 0;
+	private String block_source = null;
+
+	// 条件不成立时跳过的元素层数，循环体的记录，以及循环变量
+	private int skip_depth = 0;
+	private LoopBody loop_body = null;
+	private List<Map<String, Object>> scopes =
+			new ArrayList<Map<String, Object>>();
+	private boolean block_dynamic = false;
 	
 	public TextDocHandler(TextParser parser, int doc_type)
 			throws IOException, ParseException {
@@ -209,16 +939,22 @@ class TextDocHandler extends DefaultHandler
 		contents_builder = new StringBuilder();
 
 		this.parser = parser;
+		this.diagnostics = parser.diagnostics;
 
 		switch(doc_type) {
 		case TextParser.DOC_TYPE_PDF:
 			text_doc = new PDFDoc(parser.out_stream);
+			if (parser.overlay_recorder != null) {
+				((PDFDoc) text_doc).setOverlayRecorder(
+						parser.overlay_recorder);
+			}
 			break;
 
 		case TextParser.DOC_TYPE_HTML:
 			text_doc = new HTMLDoc(parser.out_stream);
 			HTMLDoc html_doc = (HTMLDoc) text_doc;
 			html_doc.setLinkPaths(parser.css_paths, parser.js_paths);
+			html_doc.setType(parser.html_type);
 			if (parser.html_declare != null) {
 				html_doc.setDeclare(parser.html_declare);
 			}
@@ -233,6 +969,150 @@ class TextDocHandler extends DefaultHandler
 		if (parser.out_encoding != null) {
 			text_doc.setEncoding(parser.out_encoding);
 		}
+		text_doc.setDiagnostics(diagnostics);
+		if (parser.budget == null) {
+			parser.budget = new RenderBudget(parser.render_limits, parser);
+		}
+		text_doc.setRenderBudget(parser.budget);
+	}
+
+	TextDoc getTextDoc() {
+		return text_doc;
+	}
+
+	@Override
+	public void setDocumentLocator(Locator locator) {
+		this.locator = locator;
+	}
+
+	/**
+	 * 不包含值的块的缓存键，由模板摘要和块的结束位置组成，和数据无关
+	 * @return 不能缓存时返回 null
+	 */
+	private String staticBlockKey() {
+		if (parser.static_cache == null || parser.template_key == null ||
+				locator == null || !(text_doc instanceof PDFDoc)) {
+			return null;
+		}
+		if (block_dynamic) {
+			return null;
+		}
+		for (TextChunk chunk : chunk_list) {
+			if (chunk.isValue()) {
+				return null;
+			}
+		}
+		String source = block_source != null ?
+				block_source : parser.template_key;
+		return source + "@" + locator.getLineNumber() +
+				":" + locator.getColumnNumber();
+	}
+
+	/**
+	 * 按照路径取值，先在循环变量中查找(内层优先)，然后在 data 中查找
+	 * @return 不存在时返回 JsonPath.MISSING
+	 */
+	private Object resolve(String path) {
+		return JsonPath.resolve(scopes, json_data, path);
+	}
+
+	/**
+	 * <if>/<unless> 的条件：test 指定的值成立，或者等于 equals 属性
+	 */
+	private boolean test(Attributes attrs) {
+		String path = attrs.getValue("test");
+		if (path == null || path.length() == 0) {
+			diagnostics.warn("if/unless need a test attribute.");
+			return false;
+		}
+		return JsonPath.test(resolve(path), attrs.getValue("equals"));
+	}
+
+	/**
+	 * <each> 结束，对数组中的每个元素重放循环体。循环体中块的位置每次
+	 * 都相同，所以不包含值的块仍然可以作为静态块缓存
+	 */
+	private void finishLoop() throws SAXException {
+		LoopBody body = loop_body;
+		loop_body = null;
+		if (body.items == null || body.items.length() == 0) {
+			diagnostics.warn("each need a items attribute.");
+			return;
+		}
+		Object items = resolve(body.items);
+		if (items == JsonPath.MISSING || items == null) {
+			if (text_doc instanceof PDFDoc) {
+				diagnostics.warn("JSON data key '" + body.items
+						+ "' not found!");
+			}
+			return;
+		}
+		if (!(items instanceof List)) {
+			diagnostics.warn("JSON data key '" + body.items
+					+ "' must has a array value.");
+			return;
+		}
+		Locator saved_locator = locator;
+		TemplateLocator loop_locator = body.located ?
+				new TemplateLocator() : null;
+		locator = loop_locator;
+		try {
+			int index = 0;
+			for (Object item : (List<?>) items) {
+				Map<String, Object> scope = new HashMap<String, Object>();
+				scope.put(body.as, item);
+				if (body.index != null) {
+					scope.put(body.index, (long) index);
+				}
+				scopes.add(scope);
+				try {
+					body.replay(this, loop_locator);
+				} finally {
+					scopes.remove(scopes.size() - 1);
+				}
+				index++;
+			}
+		} finally {
+			locator = saved_locator;
+		}
+	}
+
+	/**
+	 * 将片段的内容插入到当前位置。片段中静态块的缓存键由片段的摘要、
+	 * 块在片段中的位置以及插入位置的格式组成，所以可以在多个模板之间共享
+	 */
+	private void include(String src) throws SAXException {
+		if (src == null || src.length() == 0) {
+			diagnostics.warn("include need a src attribute.");
+			return;
+		}
+		CompiledTemplate fragment = parser.includeFragment(src, include_depth);
+		StringBuilder context = new StringBuilder();
+		for (TextChunk chunk : chunk_stack) {
+			context.append(chunk.getAttrs()).append('\0');
+		}
+		String context_key;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			context_key = Util.toHexString(digest.digest(
+					context.toString().getBytes("UTF-8")));
+		} catch (Exception e) {
+			throw new SAXException("Digest include context failed.", e);
+		}
+		Locator saved_locator = locator;
+		String saved_source = block_source;
+		TemplateLocator fragment_locator = new TemplateLocator();
+		locator = fragment_locator;
+		block_source = Util.toHexString(fragment.getDigest()) + "#" +
+				context_key;
+		include_depth++;
+		try {
+			fragment.replayContent(this, fragment_locator);
+		} finally {
+			include_depth--;
+			locator = saved_locator;
+			block_source = saved_source;
+		}
 	}
 
 	/**
@@ -240,6 +1120,8 @@ class TextDocHandler extends DefaultHandler
 	 */
 	@Override
 	public void startDocument() throws SAXException {
+		long start = Metrics.start();
+		RenderSpan span = Tracing.begin(RenderSpan.JSON, null);
 		try {
 			if (parser.json_stream != null) {
 				InputStreamReader reader =
@@ -250,24 +1132,31 @@ class TextDocHandler extends DefaultHandler
 	
 				if (text_doc instanceof PDFDoc) {
 					if (!json_object.containsKey("data")) {
-						System.err.println(
+						diagnostics.warn(
 								"JSON source missing 'data' key, please check!");
 					} else {
 						Object value = json_object.get("data");
 						if (!(value instanceof JSONObject)) {
-							System.err.println("JSON 'data' must be a object.");
+							diagnostics.warn("JSON 'data' must be a object.");
 						} else {
 							json_data = (JSONObject) value;
 						}
 					}
 				} else if (text_doc instanceof HTMLDoc) {
 					((HTMLDoc) text_doc).setJSONObject(json_object);
+					// 重复行需要数据，HTML 中没有数据时只输出表头
+					Object value = json_object.get("data");
+					if (value instanceof JSONObject) {
+						json_data = (JSONObject) value;
+					}
 				}
 			}
 		} catch (Exception ex) {
-			ex.printStackTrace();
-			throw new SAXException("Failed to parse JSON stream");
+			throw new SAXException("Failed to parse JSON stream", ex);
+		} finally {
+			Tracing.end(span);
 		}
+		Metrics.end(RenderMetrics.PHASE_JSON, start);
 	}
 
 	/**
@@ -311,7 +1200,7 @@ class TextDocHandler extends DefaultHandler
 		if (value != null) {
 			String[] array = value.split(",");
 			if (array.length < 4) {
-				System.err.println("Page margin format error.");
+				diagnostics.warn("Page margin format error.");
 			} else {
 				try {
 					text_doc.setPageMargin(
@@ -320,7 +1209,7 @@ class TextDocHandler extends DefaultHandler
 							Integer.parseInt(array[2].trim()),
 							Integer.parseInt(array[3].trim()));
 				} catch (Exception ex) {
-					System.err.println("Page margin format error.");
+					diagnostics.warn("Page margin format error.");
 				}
 			}
 		}
@@ -334,14 +1223,25 @@ class TextDocHandler extends DefaultHandler
 			String localName, String qName, Attributes attrs)
 					throws SAXException {
 		TextChunk prev_chunk = null;
-		
+
+		if (skip_depth > 0) {
+			skip_depth++;
+			return;
+		}
+		if (loop_body != null) {
+			loop_body.start(qName, attrs);
+			return;
+		}
+
 		if (qName.equalsIgnoreCase("textpdf")) {
 			if (text_doc.isOpen()) {
 				throw new SAXException("'textpdf' must be root element.");
 			}
+			long start = Metrics.start();
 			if (!text_doc.open()) {
 				throw new SAXException("Open document failed.");
 			}
+			Metrics.end(RenderMetrics.PHASE_LAYOUT, start);
 			return;
 		}
 
@@ -349,11 +1249,61 @@ class TextDocHandler extends DefaultHandler
 			throw new SAXException("Document unopen yet. "
 					+ "check your xml root element is 'textpdf'");
 		}
+		parser.budget.check(text_doc);
+
+		if (qName.equalsIgnoreCase("if") || qName.equalsIgnoreCase("unless") ||
+				qName.equalsIgnoreCase("each")) {
+			// <static> 中的条件和循环在重放时处理
+			if (static_builder != null) {
+				recordStart(qName, attrs);
+				return;
+			}
+			// 块中的内容由数据决定，不能作为静态块
+			if (!chunk_stack.isEmpty()) {
+				block_dynamic = true;
+			}
+			if (parser.overlay_recorder != null) {
+				parser.overlay_recorder.unsafe("Template has " + qName);
+			}
+			// HTML 表单和数据无关，输出所有分支，循环体输出一次
+			if (!(text_doc instanceof PDFDoc)) {
+				return;
+			}
+			if (qName.equalsIgnoreCase("each")) {
+				loop_body = new LoopBody(attrs);
+			} else if (test(attrs) != qName.equalsIgnoreCase("if")) {
+				skip_depth = 1;
+			}
+			return;
+		}
+
+		// 片段的内容直接插入，在 <static> 中时也一样，所以静态页的缓存键
+		// 包括片段的内容
+		if (qName.equalsIgnoreCase("include")) {
+			include(attrs.getValue("src"));
+			return;
+		}
+
+		// 记录 <static> 的内容，结束时再决定如何处理
+		if (static_builder != null) {
+			recordStart(qName, attrs);
+			return;
+		}
+		if (qName.equalsIgnoreCase("static")) {
+			if (parser.static_page_cache != null &&
+					text_doc instanceof PDFDoc) {
+				static_builder = new StringBuilder();
+				static_depth = 0;
+				static_dynamic = false;
+			}
+			return;
+		}
 
 		// Block 元素不可嵌套
 		for (String label : BLOCK_ELEMENTS) {
 			if (label.equalsIgnoreCase(qName)) {
 				chunk_list.clear();
+				block_dynamic = false;
 				break;
 			}
 		}
@@ -361,30 +1311,68 @@ class TextDocHandler extends DefaultHandler
 		if (qName.equalsIgnoreCase("table")) {
 			table = new TextTable();
 			table.addAttrs(attrs);
+			table_flushed = false;
 			return;
 		}
 		if (table != null) {
+			if (qName.equalsIgnoreCase("row")) {
+				if (in_row || table.getRepeat() != null) {
+					throw new SAXException("table only allow one row.");
+				}
+				String repeat = attrs.getValue("repeat");
+				if (repeat == null || repeat.length() == 0) {
+					diagnostics.warn("row missing 'repeat' attribute.");
+				} else {
+					parser.repeat_rows = true;
+					if (parser.overlay_recorder != null) {
+						parser.overlay_recorder.unsafe("Table has repeat rows");
+					}
+					table.setRepeat(repeat);
+					in_row = true;
+				}
+				return;
+			}
 			if (!qName.equalsIgnoreCase("cell")) {
 				throw new SAXException(qName + " is not child of table");
 			}
-			TextChunk chunk = new TextChunk();
-			chunk.addAttrs(attrs);
-			table.addCell(chunk);
+			table_cell = new TextChunk();
+			table_cell.addAttrs(attrs);
+			if (in_row) {
+				table.addRowCell(table_cell);
+			} else {
+				table.addCell(table_cell);
+			}
 			contents_builder.setLength(0);
 			return;
 		}
 
 		if (qName.equalsIgnoreCase("page")) {
+			// 静态页片段使用相同的页面设置
+			page_xml = "<page";
+			for (String name : new String[] { "size", "margin" }) {
+				String value = attrs.getValue(name);
+				if (value != null) {
+					page_xml += " " + name + "=\"" +
+							Util.escapeHTMLString(value) + "\"";
+				}
+			}
+			page_xml += " />";
 			setupPage(attrs);
+			long start = Metrics.start();
 			text_doc.newPage();
+			Metrics.end(RenderMetrics.PHASE_LAYOUT, start);
 			return;
 		}
 		if (qName.equalsIgnoreCase("hrule")) {
+			long start = Metrics.start();
 			text_doc.addHRule(attrs);
+			Metrics.end(RenderMetrics.PHASE_LAYOUT, start);
 			return;
 		}
 		if (qName.equalsIgnoreCase("img")) {
+			long start = Metrics.start();
 			text_doc.addImage(attrs);
+			Metrics.end(RenderMetrics.PHASE_LAYOUT, start);
 			return;
 		}
 
@@ -410,17 +1398,21 @@ class TextDocHandler extends DefaultHandler
 
 			String id = attrs.getValue("id");
 			if (id == null) {
-				System.err.println("Value element missing 'id' attribute.");
+				diagnostics.warn("Value element missing 'id' attribute.");
 			} else {
 				if (text_doc instanceof PDFDoc) {
-					if (json_data != null) {
-						if (!json_data.containsKey(id)) {
-							System.err.println("JSON data key '" + id
+					if (json_data != null || !scopes.isEmpty()) {
+						Object value = resolve(id);
+						if (value == JsonPath.MISSING) {
+							diagnostics.warn("JSON data key '" + id
 									+ "' not found!");
 						} else {
-							Object value = json_data.get(id);
+							if (value instanceof Number ||
+									value instanceof Boolean) {
+								value = value.toString();
+							}
 							if (!(value instanceof String)) {
-								System.err.println("JSON  data key '" + id
+								diagnostics.warn("JSON  data key '" + id
 										+ "' must has a string value.");
 							} else {
 								contents_builder.append(value);
@@ -429,21 +1421,27 @@ class TextDocHandler extends DefaultHandler
 								}
 							}
 						}
+					} else if (parser.overlay_recorder != null) {
+						// 套打背景中的占位符，格式和有值时相同
+						if (attrs.getValue("font-style") == null) {
+							chunk.addAttr("font-style", "bold,underline");
+						}
 					}
 				}
 			}
 		} else if (qName.equalsIgnoreCase("hspace")) {
 			String value = attrs.getValue("size");
 			if (value == null || value.length() == 0) {
-				System.err.println("hspace need a size attribute.");
+				diagnostics.warn("hspace need a size attribute.");
 			} else {
 				try {
 					int size = Integer.parseInt(value);
+					parser.budget.checkSpaces(size);
 					for (int i = 0; i < size; i++) {
 						contents_builder.append(' ');
 					}
-				} catch (Exception ex) {
-					System.err.println("size attribute need a integer value");
+				} catch (NumberFormatException ex) {
+					diagnostics.warn("size attribute need a integer value");
 				}
 			}
 		}
@@ -456,23 +1454,245 @@ class TextDocHandler extends DefaultHandler
 	@Override
 	public void characters(char[] ch, int start, int length)
 			throws SAXException {
+		if (skip_depth > 0) {
+			return;
+		}
+		if (loop_body != null) {
+			loop_body.text(ch, start, length);
+			return;
+		}
+		if (static_builder != null) {
+			escape(static_builder, new String(ch, start, length));
+			return;
+		}
 		String contents = new String(ch, start, length);
 		contents_builder.append(
 				contents.replaceAll("\\s*\n+\\s*", "").trim());
 	}
 
+	private void escape(StringBuilder builder, String text) {
+		for (int i = 0; i < text.length(); i++) {
+			String escape = Util.escapeXMLChars(text.charAt(i));
+			if (escape != null) {
+				builder.append(escape);
+			} else {
+				builder.append(text.charAt(i));
+			}
+		}
+	}
+
+	private void recordStart(String qName, Attributes attrs) {
+		if (qName.equalsIgnoreCase("value") || qName.equalsIgnoreCase("row") ||
+				qName.equalsIgnoreCase("if") || qName.equalsIgnoreCase("unless") ||
+				qName.equalsIgnoreCase("each")) {
+			static_dynamic = true;
+		}
+		static_depth++;
+		static_builder.append("<" + qName);
+		for (int i = 0; i < attrs.getLength(); i++) {
+			static_builder.append(" " + attrs.getQName(i) + "=\"");
+			escape(static_builder, attrs.getValue(i));
+			static_builder.append("\"");
+		}
+		static_builder.append(">");
+	}
+
+	/**
+	 * <static> 结束，不包含值时复制缓存的页，否则作为普通内容处理
+	 */
+	private void finishStatic() throws SAXException {
+		String fragment = static_builder.toString();
+		static_builder = null;
+		if (static_dynamic) {
+			replay(fragment);
+			return;
+		}
+		try {
+			String xml = "<textpdf>" + page_xml + fragment + "</textpdf>";
+			byte[] xml_bytes = xml.getBytes("UTF-8");
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			String key = Util.toHexString(digest.digest(xml_bytes));
+
+			StaticPages pages = parser.static_page_cache.get(key);
+			if (pages == null) {
+				ByteArrayOutputStream pdf_stream = new ByteArrayOutputStream();
+				TextParser fragment_parser = new TextParser(
+						new ByteArrayInputStream(xml_bytes), null, pdf_stream);
+				fragment_parser.static_cache = parser.static_cache;
+				fragment_parser.render_limits = parser.render_limits;
+				fragment_parser.include_dir = parser.include_dir;
+				fragment_parser.fragment_cache = parser.fragment_cache;
+				fragment_parser.genPDF();
+				pages = new StaticPages(pdf_stream.toByteArray(),
+						fragment_parser.getDiagnostics());
+				parser.static_page_cache.put(key, pages);
+			}
+			diagnostics.merge(pages.diagnostics);
+			long start = Metrics.start();
+			RenderSpan span = Tracing.begin(RenderSpan.BLOCK, "static");
+			try {
+				((PDFDoc) text_doc).importPages(pages.pdf);
+			} finally {
+				Tracing.end(span, text_doc.getPageCount(), -1);
+			}
+			Metrics.end(RenderMetrics.PHASE_LAYOUT, start);
+		} catch (SAXException e) {
+			throw e;
+		} catch (RenderLimitException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new SAXException("Write static pages failed.", e);
+		}
+	}
+
+	/**
+	 * 将记录的内容重新交给这个对象处理
+	 */
+	private void replay(String fragment) throws SAXException {
+		// 重放时的位置和模板无关，不能用作静态块的缓存键
+		Locator saved_locator = locator;
+		locator = null;
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(false);
+			SAXParser sax_parser = factory.newSAXParser();
+			sax_parser.parse(new InputSource(new StringReader(
+					"<static>" + fragment + "</static>")),
+					new DefaultHandler() {
+				private int depth = 0;
+
+				@Override
+				public void startElement(String uri, String localName,
+						String qName, Attributes attrs) throws SAXException {
+					if (depth++ > 0) {
+						TextDocHandler.this.startElement(
+								uri, localName, qName, attrs);
+					}
+				}
+
+				@Override
+				public void endElement(String uri, String localName,
+						String qName) throws SAXException {
+					if (--depth > 0) {
+						TextDocHandler.this.endElement(
+								uri, localName, qName);
+					}
+				}
+
+				@Override
+				public void characters(char[] ch, int start, int length)
+						throws SAXException {
+					TextDocHandler.this.characters(ch, start, length);
+				}
+			});
+		} catch (SAXException e) {
+			throw e;
+		} catch (RenderLimitException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new SAXException("Replay static block failed.", e);
+		} finally {
+			locator = saved_locator;
+		}
+	}
+
+	/**
+	 * 从 JSON 数据中取得表格重复行绑定的数组
+	 */
+	private void bindRows() {
+		String repeat = table.getRepeat();
+		if (repeat == null || table.getRowCells().size() == 0) {
+			return;
+		}
+		if (json_data == null && scopes.isEmpty()) {
+			return;
+		}
+		Object value = resolve(repeat);
+		if (value == JsonPath.MISSING || value == null) {
+			if (text_doc instanceof PDFDoc) {
+				diagnostics.warn("JSON data key '" + repeat + "' not found!");
+			}
+		} else if (!(value instanceof List)) {
+			diagnostics.warn("JSON data key '" + repeat
+					+ "' must has a array value.");
+		} else {
+			table.setRows((List<?>) value);
+			parser.budget.addCells((long) table.getRows().size() *
+					table.getRowCells().size());
+		}
+	}
+
+	/**
+	 * 输出表格中已经收集的单元格及重复行，然后清除它们，
+	 * complete 为 false 时表格还没有结束
+	 */
+	private void writeTable(boolean complete) throws SAXException {
+		if (complete && !table_flushed && table.getCells().size() == 0) {
+			return;
+		}
+		table.setComplete(complete);
+		long start = Metrics.start();
+		String detail = table.getCells().size() + " cells";
+		if (table.getRows() != null) {
+			detail += ", " + table.getRows().size() + " rows";
+		}
+		RenderSpan span = Tracing.begin(RenderSpan.TABLE, detail);
+		try {
+			text_doc.writeTable(table);
+		} catch (IOException e) {
+			throw new SAXException(e);
+		} finally {
+			Tracing.end(span, text_doc.getPageCount(), -1);
+		}
+		Metrics.end(RenderMetrics.PHASE_LAYOUT, start);
+		table.getCells().clear();
+		table.setRows(null);
+		table_flushed = true;
+	}
+
 	/**
 	 * 元素结束时回调
 	 */
 	@Override
 	public void endElement(String namespaceURI,
 			String localName, String qName) throws SAXException {
+		if (skip_depth > 0) {
+			skip_depth--;
+			return;
+		}
+		if (loop_body != null) {
+			if (loop_body.end(qName, locator)) {
+				finishLoop();
+			}
+			return;
+		}
+		if (qName.equalsIgnoreCase("include")) {
+			return;
+		}
+		if (static_builder != null) {
+			if (static_depth == 0) {
+				finishStatic();
+			} else {
+				static_depth--;
+				static_builder.append("</" + qName + ">");
+			}
+			return;
+		}
+		if (qName.equalsIgnoreCase("static") ||
+				qName.equalsIgnoreCase("if") || qName.equalsIgnoreCase("unless") ||
+				qName.equalsIgnoreCase("each")) {
+			return;
+		}
 		if (qName.equalsIgnoreCase("textpdf")){
+			long start = Metrics.start();
 			text_doc.close();
+			Metrics.end(RenderMetrics.PHASE_LAYOUT, start);
 			return;
 		}
 		if (qName.equalsIgnoreCase("pagebreak")) {
+			long start = Metrics.start();
 			text_doc.newPage();
+			Metrics.end(RenderMetrics.PHASE_LAYOUT, start);
 			return;
 		}
 		if (qName.equalsIgnoreCase("break")) {
@@ -481,19 +1701,28 @@ class TextDocHandler extends DefaultHandler
 		}
 
 		if (qName.equalsIgnoreCase("cell")) {
-			TextChunk chunk = table.lastCell();
-			chunk.setContents(contents_builder.toString());
+			table_cell.setContents(contents_builder.toString());
+			if (!in_row) {
+				parser.budget.addCells(1);
+			}
+			if (!in_row && table.getCells().size() >= TABLE_FLUSH_CELLS) {
+				writeTable(false);
+			}
 		}
-		if (qName.equalsIgnoreCase("table")) {
-			if (table.getCells().size() > 0) {
-				try {
-					text_doc.writeTable(table);
-				} catch (IOException e) {
-					throw new SAXException(e);
-				}
+		if (qName.equalsIgnoreCase("row")) {
+			in_row = false;
+			// 重复行及之前的单元格先输出，之后的单元格在重复行后面
+			bindRows();
+			if (table.getRows() != null) {
+				writeTable(false);
 			}
+			return;
+		}
+		if (qName.equalsIgnoreCase("table")) {
+			writeTable(true);
 			contents_builder.setLength(0);
 			table = null;
+			table_cell = null;
 			return;
 		}
 
@@ -524,14 +1753,26 @@ class TextDocHandler extends DefaultHandler
 
 			if (chunk_list.size() > 0) {
 				if (label.equalsIgnoreCase(qName)) {
+					long start = Metrics.start();
+					RenderSpan span = Tracing.begin(RenderSpan.BLOCK, qName);
 					try {
-						text_doc.writeBlock(qName, chunk_list);
+						String key = staticBlockKey();
+						if (key != null) {
+							((PDFDoc) text_doc).writeStaticBlock(qName,
+									chunk_list, parser.static_cache, key);
+						} else {
+							text_doc.writeBlock(qName, chunk_list);
+						}
+					} catch (RenderLimitException e) {
+						throw e;
 					} catch (Exception e) {
-						e.printStackTrace();
-						throw new SAXException("Write to PDF failed.");
+						throw new SAXException("Write to PDF failed.", e);
 					} finally {
 						chunk_list.clear();
+						block_dynamic = false;
+						Tracing.end(span, text_doc.getPageCount(), -1);
 					}
+					Metrics.end(RenderMetrics.PHASE_LAYOUT, start);
 					break;
 				}
 			}
@@ -540,3 +1781,99 @@ class TextDocHandler extends DefaultHandler
 	
 }
 
+
+/**
+ * 记录 <each> 的循环体，结束后对每个元素重放
+ */
+class LoopBody
+{
+	static final private int EVENT_START = 1;
+	static final private int EVENT_END = 2;
+	static final private int EVENT_TEXT = 3;
+
+	String items;
+	String as;
+	String index;
+	boolean located = true;
+	private List<LoopEvent> events = new ArrayList<LoopEvent>();
+	private int depth = 0;
+
+	public LoopBody(Attributes attrs) {
+		items = attrs.getValue("items");
+		as = attrs.getValue("as");
+		if (as == null || as.length() == 0) {
+			as = "item";
+		}
+		index = attrs.getValue("index");
+	}
+
+	void start(String qName, Attributes attrs) {
+		depth++;
+		LoopEvent event = new LoopEvent(EVENT_START, qName);
+		event.attrs = new AttributesImpl(attrs);
+		events.add(event);
+	}
+
+	/**
+	 * @return 是否为 <each> 本身的结束
+	 */
+	boolean end(String qName, Locator locator) {
+		if (depth == 0) {
+			return true;
+		}
+		depth--;
+		LoopEvent event = new LoopEvent(EVENT_END, qName);
+		if (locator == null) {
+			located = false;
+		} else {
+			event.line = locator.getLineNumber();
+			event.column = locator.getColumnNumber();
+		}
+		events.add(event);
+		return false;
+	}
+
+	void text(char[] ch, int start, int length) {
+		LoopEvent event = new LoopEvent(EVENT_TEXT, null);
+		event.text = new char[length];
+		System.arraycopy(ch, start, event.text, 0, length);
+		events.add(event);
+	}
+
+	void replay(TextDocHandler handler, TemplateLocator locator)
+			throws SAXException {
+		for (LoopEvent event : events) {
+			switch (event.type) {
+			case EVENT_START:
+				handler.startElement("", event.name, event.name, event.attrs);
+				break;
+			case EVENT_END:
+				if (locator != null) {
+					locator.line = event.line;
+					locator.column = event.column;
+				}
+				handler.endElement("", event.name, event.name);
+				break;
+			case EVENT_TEXT:
+				handler.characters(event.text, 0, event.text.length);
+				break;
+			}
+		}
+	}
+}
+
+
+class LoopEvent
+{
+	int type;
+	String name;
+	Attributes attrs;
+	char[] text;
+	int line;
+	int column;
+
+	public LoopEvent(int type, String name) {
+		this.type = type;
+		this.name = name;
+	}
+}
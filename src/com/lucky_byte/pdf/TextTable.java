@@ -12,10 +12,15 @@ public class TextTable
 {
 	private Map<String, String> attrs;
 	private List<TextChunk> cells;
+	private String repeat = null;
+	private List<TextChunk> row_cells;
+	private List<?> rows = null;
+	private boolean complete = true;
 
 	public TextTable() {
 		attrs = new HashMap<String, String>();
 		cells = new ArrayList<TextChunk>();
+		row_cells = new ArrayList<TextChunk>();
 	}
 
 	public Map<String, String> getAttrs() {
@@ -56,4 +61,72 @@ public class TextTable
 		return cells.get(last);
 	}
 
+	/**
+	 * 重复行对应的 JSON 数组名称，参考 <row repeat="key">
+	 * @return 没有重复行时返回 null
+	 */
+	public String getRepeat() {
+		return repeat;
+	}
+
+	public void setRepeat(String repeat) {
+		this.repeat = repeat;
+	}
+
+	/**
+	 * 重复行的单元格模板，带有 field 属性的单元格从数组元素中取值
+	 * @return
+	 */
+	public List<TextChunk> getRowCells() {
+		return row_cells;
+	}
+
+	public void addRowCell(TextChunk chunk) {
+		row_cells.add(chunk);
+	}
+
+	/**
+	 * 重复行绑定的 JSON 数组
+	 * @return
+	 */
+	public List<?> getRows() {
+		return rows;
+	}
+
+	public void setRows(List<?> rows) {
+		this.rows = rows;
+	}
+
+	/**
+	 * 表格是否已经结束，大表格会分多次输出，除最后一次外都是未完成的，
+	 * 每次输出后清除已经输出的单元格及重复行数据
+	 * @return
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public void setComplete(boolean complete) {
+		this.complete = complete;
+	}
+
+	/**
+	 * 将数组元素绑定到重复行的单元格模板，返回的单元格每次调用都会被
+	 * 重复使用，所以必须在下次调用前使用完毕
+	 * @param row 数组元素，应该是一个 JSON 对象
+	 * @return
+	 */
+	public List<TextChunk> bindRow(Object row) {
+		for (TextChunk chunk : row_cells) {
+			String field = chunk.getAttrs().get("field");
+			if (field == null) {
+				continue;
+			}
+			Object value = JsonPath.lookup(row, field);
+			chunk.setContents(value == JsonPath.MISSING || value == null ?
+					"" : value.toString());
+		}
+		return row_cells;
+	}
+
 }
@@ -0,0 +1,131 @@
+/* TextPDF - generate PDF dynamically
+ * 
+ * Copyright (c) 2015 Lucky Byte, Inc. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.lucky_byte.pdf;
+
+/**
+ * 渲染跟踪的入口
+ *
+ * 默认不跟踪。当前跨度保存在线程局部变量中，所以同一次渲染中创建的跨度
+ * (包括 PDFDoc 中的字体、图片加载)会自动成为渲染跨度的子跨度。
+ */
+public class Tracing
+{
+	private static volatile RenderTracer tracer = null;
+	private static ThreadLocal<RenderSpan> current =
+			new ThreadLocal<RenderSpan>();
+
+	/**
+	 * 设置跟踪接口，null 表示关闭跟踪
+	 * @param render_tracer
+	 */
+	public static void setRenderTracer(RenderTracer render_tracer) {
+		tracer = render_tracer;
+	}
+
+	public static RenderTracer getRenderTracer() {
+		return tracer;
+	}
+
+	/**
+	 * 当前线程正在进行的跨度，没有时返回 null
+	 * @return
+	 */
+	public static RenderSpan currentSpan() {
+		return current.get();
+	}
+
+	static boolean isEnabled() {
+		return tracer != null;
+	}
+
+	/**
+	 * 开始一次渲染
+	 * @return 没有开启跟踪时返回 null
+	 */
+	static RenderSpan beginRender(String template_id, String record_id) {
+		RenderTracer t = tracer;
+		if (t == null) {
+			return null;
+		}
+		RenderSpan span = new RenderSpan(RenderSpan.RENDER, null,
+				current.get(), template_id, record_id);
+		current.set(span);
+		t.spanStarted(span);
+		return span;
+	}
+
+	/**
+	 * 在当前跨度下开始一个子跨度
+	 * @return 没有开启跟踪时返回 null
+	 */
+	static RenderSpan begin(String name, String detail) {
+		return begin(name, detail, null, null);
+	}
+
+	/**
+	 * 和上面的函数相同，如果没有父跨度，则使用给定的标识
+	 */
+	static RenderSpan begin(String name, String detail,
+			String template_id, String record_id) {
+		RenderTracer t = tracer;
+		if (t == null) {
+			return null;
+		}
+		RenderSpan parent = current.get();
+		RenderSpan span;
+		if (parent != null) {
+			span = new RenderSpan(name, detail, parent,
+					parent.getTemplateId(), parent.getRecordId());
+		} else {
+			span = new RenderSpan(name, detail, null,
+					template_id, record_id);
+		}
+		current.set(span);
+		t.spanStarted(span);
+		return span;
+	}
+
+	static void end(RenderSpan span) {
+		end(span, -1, -1);
+	}
+
+	/**
+	 * 结束跨度，当前跨度恢复为它的父跨度
+	 */
+	static void end(RenderSpan span, int pages, long bytes) {
+		if (span == null) {
+			return;
+		}
+		span.finish(pages, bytes);
+		if (span.getParent() != null) {
+			current.set(span.getParent());
+		} else {
+			current.remove();
+		}
+		RenderTracer t = tracer;
+		if (t != null) {
+			t.spanFinished(span);
+		}
+	}
+
+}
@@ -22,6 +22,15 @@
  */
 package com.lucky_byte.pdf;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
 /**
  * 通用工具类
  */
@@ -117,6 +126,60 @@ public class Util
 			{ '♣', "&#x2663;" }, { '♥', "&#x2665;" }, { '♦', "&#x2666;" },
 	};
 
+	private static final char[] hex_chars = "0123456789abcdef".toCharArray();
+
+	/**
+	 * 将字节数组转换为 16 进制字符串
+	 * @param bytes
+	 * @return
+	 */
+	public static String toHexString(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (int i = 0; i < bytes.length; i++) {
+			builder.append(hex_chars[(bytes[i] >> 4) & 0x0f]);
+			builder.append(hex_chars[bytes[i] & 0x0f]);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * 读取输入流的全部内容
+	 * @param stream
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] readStream(InputStream stream) throws IOException {
+		ByteArrayOutputStream out_stream = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = stream.read(buffer)) > 0) {
+			out_stream.write(buffer, 0, n);
+		}
+		return out_stream.toByteArray();
+	}
+
+	/**
+	 * 先写入同一目录中的临时文件，再改名为目标文件，读取方不会看到
+	 * 不完整的文件。临时文件以 . 开头、以 .tmp 结尾
+	 * @param file 目标文件
+	 * @param bytes
+	 * @throws IOException
+	 */
+	static void writeFileAtomic(File file, byte[] bytes) throws IOException {
+		Path target = file.toPath();
+		Path tmp = new File(file.getParentFile(), "." + file.getName() + "."
+				+ Thread.currentThread().getId() + ".tmp").toPath();
+		Files.write(tmp, bytes);
+		try {
+			Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
 	/**
 	 * 对 XML 中的特殊字符进行 escape 处理
 	 * @param ch
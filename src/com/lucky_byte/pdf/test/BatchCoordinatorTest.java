@@ -0,0 +1,123 @@
+package com.lucky_byte.pdf.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lucky_byte.pdf.BatchCoordinator;
+import com.lucky_byte.pdf.BatchJob;
+import com.lucky_byte.pdf.BatchReport;
+import com.lucky_byte.pdf.TextParser;
+
+/**
+ * 在两个本机工作进程中生成，其中一个记录在工作进程中必然内存不足，
+ * 处理它的工作进程在分片中途退出
+ */
+public class BatchCoordinatorTest
+{
+	// 出错之前的记录足够多，工作进程的输出缓冲区已经写出一部分 OK
+	private static final int RECORDS = 600;
+	private static final int SHARD_SIZE = 200;
+	private static final int POISON = 380;
+
+	private File dir;
+	private File batch_file;
+	private File out_dir;
+	private File template;
+	private File journal;
+
+	private void write(File file, String text) throws IOException {
+		Files.write(file.toPath(), text.getBytes("UTF-8"));
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("textpdf").toFile();
+		out_dir = new File(dir, "out");
+		out_dir.mkdir();
+		template = new File(dir, "t.xml");
+		write(template, "<textpdf><para>Hello <value id=\"name\"/></para>"
+				+ "</textpdf>");
+		batch_file = new File(dir, "batch.ndjson");
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < RECORDS; i++) {
+			builder.append("{\"id\":\"r" + i + "\",\"data\":{\"name\":\"");
+			if (i == POISON) {
+				// 工作进程的堆只有 16MB，读取这一行时就会内存不足
+				char[] chars = new char[24 * 1024 * 1024];
+				Arrays.fill(chars, 'x');
+				builder.append(chars);
+			} else {
+				builder.append("n" + i);
+			}
+			builder.append("\"}}\n");
+		}
+		write(batch_file, builder.toString());
+		journal = new File(dir, "batch.journal");
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	private void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Test
+	public void testLostWorker() throws IOException {
+		BatchJob job = new BatchJob(batch_file, out_dir);
+		job.setTemplate(template);
+		job.setDocType(TextParser.DOC_TYPE_HTML);
+		job.setJournal(journal);
+		BatchCoordinator coordinator = new BatchCoordinator(job, 2);
+		coordinator.setShardSize(SHARD_SIZE);
+		coordinator.setJvmOptions(Arrays.asList("-Xmx16m"));
+		BatchReport report = coordinator.run();
+
+		assertEquals(RECORDS, report.getSucceeded());
+		assertEquals(0, report.getSkipped());
+		assertEquals(0, report.getFailed());
+		assertEquals(RECORDS / SHARD_SIZE, report.getShards());
+		assertTrue(report.getRetriedShards() > 0);
+		assertTrue(report.getLostWorkers() > 0);
+
+		Set<String> outputs = new HashSet<String>();
+		for (String name : out_dir.list()) {
+			assertTrue(name, name.endsWith(".html") && !name.startsWith("."));
+			outputs.add(name);
+		}
+		assertEquals(RECORDS, outputs.size());
+
+		// 中途退出的工作进程已经完成的记录不会重复记录
+		List<String> lines = Files.readAllLines(journal.toPath(),
+				StandardCharsets.UTF_8);
+		Set<String> ids = new HashSet<String>();
+		for (String line : lines) {
+			if (line.length() > 0) {
+				assertTrue(line, ids.add(line.split("\t")[0]));
+			}
+		}
+		assertEquals(RECORDS, ids.size());
+	}
+
+}
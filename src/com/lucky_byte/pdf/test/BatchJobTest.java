@@ -0,0 +1,142 @@
+package com.lucky_byte.pdf.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lucky_byte.pdf.BatchJob;
+import com.lucky_byte.pdf.BatchReport;
+import com.lucky_byte.pdf.TextParser;
+
+public class BatchJobTest
+{
+	private File dir;
+	private File batch_file;
+	private File out_dir;
+	private File template;
+	private File journal;
+
+	private void write(File file, String text) throws IOException {
+		Files.write(file.toPath(), text.getBytes("UTF-8"));
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("textpdf").toFile();
+		out_dir = new File(dir, "out");
+		out_dir.mkdir();
+		template = new File(dir, "t.xml");
+		write(template, "<textpdf><para>Hello <value id=\"name\"/></para>"
+				+ "</textpdf>");
+		batch_file = new File(dir, "batch.ndjson");
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			builder.append("{\"id\":\"r" + i + "\",\"data\":{\"name\":\"n"
+					+ i + "\"}}\n");
+		}
+		write(batch_file, builder.toString());
+		journal = new File(dir, "batch.journal");
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	private void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private BatchReport run() throws IOException {
+		BatchJob job = new BatchJob(batch_file, out_dir);
+		job.setTemplate(template);
+		job.setDocType(TextParser.DOC_TYPE_HTML);
+		job.setJournal(journal);
+		return job.run();
+	}
+
+	@Test
+	public void testResume() throws IOException {
+		BatchReport report = run();
+		assertEquals(10, report.getSucceeded());
+		assertEquals(0, report.getSkipped());
+
+		report = run();
+		assertEquals(0, report.getSucceeded());
+		assertEquals(10, report.getSkipped());
+	}
+
+	@Test
+	public void testTornJournalAndOutput() throws IOException {
+		run();
+		// 最后一行写了一半，以及一个被截断的输出文件
+		RandomAccessFile file = new RandomAccessFile(journal, "rw");
+		try {
+			file.setLength(file.length() - 20);
+		} finally {
+			file.close();
+		}
+		FileOutputStream stream =
+				new FileOutputStream(new File(out_dir, "r3.html"), true);
+		stream.write(' ');
+		stream.close();
+
+		BatchReport report = run();
+		assertEquals(2, report.getSucceeded());
+		assertEquals(8, report.getSkipped());
+		assertEquals(0, report.getFailed());
+
+		report = run();
+		assertEquals(10, report.getSkipped());
+	}
+
+	@Test
+	public void testTemplateChanged() throws IOException {
+		run();
+		write(template, "<textpdf><para>Hi <value id=\"name\"/></para>"
+				+ "</textpdf>");
+		template.setLastModified(template.lastModified() + 2000);
+		BatchReport report = run();
+		assertEquals(10, report.getSucceeded());
+		assertEquals(0, report.getSkipped());
+	}
+
+	@Test
+	public void testWarnings() throws IOException {
+		write(template, "<textpdf><para>Hello <value id=\"name\"/></para>"
+				+ "<img/></textpdf>");
+		BatchReport report = run();
+		assertEquals(10, report.getSucceeded());
+		assertEquals(10, report.getWarned());
+		assertEquals(10, report.getWarnings()
+				.getCount("img missing src attribute."));
+	}
+
+	@Test
+	public void testValidate() throws IOException {
+		write(batch_file, "{\"id\":\"a\",\"data\":{\"name\":\"x\"}}\n"
+				+ "{\"id\":\"b\",\"data\":{}}\n"
+				+ "{\"id\":\"c\"}\n");
+		BatchJob job = new BatchJob(batch_file, out_dir);
+		job.setTemplate(template);
+		BatchReport report = job.validate();
+		assertEquals(1, report.getSucceeded());
+		assertEquals(2, report.getFailed());
+		assertEquals(0, out_dir.list().length);
+	}
+
+}
@@ -0,0 +1,95 @@
+package com.lucky_byte.pdf.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.lucky_byte.pdf.CompiledTemplate;
+import com.lucky_byte.pdf.TextParser;
+
+public class CompiledTemplateTest
+{
+	private static final String XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+			+ "<textpdf>\n"
+			+ "  <title>foo &amp; bar</title>\n"
+			+ "  <para>a &lt; b <value id=\"name\" minlen=\"8\"/> &#x4E2D;\n"
+			+ "    next line</para>\n"
+			+ "  <para><![CDATA[x & y]]> z</para>\n"
+			+ "</textpdf>\n";
+	private static final String JSON =
+			"{\"title\":\"t\",\"data\":{\"name\":\"Bob\"}}";
+
+	private byte[] render(CompiledTemplate template) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TextParser parser;
+		if (template == null) {
+			parser = new TextParser(
+					new ByteArrayInputStream(XML.getBytes("UTF-8")),
+					new ByteArrayInputStream(JSON.getBytes("UTF-8")), out);
+		} else {
+			parser = new TextParser(null,
+					new ByteArrayInputStream(JSON.getBytes("UTF-8")), out);
+			parser.setCompiledTemplate(template);
+		}
+		parser.genHTML();
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testReplaySameAsXml() throws Exception {
+		byte[] raw = render(null);
+		CompiledTemplate template =
+				CompiledTemplate.compile(XML.getBytes("UTF-8"));
+		assertEquals(new String(raw, "UTF-8"),
+				new String(render(template), "UTF-8"));
+		assertTrue(template.getValueIds().contains("name"));
+	}
+
+	@Test
+	public void testWriteRead() throws Exception {
+		CompiledTemplate template =
+				CompiledTemplate.compile(XML.getBytes("UTF-8"));
+		File file = File.createTempFile("textpdf", CompiledTemplate.SUFFIX);
+		try {
+			template.write(file);
+			CompiledTemplate loaded = CompiledTemplate.read(file);
+			assertArrayEquals(template.getDigest(), loaded.getDigest());
+			assertEquals(template.getValueIds(), loaded.getValueIds());
+			assertEquals(template.getIncludes(), loaded.getIncludes());
+			assertEquals(new String(render(template), "UTF-8"),
+					new String(render(loaded), "UTF-8"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testLoadRecompilesStale() throws Exception {
+		File xml_file = File.createTempFile("textpdf", ".xml");
+		File tpc_file = new File(xml_file.getPath() + CompiledTemplate.SUFFIX);
+		try {
+			Files.write(xml_file.toPath(), XML.getBytes("UTF-8"));
+			CompiledTemplate template = CompiledTemplate.load(xml_file);
+			assertTrue(tpc_file.isFile());
+			assertTrue(template.isCurrent(xml_file));
+
+			Files.write(xml_file.toPath(),
+					XML.replace("name", "other").getBytes("UTF-8"));
+			xml_file.setLastModified(xml_file.lastModified() + 2000);
+			template = CompiledTemplate.load(xml_file);
+			assertTrue(template.getValueIds().contains("other"));
+			assertTrue(CompiledTemplate.load(xml_file).isCurrent(xml_file));
+		} finally {
+			xml_file.delete();
+			tpc_file.delete();
+		}
+	}
+
+}
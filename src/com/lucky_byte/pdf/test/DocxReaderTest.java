@@ -0,0 +1,53 @@
+package com.lucky_byte.pdf.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import com.lucky_byte.pdf.DocxReader;
+
+public class DocxReaderTest
+{
+	@Test
+	public void test() throws IOException {
+		InputStream docx_stream = new FileInputStream("tests/test.docx");
+		ByteArrayOutputStream xml_stream = new ByteArrayOutputStream();
+		ByteArrayOutputStream json_stream = new ByteArrayOutputStream();
+		try {
+			DocxReader reader = new DocxReader();
+			reader.setAutoTitle(true);
+			reader.ignoreBlankPara(true);
+			reader.read(docx_stream, xml_stream, json_stream);
+			assertTrue(reader.getDiagnostics().isEmpty());
+		} finally {
+			docx_stream.close();
+		}
+
+		String xml = xml_stream.toString("UTF-8");
+		assertTrue(xml, xml.contains("<title align=\"center\">"));
+		assertTrue(xml, xml.contains(
+				"<span font-style=\"bold\" font-size=\"18\">借款合同</span>"));
+		// 两个下划线空白的 w:r 合并为一个 value
+		assertTrue(xml, xml.contains("<value id=\"vid_1_1\" minlen=\"8\" />"));
+		assertTrue(xml, xml.contains("<table columns=\"2000,3000\">"));
+		assertTrue(xml, xml.contains("<cell>金额</cell>"));
+		assertTrue(xml, xml.contains("<cell colspan=\"2\">备注</cell>"));
+		assertTrue(xml, xml.indexOf("<pagebreak />") < xml.indexOf("签字"));
+
+		JSONObject json = (JSONObject) JSONValue.parse(
+				json_stream.toString("UTF-8"));
+		assertEquals("借款合同", json.get("title"));
+		JSONObject data = (JSONObject) json.get("data");
+		assertEquals(1, data.size());
+		assertEquals("", data.get("vid_1_1"));
+	}
+
+}
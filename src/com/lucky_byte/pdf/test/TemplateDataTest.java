@@ -0,0 +1,149 @@
+package com.lucky_byte.pdf.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.parser.PdfTextExtractor;
+import com.lucky_byte.pdf.Diagnostics;
+import com.lucky_byte.pdf.TemplateManifest;
+import com.lucky_byte.pdf.TextParser;
+
+/**
+ * 路径取值、条件及循环，以及模板清单的检查结果和渲染时的警告一致
+ */
+public class TemplateDataTest
+{
+	private static final String XML = "<textpdf>"
+			+ "<para>city=<value id=\"customer.address.city\"/></para>"
+			+ "<para>second=<value id=\"items[1].name\"/></para>"
+			+ "<if test=\"customer.vip\"><para>vip=<value id=\"customer.level\"/>"
+			+ "</para></if>"
+			+ "<unless test=\"status\" equals=\"paid\"><para>unpaid</para></unless>"
+			+ "<each items=\"items\" as=\"it\" index=\"i\">"
+			+ "<para>row=<value id=\"i\"/>:<value id=\"it.name\"/>"
+			+ "/<value id=\"customer.name\"/></para>"
+			+ "</each>"
+			+ "</textpdf>";
+
+	private Diagnostics diagnostics;
+
+	private String render(String xml, String json) throws Exception {
+		TextParser parser = new TextParser(
+				new ByteArrayInputStream(xml.getBytes("UTF-8")),
+				new ByteArrayInputStream(json.getBytes("UTF-8")), null);
+		byte[] pdf = parser.renderToBytes(TextParser.DOC_TYPE_PDF);
+		diagnostics = parser.getDiagnostics();
+
+		PdfReader reader = new PdfReader(pdf);
+		StringBuilder builder = new StringBuilder();
+		for (int i = 1; i <= reader.getNumberOfPages(); i++) {
+			builder.append(PdfTextExtractor.getTextFromPage(reader, i));
+			builder.append('\n');
+		}
+		reader.close();
+		return builder.toString();
+	}
+
+	private Set<String> check(String xml, String json) throws Exception {
+		TextParser parser = new TextParser(
+				new ByteArrayInputStream(xml.getBytes("UTF-8")), null, null);
+		TemplateManifest manifest = parser.compileManifest();
+		return new HashSet<String>(
+				manifest.check(JSONValue.parse(json)).getMessages());
+	}
+
+	private void assertAgree(String xml, String json) throws Exception {
+		render(xml, json);
+		assertEquals(new HashSet<String>(diagnostics.getMessages()),
+				check(xml, json));
+	}
+
+	@Test
+	public void testPaths() throws Exception {
+		String text = render(XML, "{\"data\":{"
+				+ "\"customer\":{\"name\":\"Bob\",\"vip\":false,"
+				+ "\"address\":{\"city\":\"Paris\"}},"
+				+ "\"status\":\"paid\","
+				+ "\"items\":[{\"name\":\"apple\"},{\"name\":\"pear\"}]}}");
+		assertTrue(text, text.contains("city=Paris"));
+		assertTrue(text, text.contains("second=pear"));
+		assertFalse(text, text.contains("vip="));
+		assertFalse(text, text.contains("unpaid"));
+		assertTrue(diagnostics.toString(), diagnostics.isEmpty());
+	}
+
+	@Test
+	public void testBadPathIsKey() throws Exception {
+		// 格式错误的路径整个作为一个键，和路径相同的键优先
+		String xml = "<textpdf><para>a=<value id=\"a..b\"/></para>"
+				+ "<para>b=<value id=\"x.y\"/></para>"
+				+ "<para>c=<value id=\"n[z]\"/></para></textpdf>";
+		String text = render(xml, "{\"data\":{\"a..b\":\"one\","
+				+ "\"x.y\":\"two\",\"x\":{\"y\":\"other\"},\"n[z]\":\"three\"}}");
+		assertTrue(text, text.contains("a=one"));
+		assertTrue(text, text.contains("b=two"));
+		assertTrue(text, text.contains("c=three"));
+		assertTrue(diagnostics.toString(), diagnostics.isEmpty());
+	}
+
+	@Test
+	public void testLoopScopes() throws Exception {
+		String text = render(XML, "{\"data\":{"
+				+ "\"customer\":{\"name\":\"Bob\",\"vip\":true,\"level\":3,"
+				+ "\"address\":{\"city\":\"Paris\"}},"
+				+ "\"items\":[{\"name\":\"apple\"},{\"name\":\"pear\"}]}}");
+		// 循环变量优先，其它路径在外层数据中取值
+		assertTrue(text, text.contains("row=0:apple/Bob"));
+		assertTrue(text, text.contains("row=1:pear/Bob"));
+		assertTrue(text, text.contains("vip=3"));
+		assertTrue(text, text.contains("unpaid"));
+		assertTrue(diagnostics.toString(), diagnostics.isEmpty());
+
+		String xml = "<textpdf><each items=\"groups\" as=\"g\">"
+				+ "<each items=\"g.items\" as=\"item\">"
+				+ "<para><value id=\"g.name\"/>-<value id=\"item\"/></para>"
+				+ "</each></each></textpdf>";
+		text = render(xml, "{\"data\":{\"groups\":["
+				+ "{\"name\":\"A\",\"items\":[\"x\",\"y\"]},"
+				+ "{\"name\":\"B\",\"items\":[\"z\"]}]}}");
+		assertTrue(text, text.contains("A-x"));
+		assertTrue(text, text.contains("A-y"));
+		assertTrue(text, text.contains("B-z"));
+	}
+
+	@Test
+	public void testManifestAgrees() throws Exception {
+		assertAgree(XML, "{\"data\":{"
+				+ "\"customer\":{\"name\":\"Bob\",\"vip\":true,\"level\":3,"
+				+ "\"address\":{\"city\":\"Paris\"}},"
+				+ "\"items\":[{\"name\":\"apple\"},{\"name\":\"pear\"}]}}");
+		// 条件不成立时不需要其中的键
+		assertAgree(XML, "{\"data\":{"
+				+ "\"customer\":{\"name\":\"Bob\",\"vip\":false,"
+				+ "\"address\":{}},"
+				+ "\"items\":[{\"name\":\"apple\"},{}]}}");
+		// 条件成立时缺少的键，以及循环中缺少的键
+		assertAgree(XML, "{\"data\":{"
+				+ "\"customer\":{\"vip\":true,\"address\":{\"city\":[]}},"
+				+ "\"items\":[{\"name\":{}},{\"name\":\"pear\"}]}}");
+		// 循环的值不是数组
+		assertAgree(XML, "{\"data\":{\"customer\":{},\"items\":\"none\"}}");
+		assertAgree(XML, "{\"data\":{}}");
+
+		render(XML, "{\"data\":{\"customer\":{\"vip\":true}}}");
+		assertTrue(diagnostics.getMessages().contains(
+				"JSON data key 'customer.level' not found!"));
+		assertTrue(diagnostics.getMessages().contains(
+				"JSON data key 'items' not found!"));
+	}
+
+}